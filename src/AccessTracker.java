@@ -0,0 +1,117 @@
+/* Records when users last logged in without writing on every login. Logins are noted in memory,
+ * where repeated ones by the same user collapse into one entry, and every FLUSH_MS the pending
+ * entries are written to each shard with one UPDATE ... FROM unnest(usernames, dates) per
+ * ROWS_PER_STATEMENT users. Rows already holding the date are skipped, so a user logging in all day is written once.
+ *
+ * A crash loses at most the last FLUSH_MS of access dates, which only ever lag by that much; close
+ * flushes what's pending on a clean shutdown.
+ */
+
+import java.sql.*;
+import java.sql.Date;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class AccessTracker implements AutoCloseable {
+    static final long FLUSH_MS = Long.getLong("dotify.access.flushMs", 5_000);
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    private final ShardRouter shards;
+    private Map<String, Date> pending = new HashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(work -> {
+        Thread thread = new Thread(work, "access-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts flushing every FLUSH_MS
+     * @param shards where the users are
+     */
+    public AccessTracker(ShardRouter shards) {
+        this.shards = shards;
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (SQLException e) {
+                System.err.println("Could not record access dates: " + e.getMessage());
+            }
+        }, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notes that a user accessed Dotify today, to be written with the next flush
+     * @param username the user
+     */
+    public void touched(String username) {
+        Date today = new Date(System.currentTimeMillis());
+        boolean coalesced;
+        synchronized (this) {
+            coalesced = pending.put(username, today) != null;
+        }
+        MetricsRegistry.get().count("dotify_access_touches_total", 1, "result", coalesced ? "coalesced" : "queued");
+    }
+
+    /**
+     * Writes every pending access date. If a shard fails its users stay pending for next time.
+     * @throws SQLException if writing to a shard fails
+     */
+    public void flush() throws SQLException {
+        Map<String, Date> flushing;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            flushing = pending;
+            pending = new HashMap<>();
+        }
+        List<String> users = new ArrayList<>(flushing.keySet());
+        SQLException failure = null;
+        for (Map.Entry<Integer, List<Integer>> shard : shards.partition(users, username -> username).entrySet()) {
+            List<String> onShard = shard.getValue().stream().map(users::get).toList();
+            try {
+                int updated = shards.shard(shard.getKey()).call(conn -> write(conn, onShard, flushing));
+                MetricsRegistry.get().count("dotify_access_rows_written_total", updated);
+            } catch (SQLException e) {
+                synchronized (this) {
+                    for (String username : onShard) pending.putIfAbsent(username, flushing.get(username));
+                }
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Writes one shard's access dates
+     * @return the number of rows changed
+     */
+    private static int write(Connection conn, List<String> users, Map<String, Date> dates) throws SQLException {
+        int updated = 0;
+        for (int from = 0; from < users.size(); from += ROWS_PER_STATEMENT) {
+            List<String> chunk = users.subList(from, Math.min(from + ROWS_PER_STATEMENT, users.size()));
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_TOUCH_USERS);
+            ps.setArray(1, conn.createArrayOf("text", chunk.toArray()));
+            ps.setArray(2, conn.createArrayOf("date", chunk.stream().map(dates::get).toArray()));
+            updated += ps.executeUpdate();
+        }
+        return updated;
+    }
+
+    /**
+     * Stops flushing in the background and writes what's still pending
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+            flush();
+        } catch (SQLException e) {
+            System.err.println("Could not record access dates: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
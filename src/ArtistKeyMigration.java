@@ -0,0 +1,76 @@
+import java.sql.*;
+
+// Moves song_by_artist and album_by_artist from artist_name text keys to integer artist_id keys
+public class ArtistKeyMigration {
+    private static Connection conn;
+
+    public static void main(String[] args) throws SQLException {
+        connect();  //connect to database
+        System.out.println("Connected to database");
+
+        if (migrate(conn)) System.out.println("Artist relationships now keyed by artist_id");
+        else System.out.println("Artist relationships are already keyed by artist_id");
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Adds artist ids and moves both artist relationship tables over to them in one transaction
+     * @param conn the database connection
+     * @return false if the tables were already keyed by artist_id
+     * @throws SQLException if database access goes wrong
+     */
+    public static boolean migrate(Connection conn) throws SQLException {
+        if (isMigrated(conn)) return false;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            Statement st = conn.createStatement();
+            //number existing artists in name order so ids are stable if the migration is rerun on a copy
+            st.execute("ALTER TABLE artist ADD COLUMN IF NOT EXISTS artist_id INT");
+            st.execute("UPDATE artist a SET artist_id = n.id FROM (SELECT artist_name, " +
+                    "ROW_NUMBER() OVER (ORDER BY artist_name) AS id FROM artist) n WHERE a.artist_name = n.artist_name");
+            st.execute("ALTER TABLE artist ALTER COLUMN artist_id SET NOT NULL");
+            st.execute("ALTER TABLE artist ADD CONSTRAINT artist_id_key UNIQUE (artist_id)");
+
+            migrateRelationship(st, "song_by_artist", "song_id");
+            migrateRelationship(st, "album_by_artist", "album_id");
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Replaces a relationship table's artist_name column with artist_id, rebuilding its keys
+     * @param st statement on the migration's transaction
+     * @param table the relationship table
+     * @param otherKey the other column of the table's primary key
+     * @throws SQLException if database access goes wrong
+     */
+    private static void migrateRelationship(Statement st, String table, String otherKey) throws SQLException {
+        st.execute("ALTER TABLE " + table + " ADD COLUMN artist_id INT");
+        st.execute("UPDATE " + table + " t SET artist_id = a.artist_id FROM artist a WHERE a.artist_name = t.artist_name");
+        st.execute("ALTER TABLE " + table + " ALTER COLUMN artist_id SET NOT NULL");
+        //dropping the column also drops the primary key and foreign key built on it
+        st.execute("ALTER TABLE " + table + " DROP COLUMN artist_name");
+        st.execute("ALTER TABLE " + table + " ADD PRIMARY KEY (" + otherKey + ", artist_id)");
+        st.execute("ALTER TABLE " + table + " ADD FOREIGN KEY (artist_id) REFERENCES artist (artist_id)");
+        st.execute("CREATE INDEX ON " + table + " (artist_id)");
+    }
+
+    private static boolean isMigrated(Connection conn) throws SQLException {
+        ResultSet rs = conn.getMetaData().getColumns(null, null, "song_by_artist", "artist_id");
+        return rs.next();
+    }
+
+    /// Connects to tunnel using DBConnEstablisher credentials
+    private static void connect() {
+        conn = DBConnEstablisher.getConnection();
+    }
+}
@@ -0,0 +1,315 @@
+/* Runs Dotify commands from a file or standard input without any prompts, for replaying bulk
+ * administrative and migration work. One command per line, words separated by spaces, with
+ * double quotes around names containing spaces and # starting a comment:
+ *
+ *   register <user> <password> <first> <last> <email>
+ *   listen <user> <song_id>
+ *   follow <user> <other>                  unfollow <user> <other>
+ *   create-playlist <user> <playlist>      delete-playlist <user> <playlist>
+ *   rename-playlist <user> <playlist> <new name>
+ *   add-to-playlist <user> <playlist> <song_id>...
+ *   remove-from-playlist <user> <playlist> <song_id>...
+ *   chart top50 | chart genres | chart friends <user>
+ *   profile <user>
+ *   search <0-3 field> <0-8 order> <text>
+ *
+ * Runs of consecutive listen, follow, unfollow, add-to-playlist and remove-from-playlist
+ * commands (up to BATCH_SIZE at a time) are sent as batched statements in one transaction per
+ * shard, so either the whole run is applied or none of it is. Playlist edits in a run are merged into one
+ * set-based statement per playlist, and their result is the number of songs that statement
+ * changed. Every other command runs on its own.
+ *
+ * One JSON object per command is written to standard output, with the command's line number,
+ * whether it succeeded and its result or error. A summary goes to standard error.
+ *
+ *   BatchRunner [commands file, or - for standard input] [--stop-on-error]
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.*;
+
+public class BatchRunner {
+    private static final int BATCH_SIZE = 1000;
+    private static final Set<String> BATCHED = Set.of("listen", "follow", "unfollow", "add-to-playlist",
+            "remove-from-playlist");
+
+    private final DotifyOperations ops;
+    private final boolean stopOnError;
+    private final List<Command> pending = new ArrayList<>();
+    private int commands = 0;
+    private int failures = 0;
+    private int batches = 0;
+
+    /**
+     * One line of the command file, split into words
+     */
+    private record Command(int line, String verb, List<String> args) {
+        String arg(int i) {
+            if (i >= args.size()) throw new IllegalArgumentException(verb + " is missing argument " + (i + 1));
+            return args.get(i);
+        }
+
+        int intArg(int i) {
+            try {
+                return Integer.parseInt(arg(i));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(verb + " argument " + (i + 1) + " must be a number");
+            }
+        }
+
+        Integer[] songIDs() {
+            if (args.size() < 3) throw new IllegalArgumentException(verb + " needs at least one song_id");
+            Integer[] ids = new Integer[args.size() - 2];
+            for (int i = 0; i < ids.length; i++) ids[i] = intArg(i + 2);
+            return ids;
+        }
+    }
+
+    public BatchRunner(DotifyOperations ops, boolean stopOnError) {
+        this.ops = ops;
+        this.stopOnError = stopOnError;
+    }
+
+    public static void main(String[] args) throws SQLException, IOException {
+        String source = args.length > 0 ? args[0] : "-";
+        boolean stopOnError = Arrays.asList(args).contains("--stop-on-error");
+
+        CatalogSnapshot.ensureVersionTable(DBConnEstablisher.getConnection());
+        ShardRouter shards = ShardRouter.open(ConnectionPool.of(DBConnEstablisher.getConnection()));
+        DotifyOperations ops = new DotifyOperations(shards);
+        BatchRunner runner = new BatchRunner(ops, stopOnError);
+        long start = System.nanoTime();
+        try (BufferedReader in = source.equals("-") ?
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) :
+                Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            runner.run(in);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d commands in %d batches, %d failed, %.1fs (%.0f commands/s)%n", runner.commands,
+                runner.batches, runner.failures, seconds, runner.commands / Math.max(seconds, 1e-9));
+
+        ops.close();
+        shards.close();
+        DBConnEstablisher.disconnect();
+        if (runner.failures > 0) System.exit(1);
+    }
+
+    /**
+     * Runs every command read, in order
+     * @param in the commands
+     * @return if every command succeeded
+     * @throws IOException if the commands can't be read
+     */
+    public boolean run(BufferedReader in) throws IOException {
+        String text;
+        int line = 0;
+        while ((text = in.readLine()) != null) {
+            line++;
+            List<String> words;
+            try {
+                words = split(text);
+            } catch (IllegalArgumentException e) {
+                flush();
+                report(line, "?", false, e.getMessage());
+                if (stopped()) return false;
+                continue;
+            }
+            if (words.isEmpty()) continue;
+
+            Command command = new Command(line, words.get(0), words.subList(1, words.size()));
+            if (!pending.isEmpty() && (!pending.get(0).verb().equals(command.verb()) || pending.size() >= BATCH_SIZE)) {
+                flush();
+                if (stopped()) return false;
+            }
+            if (BATCHED.contains(command.verb())) {
+                pending.add(command);
+            } else {
+                runSingle(command);
+                if (stopped()) return false;
+            }
+        }
+        flush();
+        return failures == 0;
+    }
+
+    private boolean stopped() {
+        return stopOnError && failures > 0;
+    }
+
+    //region Batched commands
+
+    private void flush() {
+        if (pending.isEmpty()) return;
+        List<Command> batch = new ArrayList<>(pending);
+        pending.clear();
+        batches++;
+
+        Object[] results;
+        try {
+            results = switch (batch.get(0).verb()) {
+                case "listen" -> listens(batch);
+                case "follow", "unfollow" -> follows(batch);
+                default -> playlistEdits(batch);
+            };
+        } catch (SQLException | IllegalArgumentException e) {
+            //the whole batch was rolled back, or never started
+            for (Command command : batch) report(command.line(), command.verb(), false, e.getMessage());
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) report(batch.get(i).line(), batch.get(i).verb(), true, results[i]);
+    }
+
+    private Object[] listens(List<Command> batch) throws SQLException {
+        List<DotifyOperations.Listen> listens = new ArrayList<>(batch.size());
+        for (Command command : batch) listens.add(new DotifyOperations.Listen(command.arg(0), command.intArg(1)));
+        ops.listenAll(listens);
+        Object[] results = new Object[batch.size()];
+        Arrays.fill(results, true);
+        return results;
+    }
+
+    private Object[] follows(List<Command> batch) throws SQLException {
+        List<DotifyOperations.Follow> follows = new ArrayList<>(batch.size());
+        for (Command command : batch) follows.add(new DotifyOperations.Follow(command.arg(0), command.arg(1)));
+        boolean[] changed = batch.get(0).verb().equals("follow") ? ops.followAll(follows) : ops.unfollowAll(follows);
+        Object[] results = new Object[batch.size()];
+        for (int i = 0; i < changed.length; i++) results[i] = changed[i];
+        return results;
+    }
+
+    private Object[] playlistEdits(List<Command> batch) throws SQLException {
+        boolean adding = batch.get(0).verb().equals("add-to-playlist");
+        //every song for each playlist, in the order the playlists first appear
+        Map<List<String>, List<Integer>> songs = new LinkedHashMap<>();
+        for (Command command : batch) {
+            songs.computeIfAbsent(List.of(command.arg(0), command.arg(1)), p -> new ArrayList<>())
+                    .addAll(Arrays.asList(command.songIDs()));
+        }
+
+        Map<List<String>, Integer> changed = new HashMap<>();
+        ops.inTransaction(() -> {
+            for (Map.Entry<List<String>, List<Integer>> playlist : songs.entrySet()) {
+                String user = playlist.getKey().get(0);
+                String name = playlist.getKey().get(1);
+                if (!ops.playlistExists(user, name)) {
+                    throw new SQLException(user + " has no playlist named '" + name + "'");
+                }
+                Integer[] ids = playlist.getValue().toArray(new Integer[0]);
+                changed.put(playlist.getKey(), adding ? ops.addSongs(user, name, ids) : ops.removeSongs(user, name, ids));
+            }
+        });
+
+        Object[] results = new Object[batch.size()];
+        for (int i = 0; i < results.length; i++) results[i] = changed.get(List.of(batch.get(i).arg(0), batch.get(i).arg(1)));
+        return results;
+    }
+
+    //endregion
+
+    //region Single commands
+
+    private void runSingle(Command command) {
+        try {
+            report(command.line(), command.verb(), true, execute(command));
+        } catch (SQLException | IllegalArgumentException e) {
+            report(command.line(), command.verb(), false, e.getMessage());
+        }
+    }
+
+    private Object execute(Command c) throws SQLException {
+        return switch (c.verb()) {
+            case "register" -> {
+                if (!ops.register(c.arg(0), c.arg(1), c.arg(2), c.arg(3), c.arg(4))) {
+                    throw new IllegalArgumentException("Username or email already taken");
+                }
+                yield true;
+            }
+            case "create-playlist" -> {
+                if (ops.playlistExists(c.arg(0), c.arg(1))) throw new IllegalArgumentException("Playlist already exists");
+                ops.createPlaylist(c.arg(0), c.arg(1));
+                yield true;
+            }
+            case "delete-playlist" -> {
+                requirePlaylist(c.arg(0), c.arg(1));
+                ops.deletePlaylist(c.arg(0), c.arg(1));
+                yield true;
+            }
+            case "rename-playlist" -> {
+                requirePlaylist(c.arg(0), c.arg(1));
+                ops.renamePlaylist(c.arg(0), c.arg(1), c.arg(2));
+                yield true;
+            }
+            case "chart" -> switch (c.arg(0)) {
+                case "top50" -> ops.top50Last30Days();
+                case "genres" -> ops.top5GenresThisMonth();
+                case "friends" -> ops.friendChart(c.arg(1));
+                default -> throw new IllegalArgumentException("chart must be top50, genres or friends");
+            };
+            case "profile" -> ops.profile(c.arg(0));
+            case "search" -> ops.search(c.intArg(0), c.intArg(1), c.arg(2));
+            default -> throw new IllegalArgumentException("Unknown command " + c.verb());
+        };
+    }
+
+    private void requirePlaylist(String user, String name) throws SQLException {
+        if (!ops.playlistExists(user, name)) throw new IllegalArgumentException("Playlist does not exist");
+    }
+
+    //endregion
+
+    //region Helpers
+
+    private void report(int line, String verb, boolean ok, Object resultOrError) {
+        commands++;
+        if (!ok) failures++;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("line", line);
+        result.put("command", verb);
+        result.put("ok", ok);
+        result.put(ok ? "result" : "error", resultOrError);
+        System.out.println(DotifyService.toJson(result));
+    }
+
+    /**
+     * Splits a line into words on spaces, keeping double quoted text together
+     * @param line the line
+     * @return its words, or none for a blank or comment line
+     */
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        boolean inWord = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') quoted = false;
+                else if (c == '\\' && i + 1 < line.length()) word.append(line.charAt(++i));
+                else word.append(c);
+            } else if (c == '"') {
+                quoted = true;
+                inWord = true;
+            } else if (c == '#' && !inWord) {
+                break;
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) words.add(word.toString());
+                word.setLength(0);
+                inWord = false;
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("Unclosed quote");
+        if (inWord) words.add(word.toString());
+        return words;
+    }
+
+    //endregion
+}
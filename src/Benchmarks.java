@@ -0,0 +1,191 @@
+/* Microbenchmarks for the in-process hot paths: parsing the song data file, the id dictionaries
+ * built while loading it, the friend chart top-k, the profile's top artist merge and the row
+ * formatting of search results and playlists. Each benchmark is warmed up and then timed over
+ * several rounds at every data size, and the results are written as JSON in the same shape
+ * JMH uses so runs can be compared against each other.
+ *
+ *   Benchmarks [output file] [comma separated data sizes]
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.util.*;
+
+public class Benchmarks {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 10;
+    private static final int[] DEFAULT_SIZES = {1_000, 10_000, 100_000};
+    private static final String[] GENRES = {"Rock", "Pop", "Jazz", "Hip Hop", "Classical", "Country", "Metal"};
+
+    //results are written here so the JIT can't drop the work that produced them
+    private static volatile Object sink;
+
+    /**
+     * One timed pass over a benchmark's data, returning something derived from all of it
+     */
+    private interface Operation {
+        Object run();
+    }
+
+    /**
+     * The timing of one benchmark at one data size, in nanoseconds per operation
+     */
+    private record Result(String benchmark, int size, double score, double error) {}
+
+    public static void main(String[] args) throws IOException {
+        Path output = Paths.get(args.length > 0 ? args[0] : "benchmarks.json");
+        int[] sizes = args.length > 1 ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray()
+                : DEFAULT_SIZES;
+
+        List<Result> results = new ArrayList<>();
+        for (int size : sizes) {
+            Data data = new Data(size);
+            Map<String, Operation> benchmarks = new LinkedHashMap<>();
+            benchmarks.put("parseLine", () -> {
+                int fields = 0;
+                for (String line : data.lines) fields += DataParser.parse_line(line).length;
+                return fields;
+            });
+            benchmarks.put("parseDate", () -> {
+                int sum = 0;
+                for (String date : data.dates) sum += DataParser.parse_date(date)[0];
+                return sum;
+            });
+            benchmarks.put("idDictionary", () -> {
+                //the same containsKey/put/get sequence DataParser runs for every line
+                Hashtable<String, Integer> ids = new Hashtable<>();
+                int nextID = 1;
+                int sum = 0;
+                for (String artist : data.artists) {
+                    if (!ids.containsKey(artist)) ids.put(artist, nextID++);
+                    sum += ids.get(artist);
+                }
+                return sum;
+            });
+            benchmarks.put("friendChartTopK", () -> FriendChartService.TopK.of(data.songCounts).entries());
+            benchmarks.put("topArtistMerge", () ->
+                    PostgresLogic.mergeTopArtists(data.both, data.playlist, data.listen, size / 10));
+            benchmarks.put("searchRowFormat", () -> {
+                int chars = 0;
+                for (int i = 0; i < size; i++) {
+                    chars += PostgresLogic.formatSearchRow(i + 1, data.titles[i], data.artists[i], data.albums[i],
+                            data.lengths[i], data.listens[i], data.releaseDates[i], GENRES[i % GENRES.length]).length();
+                }
+                return chars;
+            });
+            benchmarks.put("playlistRowFormat", () -> {
+                int chars = 0;
+                for (int i = 0; i < size; i++) {
+                    chars += PostgresLogic.formatPlaylistRow(data.titles[i], data.artists[i], data.albums[i],
+                            data.lengths[i], GENRES[i % GENRES.length], data.releaseDates[i], data.listens[i]).length();
+                }
+                return chars;
+            });
+
+            for (Map.Entry<String, Operation> benchmark : benchmarks.entrySet()) {
+                Result result = measure(benchmark.getKey(), size, benchmark.getValue());
+                System.out.printf("%-20s size=%-8d %12.2f +- %.2f ns/op%n", result.benchmark(), result.size(),
+                        result.score(), result.error());
+                results.add(result);
+            }
+        }
+
+        Files.writeString(output, toJson(results), StandardCharsets.UTF_8);
+        System.out.println("Results written to " + output);
+    }
+
+    /**
+     * Times a benchmark, with each round covering every element of the data
+     * @return the mean time per element and its standard deviation across rounds
+     */
+    private static Result measure(String name, int size, Operation operation) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) sink = operation.run();
+        double[] rounds = new double[MEASURE_ROUNDS];
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink = operation.run();
+            rounds[i] = (double) (System.nanoTime() - start) / size;
+        }
+        double mean = Arrays.stream(rounds).average().orElse(0);
+        double variance = Arrays.stream(rounds).map(r -> (r - mean) * (r - mean)).sum() / (rounds.length - 1);
+        return new Result(name, size, mean, Math.sqrt(variance));
+    }
+
+    private static String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append(String.format(Locale.ROOT, """
+                      {
+                        "benchmark": "Benchmarks.%s",
+                        "mode": "avgt",
+                        "warmupIterations": %d,
+                        "measurementIterations": %d,
+                        "params": {"size": "%d"},
+                        "primaryMetric": {"score": %.3f, "scoreError": %.3f, "scoreUnit": "ns/op"}
+                      }""", r.benchmark(), WARMUP_ROUNDS, MEASURE_ROUNDS, r.size(), r.score(), r.error()));
+            json.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    /**
+     * Synthetic inputs shaped like albums_songs.txt and the database rows, seeded so every run
+     * sees the same data
+     */
+    private static class Data {
+        final String[] lines;
+        final String[] dates;
+        final String[] titles;
+        final String[] artists;
+        final String[] albums;
+        final int[] lengths;
+        final int[] listens;
+        final Date[] releaseDates;
+        final Map<Integer, Integer> songCounts = new HashMap<>();
+        final List<PostgresLogic.ArtistTotal> both;
+        final List<PostgresLogic.ArtistTotal> playlist;
+        final List<PostgresLogic.ArtistTotal> listen;
+
+        Data(int size) {
+            Random random = new Random(size);
+            lines = new String[size];
+            dates = new String[size];
+            titles = new String[size];
+            artists = new String[size];
+            albums = new String[size];
+            lengths = new int[size];
+            listens = new int[size];
+            releaseDates = new Date[size];
+            for (int i = 0; i < size; i++) {
+                //roughly ten songs per artist and album, like the real catalog
+                titles[i] = "Song " + i;
+                artists[i] = "Artist " + random.nextInt(Math.max(size / 10, 1));
+                albums[i] = "Album " + random.nextInt(Math.max(size / 10, 1));
+                lengths[i] = 90 + random.nextInt(400);
+                listens[i] = random.nextInt(10_000);
+                dates[i] = String.valueOf(600_000 + random.nextInt(150_000));
+                releaseDates[i] = new Date(random.nextInt(Integer.MAX_VALUE) * 1000L);
+                lines[i] = String.join("\t", String.valueOf(i), titles[i], String.valueOf(lengths[i]), dates[i],
+                        GENRES[i % GENRES.length], artists[i], albums[i], dates[i], String.valueOf(i % 12 + 1));
+                songCounts.put(i, random.nextInt(1_000));
+            }
+            both = sortedTotals(random, size);
+            playlist = sortedTotals(random, size);
+            listen = sortedTotals(random, size);
+        }
+
+        private List<PostgresLogic.ArtistTotal> sortedTotals(Random random, int size) {
+            List<PostgresLogic.ArtistTotal> totals = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                totals.add(new PostgresLogic.ArtistTotal(artists[random.nextInt(size)], random.nextInt(1_000)));
+            }
+            totals.sort((a, b) -> b.total() - a.total());
+            return totals;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/* A compact binary copy of the catalog (songs, albums, artists, genres and which artists made each
+ * song) that processes memory-map at startup instead of reading the catalog through the database.
+ * Everything is a table of ints sorted by id, with names and titles in one string arena the tables
+ * point into, so the catalog lives in the page cache rather than on the heap and an index built
+ * from it only decodes the strings it shows.
+ *
+ * The snapshot carries the catalog_version it was written at. DataParser bumps the version and
+ * writes a new snapshot after loading songs; anything else that changes the catalog must bump it
+ * too (CatalogSnapshot write does both). A process whose snapshot is missing or from another
+ * version writes a fresh one before using it.
+ *
+ *   CatalogSnapshot [status | write]
+ *
+ * File layout, big-endian:
+ *   header   magic, format, catalog version (long), songs, albums, artists, genres, song artist
+ *            links, arena bytes
+ *   songs    song_id, title, length, release day, genre_id, album_id, each a column of ints,
+ *            then songs + 1 offsets into the song artist links and the links' artist_ids
+ *   albums   album_id, name, release day
+ *   artists  artist_id, name
+ *   genres   genre_id, name
+ *   arena    each string as its UTF-8 length followed by its bytes
+ * Names and titles are arena offsets, release days are epoch days or NONE, and a song without a
+ * genre or album has 0.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CatalogSnapshot {
+    public static final Path PATH = Paths.get(System.getProperty("dotify.catalogSnapshot", "catalog.snapshot"));
+    //release day of a song or album without a release date
+    public static final int NONE = Integer.MIN_VALUE;
+    private static final int MAGIC = 0x44544643;    //"DTFC"
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 40;
+
+    private final ByteBuffer buffer;
+    private final long version;
+    private final int songs, albums, artists, genres, links;
+    //where each column starts
+    private final int songIDs, titles, lengths, songReleaseDays, songGenres, songAlbums, linkStarts, linkArtists;
+    private final int albumIDs, albumNames, albumReleaseDays, artistIDs, artistNames, genreIDs, genreNames, arena;
+
+    private CatalogSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException("Not a version " + FORMAT + " catalog snapshot");
+        }
+        version = buffer.getLong(8);
+        songs = buffer.getInt(16);
+        albums = buffer.getInt(20);
+        artists = buffer.getInt(24);
+        genres = buffer.getInt(28);
+        links = buffer.getInt(32);
+        int at = HEADER_BYTES;
+        songIDs = at;
+        titles = at += 4 * songs;
+        lengths = at += 4 * songs;
+        songReleaseDays = at += 4 * songs;
+        songGenres = at += 4 * songs;
+        songAlbums = at += 4 * songs;
+        linkStarts = at += 4 * songs;
+        linkArtists = at += 4 * (songs + 1);
+        albumIDs = at += 4 * links;
+        albumNames = at += 4 * albums;
+        albumReleaseDays = at += 4 * albums;
+        artistIDs = at += 4 * albums;
+        artistNames = at += 4 * artists;
+        genreIDs = at += 4 * artists;
+        genreNames = at += 4 * genres;
+        arena = at += 4 * genres;
+        if (buffer.capacity() != (long) arena + buffer.getInt(36)) throw new IOException("Truncated catalog snapshot");
+    }
+
+    public static void main(String[] args) throws SQLException, IOException {
+        Connection conn = DBConnEstablisher.getConnection();
+        System.out.println("Connected to database");
+        ensureVersionTable(conn);
+
+        if (args.length > 0 && args[0].equals("write")) {
+            long version = bumpVersion(conn);
+            write(conn, PATH, version);
+            System.out.println("Wrote " + PATH + " at catalog version " + version);
+        } else {
+            long version = catalogVersion(conn);
+            CatalogSnapshot snapshot = Files.exists(PATH) ? map(PATH) : null;
+            if (snapshot == null) {
+                System.out.println("No snapshot at " + PATH);
+            } else {
+                System.out.println(PATH + ": " + snapshot.songCount() + " songs at catalog version " +
+                        snapshot.version() + (snapshot.version() == version ? ", current" :
+                        ", stale (database is at " + version + ")"));
+            }
+        }
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Creates the catalog_version table, starting at version 1, if it doesn't exist
+     * @param conn the connection
+     * @throws SQLException if database access goes wrong
+     */
+    public static void ensureVersionTable(Connection conn) throws SQLException {
+        Statement st = conn.createStatement();
+        st.execute("CREATE TABLE IF NOT EXISTS catalog_version (version BIGINT NOT NULL)");
+        st.execute("INSERT INTO catalog_version SELECT 1 WHERE NOT EXISTS (SELECT 1 FROM catalog_version)");
+    }
+
+    /**
+     * @return the database's catalog version
+     * @throws SQLException if database access goes wrong
+     */
+    public static long catalogVersion(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery("SELECT version FROM catalog_version");
+        if (!rs.next()) throw new SQLException("catalog_version is empty");
+        return rs.getLong(1);
+    }
+
+    /**
+     * Marks the catalog as changed, making every existing snapshot stale
+     * @return the new version
+     * @throws SQLException if database access goes wrong
+     */
+    public static long bumpVersion(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery(
+                "UPDATE catalog_version SET version = version + 1 RETURNING version");
+        rs.next();
+        return rs.getLong(1);
+    }
+
+    /**
+     * Maps the snapshot at PATH, first writing a new one if it's missing, unreadable or not of the
+     * database's catalog version
+     * @param conn a connection to the catalog
+     * @return the snapshot
+     * @throws SQLException if database access goes wrong
+     */
+    public static CatalogSnapshot open(Connection conn) throws SQLException {
+        long started = System.nanoTime();
+        long version = catalogVersion(conn);
+        String result = "mapped";
+        CatalogSnapshot snapshot = null;
+        try {
+            if (Files.exists(PATH)) snapshot = map(PATH);
+        } catch (IOException e) {
+            System.err.println("Ignoring catalog snapshot: " + e.getMessage());
+        }
+        try {
+            if (snapshot == null || snapshot.version() != version) {
+                result = snapshot == null ? "written" : "rewritten";
+                write(conn, PATH, version);
+                snapshot = map(PATH);
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not write catalog snapshot " + PATH, e);
+        }
+        MetricsRegistry.get().time("dotify_catalog_snapshot_seconds", System.nanoTime() - started, "result", result);
+        return snapshot;
+    }
+
+    /**
+     * Maps a snapshot file
+     * @param path the file
+     * @return the snapshot
+     * @throws IOException if it can't be read or isn't a snapshot
+     */
+    public static CatalogSnapshot map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new CatalogSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the catalog to a snapshot file. It's written beside the file and moved over it, so
+     * processes that have the old one mapped keep reading it undisturbed.
+     * @param conn a connection to the catalog
+     * @param path the file
+     * @param version the catalog version it's of
+     * @throws SQLException if database access goes wrong
+     * @throws IOException if the file can't be written
+     */
+    public static void write(Connection conn, Path path, long version) throws SQLException, IOException {
+        ByteArrayOutputStream arenaBytes = new ByteArrayOutputStream();
+        DataOutputStream strings = new DataOutputStream(arenaBytes);
+
+        List<int[]> songRows = new ArrayList<>();
+        ResultSet rs = conn.createStatement().executeQuery("SELECT s.song_id, s.title, s.length, s.release_date, " +
+                "s.genre_id, (SELECT MIN(soa.album_id) FROM song_on_album soa WHERE soa.song_id = s.song_id) " +
+                "AS album_id FROM song s ORDER BY s.song_id");
+        while (rs.next()) {
+            songRows.add(new int[]{rs.getInt("song_id"), string(strings, rs.getString("title")), rs.getInt("length"),
+                    day(rs.getDate("release_date")), rs.getInt("genre_id"), rs.getInt("album_id")});
+        }
+        int[] linkStarts = new int[songRows.size() + 1];
+        List<Integer> linkArtists = new ArrayList<>();
+        rs = conn.createStatement().executeQuery(
+                "SELECT song_id, artist_id FROM song_by_artist ORDER BY song_id, artist_id");
+        int song = 0;
+        while (rs.next()) {
+            int songID = rs.getInt(1);
+            while (song < songRows.size() && songRows.get(song)[0] < songID) linkStarts[++song] = linkArtists.size();
+            linkArtists.add(rs.getInt(2));
+        }
+        while (song < songRows.size()) linkStarts[++song] = linkArtists.size();
+
+        List<int[]> albumRows = new ArrayList<>();
+        rs = conn.createStatement().executeQuery("SELECT album_id, name, release_date FROM album ORDER BY album_id");
+        while (rs.next()) {
+            albumRows.add(new int[]{rs.getInt(1), string(strings, rs.getString(2)), day(rs.getDate(3))});
+        }
+        List<int[]> artistRows = named(conn, strings, "SELECT artist_id, artist_name FROM artist ORDER BY artist_id");
+        List<int[]> genreRows = named(conn, strings, "SELECT genre_id, genre_name FROM genre ORDER BY genre_id");
+
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(version);
+            out.writeInt(songRows.size());
+            out.writeInt(albumRows.size());
+            out.writeInt(artistRows.size());
+            out.writeInt(genreRows.size());
+            out.writeInt(linkArtists.size());
+            out.writeInt(arenaBytes.size());
+            writeColumns(out, songRows, 6);
+            for (int start : linkStarts) out.writeInt(start);
+            for (int artistID : linkArtists) out.writeInt(artistID);
+            writeColumns(out, albumRows, 3);
+            writeColumns(out, artistRows, 2);
+            writeColumns(out, genreRows, 2);
+            arenaBytes.writeTo(out);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static List<int[]> named(Connection conn, DataOutputStream strings, String sql)
+            throws SQLException, IOException {
+        List<int[]> rows = new ArrayList<>();
+        ResultSet rs = conn.createStatement().executeQuery(sql);
+        while (rs.next()) rows.add(new int[]{rs.getInt(1), string(strings, rs.getString(2))});
+        return rows;
+    }
+
+    /**
+     * Adds a string to the arena
+     * @return its offset
+     */
+    private static int string(DataOutputStream strings, String value) throws IOException {
+        int offset = strings.size();
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        strings.writeInt(bytes.length);
+        strings.write(bytes);
+        return offset;
+    }
+
+    private static int day(Date date) {
+        return date == null ? NONE : (int) date.toLocalDate().toEpochDay();
+    }
+
+    private static void writeColumns(DataOutputStream out, List<int[]> rows, int columns) throws IOException {
+        for (int column = 0; column < columns; column++) {
+            for (int[] row : rows) out.writeInt(row[column]);
+        }
+    }
+
+    /**
+     * @return the catalog version the snapshot was written at
+     */
+    public long version() {
+        return version;
+    }
+
+    //region Songs, numbered 0 up to songCount in song_id order
+
+    public int songCount() {
+        return songs;
+    }
+
+    /**
+     * @param songID a song_id
+     * @return the song's number, or -1 if there's no such song
+     */
+    public int songNumber(int songID) {
+        return find(songIDs, songs, songID);
+    }
+
+    public int songID(int song) {
+        return buffer.getInt(songIDs + 4 * song);
+    }
+
+    public String title(int song) {
+        return string(buffer.getInt(titles + 4 * song));
+    }
+
+    public int length(int song) {
+        return buffer.getInt(lengths + 4 * song);
+    }
+
+    /**
+     * @return the song's release date as an epoch day, or NONE
+     */
+    public int releaseDay(int song) {
+        return buffer.getInt(songReleaseDays + 4 * song);
+    }
+
+    public int genreID(int song) {
+        return buffer.getInt(songGenres + 4 * song);
+    }
+
+    /**
+     * @return the lowest album_id of the albums the song is on, or 0 for none
+     */
+    public int albumID(int song) {
+        return buffer.getInt(songAlbums + 4 * song);
+    }
+
+    /**
+     * @return how many artists are credited on the song
+     */
+    public int artistCount(int song) {
+        return buffer.getInt(linkStarts + 4 * (song + 1)) - buffer.getInt(linkStarts + 4 * song);
+    }
+
+    /**
+     * @param song a song number
+     * @param i which of its artists, below artistCount
+     * @return the artist's artist_id
+     */
+    public int artistID(int song, int i) {
+        return buffer.getInt(linkArtists + 4 * (buffer.getInt(linkStarts + 4 * song) + i));
+    }
+
+    //endregion
+
+    //region Names
+
+    /**
+     * @return the album's name, or null if there's no such album
+     */
+    public String albumName(int albumID) {
+        int album = find(albumIDs, albums, albumID);
+        return album < 0 ? null : string(buffer.getInt(albumNames + 4 * album));
+    }
+
+    /**
+     * @return the album's release date as an epoch day, or NONE
+     */
+    public int albumReleaseDay(int albumID) {
+        int album = find(albumIDs, albums, albumID);
+        return album < 0 ? NONE : buffer.getInt(albumReleaseDays + 4 * album);
+    }
+
+    /**
+     * @return the artist's name, or null if there's no such artist
+     */
+    public String artistName(int artistID) {
+        int artist = find(artistIDs, artists, artistID);
+        return artist < 0 ? null : string(buffer.getInt(artistNames + 4 * artist));
+    }
+
+    /**
+     * @return the genre's name, or null if there's no such genre
+     */
+    public String genreName(int genreID) {
+        int genre = find(genreIDs, genres, genreID);
+        return genre < 0 ? null : string(buffer.getInt(genreNames + 4 * genre));
+    }
+
+    /**
+     * @return every genre_id, in order
+     */
+    public List<Integer> genreIDs() {
+        List<Integer> ids = new ArrayList<>(genres);
+        for (int genre = 0; genre < genres; genre++) ids.add(buffer.getInt(genreIDs + 4 * genre));
+        return ids;
+    }
+
+    //endregion
+
+    /**
+     * Binary searches an id column
+     * @return the row holding id, or -1
+     */
+    private int find(int column, int rows, int id) {
+        int low = 0, high = rows - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int found = buffer.getInt(column + 4 * mid);
+            if (found < id) low = mid + 1;
+            else if (found > id) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private String string(int offset) {
+        byte[] bytes = new byte[buffer.getInt(arena + offset)];
+        buffer.get(arena + offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
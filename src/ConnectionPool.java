@@ -0,0 +1,242 @@
+/* A fixed set of database connections shared by many threads. Work borrows a connection for as
+ * long as it runs and hands it back afterwards, so any number of logged in sessions can share a
+ * few connections as long as only that many are running a statement at once.
+ *
+ * Borrowing is reentrant: work that calls other pooled work on the same thread gets the
+ * connection it already holds, which keeps a pool of one (the console's) from deadlocking.
+ *
+ * A connection is only checked with isValid, a round trip to the server, when it's borrowed after
+ * sitting idle for -Ddotify.pool.validateAfterMs (30s by default) or after work on it failed.
+ * Under load connections are back in use within moments, so they're trusted as they are.
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool implements AutoCloseable {
+    private static final long BORROW_TIMEOUT_MS = Long.getLong("dotify.pool.timeoutMs", 5_000);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long VALIDATE_AFTER_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("dotify.pool.validateAfterMs", 30_000));
+
+    private final BlockingQueue<Connection> idle;
+    private final List<Connection> all = new ArrayList<>();
+    private final boolean owned;
+    private final ConnectionFactory factory;
+    private final ThreadLocal<Connection> held = new ThreadLocal<>();
+    //when each idle connection was last handed back, and the ones whose last work failed
+    private final Map<Connection, Long> releasedAt = new ConcurrentHashMap<>();
+    private final Set<Connection> suspect = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Work to run on a borrowed connection
+     */
+    public interface SQLFunction<T> {
+        T apply(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Opens new connections for the pool, and to replace broken ones
+     */
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    /**
+     * Opens a pool of new connections to the primary database through DBConnEstablisher
+     * @param size the number of connections
+     * @throws SQLException if a connection can't be opened
+     */
+    public ConnectionPool(int size) throws SQLException {
+        this(size, DBConnEstablisher::newConnection);
+    }
+
+    /**
+     * Opens a pool of new connections
+     * @param size the number of connections
+     * @param factory opens each connection, e.g. DBConnEstablisher::newReplicaConnection
+     * @throws SQLException if a connection can't be opened
+     */
+    public ConnectionPool(int size, ConnectionFactory factory) throws SQLException {
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.owned = true;
+        this.factory = factory;
+        try {
+            for (int i = 0; i < size; i++) {
+                Connection conn = factory.open();
+                all.add(conn);
+                releasedAt.put(conn, System.nanoTime());
+                idle.add(conn);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private ConnectionPool(Connection conn) {
+        this.idle = new ArrayBlockingQueue<>(1);
+        this.owned = false;
+        this.factory = null;
+        all.add(conn);
+        idle.add(conn);
+    }
+
+    /**
+     * Wraps a single connection the caller keeps ownership of, e.g. the console's shared one
+     * @param conn the connection
+     * @return a pool of that one connection, which doesn't close it
+     */
+    public static ConnectionPool of(Connection conn) {
+        return new ConnectionPool(conn);
+    }
+
+    /**
+     * Runs work on a borrowed connection, waiting for one to come free if they're all in use
+     * @param work the work
+     * @return what the work returned
+     * @throws SQLException if no connection comes free in time or the work fails
+     */
+    public <T> T call(SQLFunction<T> work) throws SQLException {
+        Connection current = held.get();
+        if (current != null) return work.apply(current);
+
+        Connection conn = borrow();
+        held.set(conn);
+        boolean failed = true;
+        try {
+            T result = work.apply(conn);
+            failed = false;
+            return result;
+        } finally {
+            held.remove();
+            release(conn, failed);
+        }
+    }
+
+    /**
+     * Runs work once on every connection in the pool, e.g. to warm them up, waiting for any
+     * that are in use
+     * @param work the work
+     * @throws SQLException if a connection doesn't come free in time or the work fails
+     */
+    public void onEach(SQLFunction<?> work) throws SQLException {
+        List<Connection> borrowed = new ArrayList<>();
+        boolean failed = true;
+        try {
+            for (int i = 0; i < all.size(); i++) {
+                Connection conn = borrow();
+                borrowed.add(conn);
+                work.apply(conn);
+            }
+            failed = false;
+        } finally {
+            for (Connection conn : borrowed) release(conn, failed);
+        }
+    }
+
+    /**
+     * @return if the current thread is running work on one of this pool's connections
+     */
+    public boolean isHeld() {
+        return held.get() != null;
+    }
+
+    /**
+     * @return the number of connections in the pool
+     */
+    public int size() {
+        return all.size();
+    }
+
+    private Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        Connection conn;
+        try {
+            conn = idle.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", e);
+        }
+        MetricsRegistry.get().time("dotify_pool_wait_seconds", System.nanoTime() - start);
+        if (conn == null) {
+            MetricsRegistry.get().count("dotify_pool_timeouts_total", 1);
+            throw new SQLException("No connection free after " + BORROW_TIMEOUT_MS + " ms");
+        }
+        if (owned && needsValidation(conn) && !conn.isValid(VALIDATION_TIMEOUT_SECONDS)) conn = replace(conn);
+        return conn;
+    }
+
+    /**
+     * @return if the connection failed last time or has been idle long enough for the server or
+     * a firewall to have dropped it
+     */
+    private boolean needsValidation(Connection conn) {
+        boolean failed = suspect.remove(conn);
+        Long since = releasedAt.get(conn);
+        return failed || since == null || System.nanoTime() - since >= VALIDATE_AFTER_NANOS;
+    }
+
+    private void release(Connection conn, boolean failed) {
+        try {
+            //leave no half finished transaction behind for the next borrower
+            if (conn.isClosed()) {
+                failed = true;
+            } else if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            failed = true;
+        }
+        //a broken connection is replaced when it's next borrowed
+        if (failed) suspect.add(conn);
+        releasedAt.put(conn, System.nanoTime());
+        idle.add(conn);
+    }
+
+    private Connection replace(Connection broken) throws SQLException {
+        releasedAt.remove(broken);   //so it's validated again if it goes back unreplaced
+        try {
+            broken.close();
+        } catch (SQLException ignored) {
+            //it's being thrown away anyway
+        }
+        Connection fresh;
+        try {
+            fresh = factory.open();
+        } catch (SQLException e) {
+            idle.add(broken);   //keep the pool its full size so the next borrower retries
+            throw e;
+        }
+        synchronized (all) {
+            all.set(all.indexOf(broken), fresh);
+        }
+        return fresh;
+    }
+
+    /**
+     * Closes every connection the pool opened
+     */
+    @Override
+    public void close() {
+        if (!owned) return;
+        synchronized (all) {
+            for (Connection conn : all) {
+                try {
+                    conn.close();
+                } catch (SQLException ignored) {
+                    //closing the rest matters more
+                }
+            }
+        }
+    }
+}
@@ -4,13 +4,35 @@ import com.jcraft.jsch.Session;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class DBConnEstablisher {
     private static Connection connection = null;
     private static Session session = null;
+    private static String url = null;
+    private static Properties props = null;
+    private static CompletableFuture<Connection> startup = null;
 
     private static void initialize() {
+        //-Ddotify.db.url=jdbc:postgresql://localhost/dotify connects directly, e.g. to a local test database
+        String directUrl = System.getProperty("dotify.db.url");
+        if (directUrl != null) {
+            try {
+                url = directUrl;
+                props = new Properties();
+                props.put("user", System.getProperty("dotify.db.user", "postgres"));
+                props.put("password", System.getProperty("dotify.db.password", ""));
+                connection = open("shared");
+                System.out.println("Database connection established");
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         int lport = 5432;
         String rhost = "starbug.cs.rit.edu";
         int rport = 5432;
@@ -19,6 +41,14 @@ public class DBConnEstablisher {
         String databaseName = "p320_35"; //change to your database name
 
         String driverName = "org.postgresql.Driver";
+        //load the driver while the SSH handshake is in flight
+        CompletableFuture<Void> driver = CompletableFuture.runAsync(() -> {
+            try {
+                Class.forName(driverName);
+            } catch (ClassNotFoundException e) {
+                throw new CompletionException(e);
+            }
+        });
         try {
             java.util.Properties config = new java.util.Properties();
             config.put("StrictHostKeyChecking", "no");
@@ -27,40 +57,152 @@ public class DBConnEstablisher {
             session.setPassword(password);
             session.setConfig(config);
             session.setConfig("PreferredAuthentications","publickey,keyboard-interactive,password");
+            DotifyEvents.TunnelSetup tunnelEvent = new DotifyEvents.TunnelSetup();
+            tunnelEvent.begin();
+            long tunnelStart = System.nanoTime();
             session.connect();
             System.out.println("Connected");
             int assigned_port = session.setPortForwardingL(lport, "localhost", rport);
             System.out.println("Port Forwarded");
+            MetricsRegistry.get().time("dotify_tunnel_setup_seconds", System.nanoTime() - tunnelStart);
+            tunnelEvent.host = rhost;
+            tunnelEvent.commit();
 
             //Assigned port could be different from 5432 but rarely happens
-            String url = "jdbc:postgresql://localhost:"+ assigned_port + "/" + databaseName;
+            url = "jdbc:postgresql://localhost:"+ assigned_port + "/" + databaseName;
 
             System.out.println("database Url: " + url);
-            Properties props = new Properties();
+            props = new Properties();
             props.put("user", user);
             props.put("password", password);
 
-            Class.forName(driverName);
-            connection = DriverManager.getConnection(url, props);
+            driver.join();
+            connection = open("shared");
             System.out.println("Database connection established");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Gets the shared database connection, connecting on first use. Statements run on it are
+     * recorded by StatementMetrics.
+     * @return the database connection
+     */
     public static Connection getConnection() {
-        if(connection == null) initialize();
-        return connection;
+        return connectAsync().join();
+    }
+
+    /**
+     * Starts connecting on a background thread, so the SSH handshake, port forward and JDBC
+     * connect can overlap with other startup work. Does nothing if that's already started.
+     * @return the shared connection once it's established, or null if connecting failed
+     */
+    public static synchronized CompletableFuture<Connection> connectAsync() {
+        if(startup == null) {
+            startup = CompletableFuture.supplyAsync(() -> {
+                initialize();
+                return connection;
+            }, task -> {
+                Thread thread = new Thread(task, "db-connect");
+                thread.setDaemon(true);
+                thread.start();
+            });
+        }
+        return startup;
+    }
+
+    /**
+     * Opens an additional connection through the same SSH tunnel, or to the same direct URL, for
+     * work that runs alongside the main connection. The caller is responsible for closing it.
+     * @return a new database connection
+     * @throws SQLException if the connection can't be opened
+     */
+    public static Connection newConnection() throws SQLException {
+        if(connectAsync().join() == null) throw new SQLException("Could not connect to the database");
+        return open("extra");
+    }
+
+    /**
+     * @return if a read replica is configured with -Ddotify.replica.url
+     */
+    public static boolean replicaConfigured() {
+        return System.getProperty("dotify.replica.url") != null;
+    }
+
+    /**
+     * Opens a connection to the read replica given by -Ddotify.replica.url, logging in as
+     * -Ddotify.replica.user and -Ddotify.replica.password, which default to the primary's
+     * direct connection settings. The caller is responsible for closing it.
+     * @return a new connection to the replica
+     * @throws SQLException if no replica is configured or the connection can't be opened
+     */
+    public static Connection newReplicaConnection() throws SQLException {
+        String replicaUrl = System.getProperty("dotify.replica.url");
+        if(replicaUrl == null) throw new SQLException("No replica configured, set -Ddotify.replica.url");
+        return open("replica", replicaUrl, directProps("dotify.replica"));
+    }
+
+    /**
+     * @return the JDBC URLs of the shards after the first, given comma separated by
+     * -Ddotify.shards; the usual database is always shard 0
+     */
+    public static List<String> shardUrls() {
+        String shards = System.getProperty("dotify.shards", "").trim();
+        return shards.isEmpty() ? List.of() : List.of(shards.split("\\s*,\\s*"));
+    }
+
+    /**
+     * Opens a connection to another shard, logging in as -Ddotify.shard.user and
+     * -Ddotify.shard.password, which default to the primary's direct connection settings. The
+     * caller is responsible for closing it.
+     * @param shardUrl one of shardUrls()
+     * @return a new connection to the shard
+     * @throws SQLException if the connection can't be opened
+     */
+    public static Connection newShardConnection(String shardUrl) throws SQLException {
+        return open("shard", shardUrl, directProps("dotify.shard"));
+    }
+
+    private static Properties directProps(String prefix) {
+        Properties direct = new Properties();
+        direct.put("user", System.getProperty(prefix + ".user", System.getProperty("dotify.db.user", "postgres")));
+        direct.put("password", System.getProperty(prefix + ".password", System.getProperty("dotify.db.password", "")));
+        return direct;
+    }
+
+    /**
+     * Opens an instrumented connection to the current URL, timing how long it takes
+     * @param kind "shared" for the main connection or "extra" for additional ones
+     * @return the new connection
+     * @throws SQLException if the connection can't be opened
+     */
+    private static Connection open(String kind) throws SQLException {
+        return open(kind, url, props);
+    }
+
+    private static Connection open(String kind, String url, Properties props) throws SQLException {
+        DotifyEvents.ConnectionAcquired event = new DotifyEvents.ConnectionAcquired();
+        event.begin();
+        long start = System.nanoTime();
+        Connection conn = DriverManager.getConnection(url, props);
+        MetricsRegistry.get().time("dotify_connection_acquire_seconds", System.nanoTime() - start, "kind", kind);
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.url = url;
+            event.commit();
+        }
+        return StatementMetrics.wrap(conn);
     }
 
     public static Session getSession() {
-        if(session == null) initialize();
+        connectAsync().join();
         return session;
     }
 
     /// Disconnects from the database
     public static void disconnect() throws SQLException {
-        if (!connection.isClosed()) {
+        if (connection != null && !connection.isClosed()) {
             System.out.println("Closing Database Connection");
             connection.close();
         }
@@ -0,0 +1,293 @@
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Exports user data to gzipped COPY files, one worker connection per table all reading the same
+// snapshot, and restores it in a single transaction per shard. With several shards (see
+// ShardRouter) each one is backed up to its own subdirectory, shard0, shard1 and so on.
+public class DataBackup {
+    private static final String EXTENSION = ".copy.gz";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long REPORT_INTERVAL_MS = 2000;
+
+    //restore order, tables in the same phase only depend on tables in earlier phases
+    private static final String[][] PHASES = {
+            {"user_t"},
+            {"playlist", "following", "user_listens_song", "user_listens_daily"},
+            {"song_on_playlist"}
+    };
+
+    private static final Map<String, AtomicLong> progress = new ConcurrentHashMap<>();
+
+    /**
+     * One shard's database and the directory its backup goes in
+     */
+    private record Shard(String name, Path dir, ConnectionPool.ConnectionFactory connections) {
+        Path file(String table) {
+            return dir.resolve(table + EXTENSION);
+        }
+
+        //what the progress report calls a table of this shard
+        String label(String table) {
+            return name.isEmpty() ? table : name + "/" + table;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("export") || args[0].equals("restore"))) {
+            System.out.println("Usage: DataBackup export|restore <directory> [workers]");
+            System.out.println("restore replaces the current contents of the backed up tables, workers only apply to export");
+            return;
+        }
+        Path dir = Paths.get(args[1]);
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        DBConnEstablisher.getConnection();  //opens the tunnel the workers connect through
+        System.out.println("Connected to database");
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        long start = System.currentTimeMillis();
+        reporter.scheduleAtFixedRate(() -> report(start), REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        try {
+            List<Shard> shards = shards(dir);
+            if (args[0].equals("export")) {
+                for (Shard shard : shards) {
+                    Files.createDirectories(shard.dir());
+                    exportAll(pool, shard);
+                }
+            } else {
+                restoreAll(shards);
+            }
+        } finally {
+            reporter.shutdownNow();
+            pool.shutdown();
+        }
+        report(start);
+        System.out.println("Finished in " + (System.currentTimeMillis() - start) / 1000.0 + "s");
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * @return the usual database backed up to dir when it's the only shard, otherwise every
+     * shard backed up to its own subdirectory of dir
+     */
+    private static List<Shard> shards(Path dir) {
+        List<String> urls = DBConnEstablisher.shardUrls();
+        if (urls.isEmpty()) return List.of(new Shard("", dir, DBConnEstablisher::newConnection));
+        List<Shard> shards = new ArrayList<>();
+        shards.add(new Shard("shard0", dir.resolve("shard0"), DBConnEstablisher::newConnection));
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            shards.add(new Shard("shard" + (i + 1), dir.resolve("shard" + (i + 1)),
+                    () -> DBConnEstablisher.newShardConnection(url)));
+        }
+        return shards;
+    }
+
+    /**
+     * Exports every table of a shard in parallel. The workers all import the snapshot of one
+     * coordinating transaction, so the files agree with each other as of a single moment. Each
+     * shard has its own snapshot, but a user's data is all on one shard.
+     */
+    private static void exportAll(ExecutorService pool, Shard shard) throws Exception {
+        List<String> tables = new ArrayList<>();
+        for (String[] phase : PHASES) tables.addAll(Arrays.asList(phase));
+        try (Connection coordinator = shard.connections().open()) {
+            coordinator.setAutoCommit(false);
+            coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            ResultSet rs = coordinator.createStatement().executeQuery("SELECT pg_export_snapshot()");
+            rs.next();
+            String snapshot = rs.getString(1);
+            try {
+                //the snapshot can only be imported while the transaction that exported it is open
+                runAll(pool, shard, tables, table -> export(shard, table, snapshot));
+            } finally {
+                coordinator.rollback();
+            }
+        }
+    }
+
+    /**
+     * Streams one table as of a snapshot to a gzipped file with COPY TO STDOUT
+     * @return the number of rows written
+     */
+    private static long export(Shard shard, String table, String snapshot) throws SQLException, IOException {
+        try (Connection conn = shard.connections().open();
+             OutputStream out = new GZIPOutputStream(new CountingOutputStream(
+                     new FileOutputStream(shard.file(table).toFile()), counter(shard.label(table))), BUFFER_SIZE)) {
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            conn.createStatement().execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+            long rows = copy.copyOut("COPY " + copySource(conn, table) + " TO STDOUT", out);
+            conn.rollback();
+            return rows;
+        }
+    }
+
+    /**
+     * COPY TO can't read a partitioned table such as user_listens_song directly, only a query
+     * over it
+     * @return what to name in COPY ... TO STDOUT for a table
+     */
+    private static String copySource(Connection conn, String table) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM pg_partitioned_table pt, pg_class c " +
+                "WHERE pt.partrelid = c.oid AND c.relname = ? AND pg_table_is_visible(c.oid)");
+        ps.setString(1, table);
+        return ps.executeQuery().next() ? "(SELECT * FROM " + table + ")" : table;
+    }
+
+    /**
+     * Replaces every backed up table with its file, along with the stats derived from them. Each
+     * shard is restored in one transaction on one connection, and the shards only commit once
+     * every one of them has loaded, so a missing file or failed COPY leaves the databases as they
+     * were. As in ShardRouter.inTransaction there's no two phase commit, so a shard failing to
+     * commit after another has can still leave the restore applied on some shards only.
+     */
+    private static void restoreAll(List<Shard> shards) throws SQLException, IOException {
+        List<String> tables = new ArrayList<>();
+        for (String[] phase : PHASES) tables.addAll(Arrays.asList(phase));
+        for (Shard shard : shards) {
+            for (String table : tables) {
+                Path file = shard.file(table);
+                if (!Files.isReadable(file)) throw new FileNotFoundException("No backup of " + table + " at " + file);
+            }
+        }
+
+        List<Connection> conns = new ArrayList<>();
+        try {
+            for (Shard shard : shards) {
+                Connection conn = shard.connections().open();
+                conns.add(conn);
+                new PlaylistStats(conn).ensureTable();
+                new ListenHistory(conn).ensureSchema();
+                conn.setAutoCommit(false);
+                conn.createStatement().execute("TRUNCATE " + String.join(", ", tables) + ", playlist_stats");
+                for (String table : tables) {  //in phase order, so parents are loaded before children
+                    System.out.println(shard.label(table) + ": " + restore(conn, shard, table) + " rows");
+                }
+                int[] repaired = new PlaylistStats(conn).verifyAndRepair();
+                System.out.println(shard.label("playlist_stats") + ": rebuilt " + repaired[0]);
+            }
+            for (Connection conn : conns) conn.commit();
+        } catch (SQLException | IOException | RuntimeException e) {
+            for (Connection conn : conns) {
+                try {
+                    if (!conn.getAutoCommit()) conn.rollback();
+                } catch (SQLException ignored) {
+                    //rolling back the rest matters more
+                }
+            }
+            throw e;
+        } finally {
+            for (Connection conn : conns) {
+                try {
+                    conn.close();
+                } catch (SQLException ignored) {
+                    //closing the rest matters more
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a gzipped file written by export back into its table with COPY FROM STDIN
+     * @return the number of rows loaded
+     */
+    private static long restore(Connection conn, Shard shard, String table) throws SQLException, IOException {
+        try (InputStream in = new GZIPInputStream(new CountingInputStream(
+                new FileInputStream(shard.file(table).toFile()), counter(shard.label(table))), BUFFER_SIZE)) {
+            CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+            return copy.copyIn("COPY " + table + " FROM STDIN", in);
+        }
+    }
+
+    private interface TableTask {
+        long run(String table) throws SQLException, IOException;
+    }
+
+    private static void runAll(ExecutorService pool, Shard shard, List<String> tables, TableTask task) throws Exception {
+        Map<String, Future<Long>> results = new LinkedHashMap<>();
+        for (String table : tables) results.put(shard.label(table), pool.submit(() -> task.run(table)));
+        for (Map.Entry<String, Future<Long>> result : results.entrySet()) {
+            try {
+                System.out.println(result.getKey() + ": " + result.getValue().get() + " rows");
+            } catch (ExecutionException e) {
+                throw new SQLException("Failed copying " + result.getKey(), e.getCause());
+            }
+        }
+    }
+
+    private static AtomicLong counter(String label) {
+        return progress.computeIfAbsent(label, t -> new AtomicLong());
+    }
+
+    /**
+     * Prints how many compressed bytes each table has moved so far and the overall throughput
+     */
+    private static void report(long start) {
+        double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+        long total = 0;
+        StringBuilder line = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> entry : progress.entrySet()) {
+            total += entry.getValue().get();
+            line.append(String.format("%s %.1fMB  ", entry.getKey(), entry.getValue().get() / 1e6));
+        }
+        System.out.printf("%s| %.1fMB at %.2fMB/s%n", line, total / 1e6, total / 1e6 / seconds);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(new BufferedOutputStream(out, BUFFER_SIZE));
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(new BufferedInputStream(in, BUFFER_SIZE));
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count.addAndGet(n);
+            return n;
+        }
+    }
+}
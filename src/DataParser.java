@@ -1,5 +1,6 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.sql.*;
 import java.sql.Date;
 import java.util.*;
@@ -7,6 +8,8 @@ import java.util.*;
 // Parses song data from albums_songs.txt
 public class DataParser {
     private static Connection conn;
+    //table -> {rows inserted, nanoseconds spent inserting}
+    private static final Map<String, long[]> ingested = new LinkedHashMap<>();
 
     public static void main(String[] args) throws SQLException {
         connect();  //connect to database
@@ -17,12 +20,12 @@ public class DataParser {
             in = new Scanner(new File("./input/albums_songs.txt"));
 
             PreparedStatement ps_song = conn.prepareStatement("INSERT INTO song VALUES(?, ?, ?, ?, ?, ?)");
-            PreparedStatement ps_artist = conn.prepareStatement("INSERT INTO artist VALUES(?)");
+            PreparedStatement ps_artist = conn.prepareStatement("INSERT INTO artist(artist_name, artist_id) VALUES(?, ?)");
             PreparedStatement ps_album = conn.prepareStatement("INSERT INTO album VALUES(?, ?, ?)");
             PreparedStatement ps_genre = conn.prepareStatement("INSERT INTO genre VALUES(?, ?)");
-            PreparedStatement ps_song_artist = conn.prepareStatement("INSERT INTO song_by_artist VALUES(?, ?)");
+            PreparedStatement ps_song_artist = conn.prepareStatement("INSERT INTO song_by_artist(song_id, artist_id) VALUES(?, ?)");
             PreparedStatement ps_song_album = conn.prepareStatement("INSERT INTO song_on_album VALUES(?, ?, ?)");
-            PreparedStatement ps_album_artist = conn.prepareStatement("INSERT INTO album_by_artist VALUES(?, ?)");
+            PreparedStatement ps_album_artist = conn.prepareStatement("INSERT INTO album_by_artist(album_id, artist_id) VALUES(?, ?)");
             PreparedStatement ps_album_genre = conn.prepareStatement("INSERT INTO album_genres VALUES(?, ?)");
 
             Hashtable artists = new Hashtable();
@@ -41,7 +44,7 @@ public class DataParser {
             in.nextLine();
             while(in.hasNext()) {
                 String line = in.nextLine();
-                String[] fields = line.split("\t");
+                String[] fields = parse_line(line);
                 //fields[0] - song_id
                 //fields[1] - song_title
                 //fields[2] - length
@@ -84,7 +87,8 @@ public class DataParser {
                 if (new_artist) {
                     new_artist = false;
                     ps_artist.setString(1, fields[5]); //artist_name
-                    ps_artist.execute();
+                    ps_artist.setInt(2, (int) artists.get(fields[5])); //artist_id
+                    insert("artist", ps_artist);
                 }
 
                 //album
@@ -94,7 +98,7 @@ public class DataParser {
                     int album_date[] = parse_date(fields[7]);
                     ps_album.setDate(2, new Date(album_date[0], album_date[1], album_date[2])); // release_date
                     ps_album.setString(3, fields[6]); // name
-                    ps_album.execute();
+                    insert("album", ps_album);
                 }
 
                 //genre
@@ -102,7 +106,7 @@ public class DataParser {
                     new_genre = false;
                     ps_genre.setInt(1, (int) genres.get(fields[4])); //genre_id
                     ps_genre.setString(2, fields[4]); //genre_name
-                    ps_genre.execute();
+                    insert("genre", ps_genre);
                 }
 
                 //song
@@ -113,26 +117,26 @@ public class DataParser {
                 ps_song.setDate(4, new Date(song_date[0], song_date[1], song_date[2]));
                 ps_song.setInt(5, (int) genres.get(fields[4])); //genre_id
                 ps_song.setInt(6, 0);
-                ps_song.execute();
+                insert("song", ps_song);
 
                 //song_artist
                 ps_song_artist.setInt(1, Integer.valueOf(fields[0])); //song_id
-                ps_song_artist.setString(2, fields[5]); //artist_name
-                ps_song_artist.execute();
+                ps_song_artist.setInt(2, (int) artists.get(fields[5])); //artist_id
+                insert("song_by_artist", ps_song_artist);
 
                 //song_album
                 ps_song_album.setInt(1, Integer.valueOf(fields[0])); //song_id
                 ps_song_album.setInt(2, (int) albums.get(fields[6])); //album_id
                 ps_song_album.setInt(3, Integer.valueOf(fields[8])); //track_num
-                ps_song_album.execute();
+                insert("song_on_album", ps_song_album);
 
                 //album_artist
                 if (!album_artists.get(fields[6]).contains(fields[5])) {
                     album_artists.get(fields[6]).add(fields[5]);
 
                     ps_album_artist.setInt(1, (int) albums.get(fields[6])); //album_id
-                    ps_album_artist.setString(2, fields[5]); //artist_name
-                    ps_album_artist.execute();
+                    ps_album_artist.setInt(2, (int) artists.get(fields[5])); //artist_id
+                    insert("album_by_artist", ps_album_artist);
                 }
 
                 //album_genre
@@ -141,7 +145,7 @@ public class DataParser {
 
                     ps_album_genre.setInt(1, (int) albums.get(fields[6])); //album_id
                     ps_album_genre.setInt(2, (int) genres.get(fields[4])); //genre_id
-                    ps_album_genre.execute();
+                    insert("album_genres", ps_album_genre);
                 }
 
 
@@ -152,13 +156,57 @@ public class DataParser {
         catch (FileNotFoundException e) {
             System.out.println("ERROR: File Not Found");
         }
+        reportIngestion();
         System.out.println("Data uploaded to database");
 
+        //every shard has its own copy of the catalog, see ShardRouter
+        try (ShardRouter shards = ShardRouter.open(ConnectionPool.of(conn))) {
+            if (shards.size() > 1) System.out.println("Copied " + shards.syncCatalog() + " catalog rows to the other shards");
+        }
+
+        CatalogSnapshot.ensureVersionTable(conn);
+        long version = CatalogSnapshot.bumpVersion(conn);
+        try {
+            CatalogSnapshot.write(conn, CatalogSnapshot.PATH, version);
+            System.out.println("Wrote catalog snapshot " + CatalogSnapshot.PATH + " at version " + version);
+        } catch (IOException e) {
+            //processes write their own when they find it missing
+            System.out.println("Could not write catalog snapshot: " + e.getMessage());
+        }
+
         DBConnEstablisher.disconnect();   //end connection cleanly
         System.out.println("Disconnecting from database");
     }
 
-    private static int[] parse_date(String sdate) {
+    private static void insert(String table, PreparedStatement ps) throws SQLException {
+        long start = System.nanoTime();
+        ps.execute();
+        long[] totals = ingested.computeIfAbsent(table, t -> new long[2]);
+        totals[0]++;
+        totals[1] += System.nanoTime() - start;
+    }
+
+    /// Records the rows and insert time of each table as metrics and flight recorder events
+    private static void reportIngestion() {
+        for (Map.Entry<String, long[]> table : ingested.entrySet()) {
+            long rows = table.getValue()[0];
+            long nanos = table.getValue()[1];
+            System.out.println(table.getKey() + ": " + rows + " rows in " + nanos / 1_000_000 + " ms");
+            MetricsRegistry.get().count("dotify_ingested_rows_total", rows, "table", table.getKey());
+            MetricsRegistry.get().count("dotify_ingest_nanoseconds_total", nanos, "table", table.getKey());
+            DotifyEvents.TableIngested event = new DotifyEvents.TableIngested();
+            event.table = table.getKey();
+            event.rows = rows;
+            event.insertNanos = nanos;
+            event.commit();
+        }
+    }
+
+    static String[] parse_line(String line) {
+        return line.split("\t");
+    }
+
+    static int[] parse_date(String sdate) {
         int date = Integer.valueOf(sdate);
         int year = (int) (date / 365.25);
         int month = (date % 365) / 12;
@@ -0,0 +1,119 @@
+/* Keeps slow read-only results, like charts and recommendations, answering within a time budget.
+ * Each request runs its query under a QueryDeadline of the budget. If that doesn't finish in
+ * time it's cancelled, the last result computed for the same key is served along with its age,
+ * and the query runs again in the background with a much longer deadline to replace it.
+ * Requests made while that refresh is running wait for it for up to the budget before falling
+ * back to the cached result, so a busy database gets one slow query per key rather than one per
+ * impatient user.
+ */
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+public class DeadlineCache {
+    private static final long REFRESH_TIMEOUT_MS = Long.getLong("dotify.refreshTimeoutMs", 60_000);
+
+    private final long budgetMillis;
+    private final Map<String, Result<?>> results = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<?>> refreshing = new ConcurrentHashMap<>();
+    private final ExecutorService refreshThreads = Executors.newCachedThreadPool(work -> {
+        Thread thread = new Thread(work, "cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A result and when it was computed
+     * @param value the result, or null if nothing has been computed yet
+     * @param computedAt when it was computed, in System.currentTimeMillis
+     * @param stale if it's an earlier result served because the query ran out of time
+     */
+    public record Result<T>(T value, long computedAt, boolean stale) {
+        /**
+         * @return how long ago the result was computed, in milliseconds
+         */
+        public long ageMillis() {
+            return System.currentTimeMillis() - computedAt;
+        }
+    }
+
+    /**
+     * @param budgetMillis how long a request may wait for a fresh result
+     */
+    public DeadlineCache(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Computes a result within the budget, or serves the last one computed for the key
+     * @param key what identifies the result, including whose it is
+     * @param work computes the result
+     * @return the result, stale if it's an earlier one, or one with a null value if nothing was
+     * ready in time and nothing had been computed before; a refresh is running for both
+     * @throws SQLException if the work fails other than by running out of time
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Result<T> get(String key, QueryDeadline.SQLSupplier<T> work) throws SQLException {
+        try {
+            refresh(key, work).get(budgetMillis, TimeUnit.MILLISECONDS);
+            return (Result<T>) results.get(key);
+        } catch (TimeoutException e) {
+            //still running, fall back to the last result
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException cause) throw cause;
+            throw new SQLException("Could not compute " + key, e.getCause());
+        }
+        Result<T> last = (Result<T>) results.get(key);
+        MetricsRegistry.get().count("dotify_stale_results_served_total", 1, "result", last == null ? "none" : "stale");
+        return last == null ? new Result<>(null, System.currentTimeMillis(), true) :
+                new Result<>(last.value(), last.computedAt(), true);
+    }
+
+    /**
+     * Starts computing a result, unless that's already under way. The work runs on a background
+     * thread, so a caller never waits longer than it chooses to even if the work is blocked on
+     * something other than a statement.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> refresh(String key, QueryDeadline.SQLSupplier<T> work) {
+        CompletableFuture<T> refresh = new CompletableFuture<>();
+        CompletableFuture<T> running = (CompletableFuture<T>) refreshing.putIfAbsent(key, refresh);
+        if (running != null) return running;
+        refreshThreads.execute(() -> {
+            try {
+                T value;
+                try {
+                    value = QueryDeadline.within(budgetMillis, work);
+                } catch (SQLTimeoutException e) {
+                    //the caller has moved on with the last result, this one is for next time
+                    value = QueryDeadline.within(REFRESH_TIMEOUT_MS, work);
+                }
+                results.put(key, new Result<>(value, System.currentTimeMillis(), false));
+                refresh.complete(value);
+            } catch (SQLException | RuntimeException e) {
+                refresh.completeExceptionally(e);
+            } finally {
+                refreshing.remove(key, refresh);
+            }
+        });
+        return refresh;
+    }
+
+    /**
+     * Describes how old a result is for showing to a user
+     * @param millis the result's age
+     * @return e.g. "45 seconds", "1 minute" or "3 hours"
+     */
+    public static String describeAge(long millis) {
+        long seconds = Math.max(millis / 1000, 1);
+        if (seconds < 60) return seconds + (seconds == 1 ? " second" : " seconds");
+        long minutes = seconds / 60;
+        if (minutes < 60) return minutes + (minutes == 1 ? " minute" : " minutes");
+        long hours = minutes / 60;
+        return hours + (hours == 1 ? " hour" : " hours");
+    }
+}
@@ -0,0 +1,72 @@
+/* Java Flight Recorder events for Dotify's own operations, so a recording can line up CPU,
+ * allocation and GC activity with what the user was doing. Events cost next to nothing unless
+ * a recording with them enabled is running, e.g.
+ *   java -XX:StartFlightRecording:filename=dotify.jfr DotifyMain
+ */
+
+import jdk.jfr.*;
+
+public final class DotifyEvents {
+    private DotifyEvents() {}
+
+    @Name("dotify.MenuAction")
+    @Label("Menu Action")
+    @Category("Dotify")
+    @Description("A main menu action from selection until it returns to the menu")
+    public static class MenuAction extends Event {
+        @Label("Action")
+        public String action;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("dotify.TunnelSetup")
+    @Label("SSH Tunnel Setup")
+    @Category("Dotify")
+    @Description("Connecting the SSH session and forwarding the database port")
+    public static class TunnelSetup extends Event {
+        @Label("Host")
+        public String host;
+    }
+
+    @Name("dotify.ConnectionAcquired")
+    @Label("Connection Acquired")
+    @Category("Dotify")
+    @Description("Opening a database connection")
+    public static class ConnectionAcquired extends Event {
+        @Label("Kind")
+        public String kind;
+
+        @Label("URL")
+        public String url;
+    }
+
+    @Name("dotify.TableIngested")
+    @Label("Table Ingested")
+    @Category("Dotify")
+    @Description("All rows DataParser inserted into one table, with the time spent inserting them")
+    public static class TableIngested extends Event {
+        @Label("Table")
+        public String table;
+
+        @Label("Rows")
+        public long rows;
+
+        @Label("Insert Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long insertNanos;
+    }
+
+    @Name("dotify.ListenRecorded")
+    @Label("Listen Recorded")
+    @Category("Dotify")
+    @Description("A user listening to a song")
+    public static class ListenRecorded extends Event {
+        @Label("User")
+        public String username;
+
+        @Label("Song")
+        public int songID;
+    }
+}
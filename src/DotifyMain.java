@@ -6,15 +6,41 @@
  *  @author Ryan Nowak
  */
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class DotifyMain {
+    private static final Path METRICS_FILE = Paths.get(System.getProperty("dotify.metricsFile", "dotify_metrics.prom"));
+    private static final long METRICS_DUMP_SECONDS = 15;
+    //one connection for the user and one for background warmup
+    private static final int POOL_SIZE = 2;
+
+    private static volatile ShardRouter shards;
+    private static volatile DotifyOperations ops;
+
     public static void main(String[] args) throws SQLException {
         try {
-            PostgresLogic pl = new PostgresLogic(DBConnEstablisher.getConnection());
+            long launched = System.nanoTime();
+            MetricsRegistry.get().registerMBean();
+            MetricsRegistry.get().startDumping(METRICS_FILE, METRICS_DUMP_SECONDS);
 
+            //connect, prepare and warm up in the background while the user reads the menu
+            CompletableFuture<DotifyOperations> ready = DBConnEstablisher.connectAsync()
+                    .thenApply(conn -> startup(conn, launched));
+            ready.thenAcceptAsync(ops -> warmUp(ops, launched));
+            PostgresLogic pl = new PostgresLogic(ready);
+
+            boolean firstMenu = true;
             while (true) {
                 System.out.println("Welcome to Dotify!");
+                if (firstMenu) {
+                    MetricsRegistry.get().time("dotify_startup_seconds", System.nanoTime() - launched, "phase", "menu");
+                    firstMenu = false;
+                }
                 boolean loggedIn = false;
                 while (!loggedIn) {
                     String loginMenu = "0. Login \n1. Register \n2. Quit\n";
@@ -44,18 +70,18 @@ public class DotifyMain {
                         10. View all followers
                         11. Site recommendations""", 12);
                     switch (action) {
-                        case 0 -> pl.logout();
-                        case 1 -> pl.searchSong();
-                        case 2 -> pl.viewPlaylist();
-                        case 3 -> pl.createPlaylist();
-                        case 4 -> pl.editPlaylist();
-                        case 5 -> pl.viewAllPlaylists();
-                        case 6 -> pl.viewProfile();
-                        case 7 -> pl.followFriend();
-                        case 8 -> pl.unfollowFriend();
-                        case 9 -> pl.viewFollows();
-                        case 10 -> pl.viewFollowers();
-                        case 11 -> pl.statsSubMenu();
+                        case 0 -> menuAction("logout", pl::logout);
+                        case 1 -> menuAction("searchSong", pl::searchSong);
+                        case 2 -> menuAction("viewPlaylist", pl::viewPlaylist);
+                        case 3 -> menuAction("createPlaylist", pl::createPlaylist);
+                        case 4 -> menuAction("editPlaylist", pl::editPlaylist);
+                        case 5 -> menuAction("viewAllPlaylists", pl::viewAllPlaylists);
+                        case 6 -> menuAction("viewProfile", pl::viewProfile);
+                        case 7 -> menuAction("followFriend", pl::followFriend);
+                        case 8 -> menuAction("unfollowFriend", pl::unfollowFriend);
+                        case 9 -> menuAction("viewFollows", pl::viewFollows);
+                        case 10 -> menuAction("viewFollowers", pl::viewFollowers);
+                        case 11 -> menuAction("statsSubMenu", pl::statsSubMenu);
                     }
                 }
             }
@@ -66,15 +92,90 @@ public class DotifyMain {
         }
     }
 
+    /**
+     * Makes sure the schema is current and opens the pool the console's operations run on, with
+     * the hot statements already prepared on every connection, along with the replica's and the
+     * other shards' if there are any
+     * @param conn the shared connection, or null if connecting failed
+     * @param launched when the program started, in System.nanoTime
+     * @return the operations
+     */
+    private static DotifyOperations startup(Connection conn, long launched) {
+        try {
+            if (conn == null) throw new SQLException("Could not connect to the database");
+            MetricsRegistry.get().time("dotify_startup_seconds", System.nanoTime() - launched, "phase", "connected");
+            CatalogSnapshot.ensureVersionTable(conn);
+            shards = ShardRouter.open(new ConnectionPool(POOL_SIZE));
+            shards.scatter(false, DotifyOperations::ensureSchema);
+            shards.onEach(DotifyOperations::prepareHotStatements);
+            MetricsRegistry.get().time("dotify_startup_seconds", System.nanoTime() - launched, "phase", "ready");
+            ops = new DotifyOperations(shards);
+            return ops;
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Builds the indexes and primes the charts, leaving them to be built on first use if it fails
+     * @param ops the operations to warm up
+     * @param launched when the program started, in System.nanoTime
+     */
+    private static void warmUp(DotifyOperations ops, long launched) {
+        try {
+            ops.warmUp();
+            MetricsRegistry.get().time("dotify_startup_seconds", System.nanoTime() - launched, "phase", "warm");
+        } catch (SQLException e) {
+            System.err.println("Background warmup failed: " + e.getMessage());
+        }
+    }
+
     /**
      * Shuts down the entire program
      * @param pl the matching PostgresLogic to shutdown
      * @throws SQLException if database access goes awry
      */
     public static void quit(PostgresLogic pl) throws SQLException {
+        try {
+            StatementMetrics.writeReport(Paths.get(System.getProperty("dotify.queryReport", "query_report.txt")));
+        } catch (IOException e) {
+            System.err.println("Could not write query report: " + e.getMessage());
+        }
+        try {
+            MetricsRegistry.get().writePrometheus(METRICS_FILE);
+        } catch (IOException e) {
+            System.err.println("Could not write metrics: " + e.getMessage());
+        }
+        if (ops != null) ops.close();
+        if (shards != null) shards.close();
         DBConnEstablisher.disconnect();   //end connection cleanly
         pl.closePL();
         System.out.println("Bye!");
         System.exit(0);
     }
+
+    /**
+     * Runs a main menu action, recording it as a flight recorder event and in the metrics
+     * @param name the action's name
+     * @param action the PostgresLogic method carrying it out
+     * @throws SQLException if database access goes awry
+     */
+    private static void menuAction(String name, SQLWork action) throws SQLException {
+        DotifyEvents.MenuAction event = new DotifyEvents.MenuAction();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            action.run();
+        } catch (SQLException | RuntimeException e) {
+            event.failed = true;
+            MetricsRegistry.get().count("dotify_menu_action_failures_total", 1, "action", name);
+            throw e;
+        } finally {
+            MetricsRegistry.get().time("dotify_menu_action_seconds", System.nanoTime() - start, "action", name);
+            if (event.shouldCommit()) {
+                event.action = name;
+                event.commit();
+            }
+        }
+    }
 }
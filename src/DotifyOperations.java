@@ -0,0 +1,1088 @@
+/* Everything Dotify can do, as plain calls that take the acting user as a parameter and return
+ * data instead of printing it. The console (PostgresLogic) and the HTTP service (DotifyService)
+ * are both clients of this class, so they can't drift apart.
+ *
+ * One instance is shared by every session. Connections are borrowed from a ConnectionPool for
+ * each call, and the in-memory indexes are built once and kept up to date for all users. Charts,
+ * profiles, recommendations and the indexes behind them may be read from a replica, see
+ * RoutingDataSource; everything else reads and writes the primary.
+ *
+ * User data may be split over several shards, see ShardRouter. Work on a user's data runs on
+ * their shard, and the indexes are loaded from all of them. The charts and profile artist rankings
+ * are computed in memory by ListenColumns rather than by the database.
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.sql.Date;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class DotifyOperations implements AutoCloseable {
+    public static final int PROFILE_ARTISTS = 10;
+    public static final int RECOMMENDATIONS = 5;
+
+    //statements run early in most sessions, described on every connection before they're needed
+    private static final List<String> HOT_STATEMENTS = List.of(PostgresLogic.SQL_USER_BY_USERNAME,
+            PostgresLogic.SQL_RECORD_LISTEN, PostgresLogic.SQL_COUNT_LISTEN,
+            PostgresLogic.SQL_PLAYLIST_EXISTS, PostgresLogic.SQL_PLAYLISTS_WITH_STATS,
+            PostgresLogic.SQL_PLAYLIST_SONG_DETAILS, PostgresLogic.searchSQL(0, 0));
+
+    private final ShardRouter shards;
+    private final AccessTracker accesses;
+    //the indexes are built on first use or by warmUp, once for every session. The follow graph
+    //answers "am I following them" right after a follow, so it's always loaded from the primary.
+    private final Lazy<FollowGraph> followGraph = new Lazy<>(false, FollowGraph::load);
+    private final Lazy<FriendChartService> friendCharts = new Lazy<>(true,
+            conns -> FriendChartService.load(conns, followGraph()));
+    private final Lazy<SimilarUserIndex> similarUsers = new Lazy<>(true, SimilarUserIndex::load);
+    private final Lazy<CatalogSnapshot> catalog = new Lazy<>(true, conns -> CatalogSnapshot.open(conns.get(0)));
+    private final Lazy<TasteVectorIndex> tasteVectors = new Lazy<>(true,
+            conns -> TasteVectorIndex.load(conns, catalog()));
+    private final Lazy<ListenColumns> listenColumns = new Lazy<>(true,
+            conns -> ListenColumns.load(conns, catalog()));
+    //checked before most calls touch the database, so it must see registrations made a moment ago
+    private final Lazy<IdentityIndex> identity = new Lazy<>(false, IdentityIndex::load);
+    private final AtomicBoolean rebuildingIdentity = new AtomicBoolean();
+    private final AtomicBoolean refreshingListens = new AtomicBoolean();
+
+    /**
+     * An index loaded from the database on first use. Each has its own lock, so a session
+     * needing one index doesn't wait on another being built.
+     */
+    private class Lazy<T> {
+        private final boolean analytic;
+        private final ShardRouter.ShardFunction<T> loader;
+        private volatile T value;
+
+        Lazy(boolean analytic, ShardRouter.ShardFunction<T> loader) {
+            this.analytic = analytic;
+            this.loader = loader;
+        }
+
+        T get() throws SQLException {
+            T loaded = value;
+            if (loaded != null) return loaded;
+            synchronized (this) {
+                if (value == null) value = shards.onAll(analytic, loader);
+                return value;
+            }
+        }
+
+        /**
+         * @return the index, or null if nothing has needed it yet
+         */
+        T ifLoaded() {
+            return value;
+        }
+    }
+
+    /**
+     * A song with everything shown about it in a list of songs
+     */
+    public record Song(int songID, String title, String artistName, int albumID, String albumName, int length,
+                       Date releaseDate, int listens, String genreName) {
+        /**
+         * Reads the current row of a song query selecting the columns of searchSQL
+         */
+        static Song from(ResultSet rs) throws SQLException {
+            return new Song(rs.getInt("song_id"), rs.getString("title"), rs.getString("artist_name"),
+                    rs.getInt("album_id"), rs.getString("name"), rs.getInt("length"), rs.getDate("release_date"),
+                    rs.getInt("num_listens"), rs.getString("genre_name"));
+        }
+
+        /**
+         * @return this song with one more listen
+         */
+        public Song listened() {
+            return withListens(listens + 1);
+        }
+
+        /**
+         * @return this song with a different listen count
+         */
+        public Song withListens(int count) {
+            return new Song(songID, title, artistName, albumID, albumName, length, releaseDate, count, genreName);
+        }
+    }
+
+    /**
+     * A playlist with its song count and total length in seconds
+     */
+    public record Playlist(String name, int numSongs, long totalLength) {}
+
+    /**
+     * A song or genre with its number of listens in one of the charts
+     */
+    public record ChartEntry(String name, long listens) {}
+
+    /**
+     * A user's profile, with their top artists by listens, by playlist occurrences and by both
+     */
+    public record Profile(String username, int playlists, int following, int followers,
+                          List<PostgresLogic.ArtistTotal> byListens, List<PostgresLogic.ArtistTotal> byPlaylists,
+                          List<PostgresLogic.ArtistTotal> combined) {}
+
+    /**
+     * Recommended songs with the reason they were picked, or no songs and the reason there are none
+     */
+    public record Recommendations(String reason, List<Song> songs) {}
+
+    /**
+     * One user listening to one song, for recording many at once
+     */
+    public record Listen(String username, int songID) {}
+
+    /**
+     * One user following another, for changing many follows at once
+     */
+    public record Follow(String follower, String followed) {}
+
+    /**
+     * Runs everything on one pool of connections to the primary
+     * @param pool the pool
+     */
+    public DotifyOperations(ConnectionPool pool) {
+        this(new RoutingDataSource(pool, null));
+    }
+
+    /**
+     * Runs analytic work on a replica when one is usable, see RoutingDataSource
+     * @param routing the primary and replica pools
+     */
+    public DotifyOperations(RoutingDataSource routing) {
+        this(new ShardRouter(List.of(routing)));
+    }
+
+    /**
+     * Runs each user's work on their shard, see ShardRouter
+     * @param shards the shards
+     */
+    public DotifyOperations(ShardRouter shards) {
+        this.shards = shards;
+        this.accesses = new AccessTracker(shards);
+    }
+
+    /**
+     * Writes the access dates still waiting to be recorded, see AccessTracker. Call before closing
+     * the shards.
+     */
+    @Override
+    public void close() {
+        accesses.close();
+    }
+
+    //region Users
+
+    /**
+     * Checks a user's password, recording the access in the background if it matches
+     * @param username the user
+     * @param password the password they entered
+     * @return if the user exists and the password matches
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean login(String username, String password) throws SQLException {
+        boolean matched = shards.forUser(username).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_USER_BY_USERNAME);
+            ps.setString(1, username);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) return false;
+            identity().remember(IdentityIndex.UserRecord.from(rs));
+            return rs.getString("password").equals(password);
+        });
+        if (matched) accesses.touched(username);
+        return matched;
+    }
+
+    /**
+     * Creates a user
+     * @return false if the username or email is already taken
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean register(String username, String password, String first, String last, String email)
+            throws SQLException {
+        //an email may be on any shard, but the username can only be taken on its own
+        if (usernameForEmail(email) != null) return false;
+        Date creationDate = new Date(System.currentTimeMillis());
+        boolean registered = shards.forUser(username).call(conn -> {
+            if (usernameMightBeTaken(username)) return false;
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_REGISTER_USER);
+            ps.setString(1, username);
+            ps.setString(2, password);
+            ps.setString(3, first);
+            ps.setString(4, last);
+            ps.setString(5, email);
+            ps.setDate(6, creationDate);
+            ps.setDate(7, creationDate);
+            try {
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                //taken since the index was last rebuilt, by another process
+                if ("23505".equals(e.getSQLState())) return false;
+                throw e;
+            }
+            return true;
+        });
+        if (registered) identity().remember(new IdentityIndex.UserRecord(username, first, last, email, creationDate));
+        return registered;
+    }
+
+    /**
+     * @param username a username
+     * @return if a user has that username
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean userExists(String username) throws SQLException {
+        IdentityIndex identity = identity();
+        //the filter can be missing users registered by other processes, so only a cached row is trusted
+        if (identity.cached(username) != null) return true;
+        return shards.forUser(username).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_USER_BY_USERNAME);
+            ps.setString(1, username);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) return false;
+            identity.remember(IdentityIndex.UserRecord.from(rs));
+            return true;
+        });
+    }
+
+    /**
+     * Checks if a new username is free, for registration. A name registered by another process
+     * since the identity index was last rebuilt may read as free; the primary key still refuses
+     * to register it twice.
+     * @param username a username
+     * @return if a user might have that username
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean usernameMightBeTaken(String username) throws SQLException {
+        return identity().mightHaveUsername(username) && userExists(username);
+    }
+
+    /**
+     * @param email an email address
+     * @return the username of the user with that email, or null if there's none
+     * @throws SQLException if database access goes wrong
+     */
+    public String usernameForEmail(String email) throws SQLException {
+        IdentityIndex identity = identity();
+        String cached = identity.cachedUsername(email);
+        if (cached != null) return cached;
+        for (IdentityIndex.UserRecord user : shards.scatter(false, conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_USER_BY_EMAIL);
+            ps.setString(1, email);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? IdentityIndex.UserRecord.from(rs) : null;
+        })) {
+            if (user != null) {
+                identity.remember(user);
+                return user.username();
+            }
+        }
+        return null;
+    }
+
+    //endregion
+
+    //region Songs
+
+    /**
+     * Searches the catalog
+     * @param searchChoice 0 for song name, 1 for artist, 2 for album and 3 for genre
+     * @param orderChoice the sorting method, 0 to 8, as in PostgresLogic.searchSQL
+     * @param text the text to look for
+     * @return the matching songs in order
+     * @throws SQLException if database access goes wrong
+     */
+    public List<Song> search(int searchChoice, int orderChoice, String text) throws SQLException {
+        String sql = PostgresLogic.searchSQL(searchChoice, orderChoice);
+        if (sql == null) throw new IllegalArgumentException("Unknown search " + searchChoice + " or order " + orderChoice);
+        return withTotalListens(shards.catalog().call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setString(1, "%" + text + "%");
+            return songs(ps.executeQuery());
+        }));
+    }
+
+    /**
+     * Records a user listening to a song
+     * @param username the listener
+     * @param songID the song
+     * @throws SQLException if database access goes wrong
+     */
+    public void listen(String username, int songID) throws SQLException {
+        shards.forUser(username).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_RECORD_LISTEN);
+            ps.setString(1, username);
+            ps.setInt(2, songID);
+            ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+            ps = conn.prepareStatement(PostgresLogic.SQL_COUNT_LISTEN);
+            ps.setInt(1, songID);
+            ps.executeUpdate();
+            return null;
+        });
+        listenRecorded(username, songID);
+    }
+
+    //endregion
+
+    //region Playlists
+
+    /**
+     * @return if the user has a playlist with that name
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean playlistExists(String owner, String playlistName) throws SQLException {
+        return shards.forUser(owner).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_PLAYLIST_EXISTS);
+            ps.setString(1, playlistName);
+            ps.setString(2, owner);
+            return ps.executeQuery().next();
+        });
+    }
+
+    /**
+     * @param owner a user
+     * @return all of their playlists by name
+     * @throws SQLException if database access goes wrong
+     */
+    public List<Playlist> playlists(String owner) throws SQLException {
+        return shards.forUser(owner).call(conn -> {
+            PlaylistStats stats = new PlaylistStats(conn);
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_PLAYLISTS_WITH_STATS);
+            ps.setString(1, owner);
+            ResultSet rs = ps.executeQuery();
+            List<Playlist> playlists = new ArrayList<>();
+            while (rs.next()) {
+                String name = rs.getString("playlist_name");
+                int numSongs = rs.getInt("num_songs");
+                //playlists from before playlist_stats existed get their stats computed now
+                PlaylistStats.Stats s = rs.wasNull() ? stats.get(owner, name) :
+                        new PlaylistStats.Stats(numSongs, rs.getLong("total_length"));
+                playlists.add(new Playlist(name, s.numSongs(), s.totalLength()));
+            }
+            return playlists;
+        });
+    }
+
+    /**
+     * @return a playlist's song count and length
+     * @throws SQLException if database access goes wrong
+     */
+    public Playlist playlist(String owner, String playlistName) throws SQLException {
+        return shards.forUser(owner).call(conn -> {
+            PlaylistStats.Stats stats = new PlaylistStats(conn).get(owner, playlistName);
+            return new Playlist(playlistName, stats.numSongs(), stats.totalLength());
+        });
+    }
+
+    /**
+     * @return the songs on a playlist
+     * @throws SQLException if database access goes wrong
+     */
+    public List<Song> playlistSongs(String owner, String playlistName) throws SQLException {
+        return withTotalListens(shards.forUser(owner).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_PLAYLIST_SONG_DETAILS);
+            ps.setString(1, playlistName);
+            ps.setString(2, owner);
+            return songs(ps.executeQuery());
+        }));
+    }
+
+    /**
+     * Listens to every song on a playlist
+     * @param username the listener
+     * @return the songs, with the listens counted
+     * @throws SQLException if database access goes wrong
+     */
+    public List<Song> listenToPlaylist(String username, String owner, String playlistName) throws SQLException {
+        List<Song> songs = new ArrayList<>();
+        for (Song song : playlistSongs(owner, playlistName)) {
+            listen(username, song.songID());
+            songs.add(song.listened());
+        }
+        return songs;
+    }
+
+    /**
+     * Creates an empty playlist
+     * @throws SQLException if database access goes wrong
+     */
+    public void createPlaylist(String username, String playlistName) throws SQLException {
+        shards.forUser(username).call(conn -> {
+            new PlaylistEditor(conn).create(username, playlistName);
+            return null;
+        });
+    }
+
+    /**
+     * @throws SQLException if database access goes wrong
+     */
+    public void renamePlaylist(String username, String playlistName, String newName) throws SQLException {
+        shards.forUser(username).call(conn -> {
+            new PlaylistEditor(conn).rename(username, playlistName, newName);
+            return null;
+        });
+    }
+
+    /**
+     * @throws SQLException if database access goes wrong
+     */
+    public void deletePlaylist(String username, String playlistName) throws SQLException {
+        shards.forUser(username).call(conn -> {
+            new PlaylistEditor(conn).delete(username, playlistName);
+            return null;
+        });
+    }
+
+    /**
+     * Adds songs to a playlist, skipping any already on it
+     * @return the number of songs added
+     * @throws SQLException if database access goes wrong
+     */
+    public int addSongs(String username, String playlistName, Integer... songIDs) throws SQLException {
+        return shards.forUser(username).call(conn -> new PlaylistEditor(conn).addSongs(username, playlistName,
+                PlaylistEditor.LISTED_SONGS, conn.createArrayOf("integer", songIDs)));
+    }
+
+    /**
+     * Adds a whole album to a playlist, skipping songs already on it
+     * @return the number of songs added
+     * @throws SQLException if database access goes wrong
+     */
+    public int addAlbum(String username, String playlistName, int albumID) throws SQLException {
+        return shards.forUser(username).call(conn -> new PlaylistEditor(conn).addSongs(username, playlistName,
+                PlaylistEditor.ALBUM_SONGS, albumID));
+    }
+
+    /**
+     * @return the number of songs removed
+     * @throws SQLException if database access goes wrong
+     */
+    public int removeSongs(String username, String playlistName, Integer... songIDs) throws SQLException {
+        return shards.forUser(username).call(conn -> new PlaylistEditor(conn).removeSongs(username, playlistName,
+                PlaylistEditor.LISTED_SONGS, conn.createArrayOf("integer", songIDs)));
+    }
+
+    /**
+     * @return the number of songs removed
+     * @throws SQLException if database access goes wrong
+     */
+    public int removeAlbum(String username, String playlistName, int albumID) throws SQLException {
+        return shards.forUser(username).call(conn -> new PlaylistEditor(conn).removeSongs(username, playlistName,
+                PlaylistEditor.ALBUM_SONGS, albumID));
+    }
+
+    /**
+     * Copies another user's playlist into a new playlist
+     * @return the number of songs copied
+     * @throws SQLException if database access goes wrong
+     */
+    public int copyPlaylist(String owner, String source, String username, String playlistName) throws SQLException {
+        RoutingDataSource target = shards.forUser(username);
+        if (shards.forUser(owner) == target) {
+            return target.call(conn -> bulkOps(conn).clone(owner, source, username, playlistName));
+        }
+        //the source is on another shard, so its songs are read there and added here
+        Integer[] songIDs = playlistSongs(owner, source).stream().map(Song::songID).toArray(Integer[]::new);
+        return target.call(conn -> {
+            PlaylistEditor editor = new PlaylistEditor(conn);
+            int[] added = new int[1];
+            editor.inTransaction(() -> {
+                if (!playlistExists(username, playlistName)) editor.create(username, playlistName);
+                added[0] = editor.addSongs(username, playlistName, PlaylistEditor.LISTED_SONGS,
+                        conn.createArrayOf("integer", songIDs));
+            });
+            return added[0];
+        });
+    }
+
+    /**
+     * Merges one of a user's playlists into another
+     * @return the number of songs that were new to the target
+     * @throws SQLException if database access goes wrong
+     */
+    public int mergePlaylists(String username, String source, String target, boolean deleteSource) throws SQLException {
+        return shards.forUser(username).call(conn -> bulkOps(conn).merge(username, source, target, deleteSource));
+    }
+
+    /**
+     * Removes songs that are on a playlist more than once
+     * @return the number of songs removed
+     * @throws SQLException if database access goes wrong
+     */
+    public int dedupePlaylist(String username, String playlistName) throws SQLException {
+        return shards.forUser(username).call(conn -> bulkOps(conn).dedupe(username, playlistName));
+    }
+
+    /**
+     * Writes a playlist to a local CSV or M3U file
+     * @return the number of songs written
+     * @throws SQLException if database access goes wrong
+     * @throws IOException if the file can't be written
+     */
+    public int exportPlaylist(String username, String playlistName, Path file) throws SQLException, IOException {
+        IOException[] failure = new IOException[1];
+        int written = shards.forUser(username).call(conn -> {
+            try {
+                return bulkOps(conn).exportPlaylist(username, playlistName, file);
+            } catch (IOException e) {
+                failure[0] = e;
+                return 0;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        return written;
+    }
+
+    /**
+     * Adds the songs in a local CSV or M3U file to a playlist, creating it if needed
+     * @return the number of songs added
+     * @throws SQLException if database access goes wrong
+     * @throws IOException if the file can't be read
+     */
+    public int importPlaylist(String username, String playlistName, Path file) throws SQLException, IOException {
+        IOException[] failure = new IOException[1];
+        int added = shards.forUser(username).call(conn -> {
+            try {
+                return bulkOps(conn).importPlaylist(username, playlistName, file);
+            } catch (IOException e) {
+                failure[0] = e;
+                return 0;
+            }
+        });
+        if (failure[0] != null) throw failure[0];
+        return added;
+    }
+
+    private static PlaylistBulkOps bulkOps(Connection conn) {
+        return new PlaylistBulkOps(conn, new PlaylistEditor(conn));
+    }
+
+    //endregion
+
+    //region Following
+
+    /**
+     * @return false if the user was already following them
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean follow(String username, String other) throws SQLException {
+        FollowGraph graph = followGraph();
+        if (graph.follows(username, other)) return false;
+        shards.forUser(username).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_FOLLOW);
+            ps.setString(1, username);
+            ps.setString(2, other);
+            return ps.executeUpdate();
+        });
+        graph.follow(username, other);
+        FriendChartService charts = loadedFriendCharts();
+        if (charts != null) charts.follow(username, other);
+        return true;
+    }
+
+    /**
+     * @return false if the user wasn't following them
+     * @throws SQLException if database access goes wrong
+     */
+    public boolean unfollow(String username, String other) throws SQLException {
+        FollowGraph graph = followGraph();
+        if (!graph.follows(username, other)) return false;
+        shards.forUser(username).call(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_UNFOLLOW);
+            ps.setString(1, username);
+            ps.setString(2, other);
+            return ps.executeUpdate();
+        });
+        graph.unfollow(username, other);
+        FriendChartService charts = loadedFriendCharts();
+        if (charts != null) charts.unfollow(username, other);
+        return true;
+    }
+
+    /**
+     * @return the users someone follows
+     * @throws SQLException if database access goes wrong
+     */
+    public List<String> following(String username) throws SQLException {
+        return followGraph().following(username);
+    }
+
+    /**
+     * @return the users following someone
+     * @throws SQLException if database access goes wrong
+     */
+    public List<String> followers(String username) throws SQLException {
+        return followGraph().followers(username);
+    }
+
+    /**
+     * @return up to k users followed by the people a user follows
+     * @throws SQLException if database access goes wrong
+     */
+    public List<String> suggestions(String username, int k) throws SQLException {
+        return followGraph().suggestions(username, k);
+    }
+
+    //endregion
+
+    //region Batches
+
+    /**
+     * Runs work in one transaction on each shard. Operations called from inside it run on the
+     * same connections, so they commit or roll back together, see ShardRouter.inTransaction.
+     * @param work the work
+     * @throws SQLException if database access goes wrong, after rolling back
+     */
+    public void inTransaction(SQLWork work) throws SQLException {
+        shards.inTransaction(work);
+    }
+
+    /**
+     * Records many listens as two batched statements per shard in one transaction
+     * @param listens the listens, in order
+     * @throws SQLException if database access goes wrong, in which case none are recorded
+     */
+    public void listenAll(List<Listen> listens) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        shards.inTransaction(() -> {
+            for (Map.Entry<Integer, List<Integer>> shard : shards.partition(listens, Listen::username).entrySet()) {
+                shards.shard(shard.getKey()).call(conn -> {
+                    PreparedStatement record = conn.prepareStatement(PostgresLogic.SQL_RECORD_LISTEN);
+                    PreparedStatement count = conn.prepareStatement(PostgresLogic.SQL_COUNT_LISTEN);
+                    for (int i : shard.getValue()) {
+                        Listen listen = listens.get(i);
+                        record.setString(1, listen.username());
+                        record.setInt(2, listen.songID());
+                        record.setTimestamp(3, now);
+                        record.addBatch();
+                        count.setInt(1, listen.songID());
+                        count.addBatch();
+                    }
+                    record.executeBatch();
+                    return count.executeBatch();
+                });
+            }
+        });
+        for (Listen listen : listens) listenRecorded(listen.username(), listen.songID());
+    }
+
+    /**
+     * Adds many follows as one batched statement per shard in one transaction, skipping ones that
+     * exist, users following themselves and follows of users that don't exist
+     * @param follows the follows, in order
+     * @return for each follow, if it was added
+     * @throws SQLException if database access goes wrong, in which case none are added
+     */
+    public boolean[] followAll(List<Follow> follows) throws SQLException {
+        return changeFollows(follows, PostgresLogic.SQL_FOLLOW_IF_NEW, true);
+    }
+
+    /**
+     * Removes many follows as one batched statement per shard in one transaction
+     * @param follows the follows, in order
+     * @return for each follow, if it existed
+     * @throws SQLException if database access goes wrong, in which case none are removed
+     */
+    public boolean[] unfollowAll(List<Follow> follows) throws SQLException {
+        return changeFollows(follows, PostgresLogic.SQL_UNFOLLOW, false);
+    }
+
+    private boolean[] changeFollows(List<Follow> follows, String sql, boolean adding) throws SQLException {
+        FollowGraph graph = followGraph();
+        //no foreign key guards the followed user, since they may be on another shard
+        boolean[] allowed = new boolean[follows.size()];
+        Map<String, Boolean> exists = new HashMap<>();
+        for (int i = 0; i < allowed.length; i++) {
+            Follow follow = follows.get(i);
+            if (!adding) {
+                allowed[i] = true;
+            } else if (!follow.follower().equals(follow.followed())) {
+                Boolean known = exists.get(follow.followed());
+                if (known == null) exists.put(follow.followed(), known = userExists(follow.followed()));
+                allowed[i] = known;
+            }
+        }
+
+        int[] counts = new int[follows.size()];
+        shards.inTransaction(() -> {
+            //each follow is stored on the follower's shard
+            for (Map.Entry<Integer, List<Integer>> shard : shards.partition(follows, Follow::follower).entrySet()) {
+                List<Integer> batch = new ArrayList<>();
+                for (int i : shard.getValue()) if (allowed[i]) batch.add(i);
+                if (batch.isEmpty()) continue;
+                int[] shardCounts = shards.shard(shard.getKey()).call(conn -> {
+                    PreparedStatement ps = conn.prepareStatement(sql);
+                    for (int i : batch) {
+                        ps.setString(1, follows.get(i).follower());
+                        ps.setString(2, follows.get(i).followed());
+                        ps.addBatch();
+                    }
+                    return ps.executeBatch();
+                });
+                for (int i = 0; i < shardCounts.length; i++) counts[batch.get(i)] = shardCounts[i];
+            }
+        });
+
+        boolean[] changed = new boolean[follows.size()];
+        FriendChartService charts = loadedFriendCharts();
+        for (int i = 0; i < changed.length; i++) {
+            Follow follow = follows.get(i);
+            changed[i] = counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO;
+            if (!changed[i]) continue;
+            if (adding) {
+                graph.follow(follow.follower(), follow.followed());
+                if (charts != null) charts.follow(follow.follower(), follow.followed());
+            } else {
+                graph.unfollow(follow.follower(), follow.followed());
+                if (charts != null) charts.unfollow(follow.follower(), follow.followed());
+            }
+        }
+        return changed;
+    }
+
+    //endregion
+
+    //region Analytics
+
+    /**
+     * @return a user's profile
+     * @throws SQLException if database access goes wrong
+     */
+    public Profile profile(String username) throws SQLException {
+        FollowGraph graph = followGraph();
+        ListenColumns columns = listenColumns();
+        Map<Integer, Long> listenTotals = columns.artistListens(username);
+        return shards.forUser(username).analytics(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_PLAYLIST_COUNT);
+            ps.setString(1, username);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            int playlists = rs.getInt("num_playlists");
+
+            ps = conn.prepareStatement(PostgresLogic.SQL_ARTIST_PLAYLIST_COUNTS);
+            ps.setString(1, username);
+            rs = ps.executeQuery();
+            Map<Integer, Long> playlistTotals = new HashMap<>();
+            while (rs.next()) playlistTotals.put(rs.getInt("artist_id"), rs.getLong("total"));
+
+            //artists both listened to and on playlists, as SQL_TOP_ARTISTS_COMBINED joins them
+            Map<Integer, Long> bothTotals = new HashMap<>();
+            for (Map.Entry<Integer, Long> total : listenTotals.entrySet()) {
+                Long onPlaylists = playlistTotals.get(total.getKey());
+                if (onPlaylists != null) bothTotals.put(total.getKey(), total.getValue() + onPlaylists);
+            }
+
+            List<PostgresLogic.ArtistTotal> listen = columns.rankArtists(listenTotals);
+            List<PostgresLogic.ArtistTotal> playlist = columns.rankArtists(playlistTotals);
+            return new Profile(username, playlists, graph.followingCount(username), graph.followerCount(username),
+                    listen.subList(0, Math.min(PROFILE_ARTISTS, listen.size())),
+                    playlist.subList(0, Math.min(PROFILE_ARTISTS, playlist.size())),
+                    PostgresLogic.mergeTopArtists(columns.rankArtists(bothTotals), playlist, listen, PROFILE_ARTISTS));
+        });
+    }
+
+    /**
+     * @return the 50 most listened to songs that were heard in the past 30 days
+     * @throws SQLException if database access goes wrong
+     */
+    public List<ChartEntry> top50Last30Days() throws SQLException {
+        return listenColumns().topSongsHeardSince(ListenColumns.daysAgo(30), 50);
+    }
+
+    /**
+     * @return the 5 most listened to genres this calendar month
+     * @throws SQLException if database access goes wrong
+     */
+    public List<ChartEntry> top5GenresThisMonth() throws SQLException {
+        return listenColumns().topGenresHeardSince(ListenColumns.startOfMonth(), 5);
+    }
+
+    /**
+     * @return the songs most listened to by the users someone follows, most listened first
+     * @throws SQLException if database access goes wrong
+     */
+    public List<ChartEntry> friendChart(String username) throws SQLException {
+        List<FriendChartService.Entry> chart = friendCharts().chart(username);
+        ListenColumns columns = listenColumns();
+        List<ChartEntry> entries = new ArrayList<>(chart.size());
+        for (FriendChartService.Entry entry : chart) {
+            entries.add(new ChartEntry(columns.title(entry.songID()), entry.listens()));
+        }
+        return entries;
+    }
+
+    /**
+     * Recommends songs by the artist or in the genre of a song the user has heard
+     * @throws SQLException if database access goes wrong
+     */
+    public Recommendations recommendFromHistory(String username) throws SQLException {
+        return shards.forUser(username).analytics(conn -> {
+            ResultSet heard = randomHeardSong(conn, username);
+            if (heard == null) return new Recommendations("Sorry, you haven't listened to any songs yet!", List.of());
+
+            //related by either genre or artist
+            boolean byGenre = new Random().nextBoolean();
+            PreparedStatement ps = conn.prepareStatement(byGenre ? PostgresLogic.SQL_RELATED_BY_GENRE :
+                    PostgresLogic.SQL_RELATED_BY_ARTIST);
+            ps.setInt(1, heard.getInt(byGenre ? "genre_id" : "song_id"));
+            List<Song> songs = withTotalListens(songs(ps.executeQuery()));
+            if (songs.isEmpty()) return new Recommendations("Sorry, we couldn't find anything related yet", songs);
+            return new Recommendations("Because you listened to '" +
+                    (byGenre ? songs.get(0).genreName() : songs.get(0).artistName()) + "' recently:", songs);
+        });
+    }
+
+    /**
+     * Recommends songs heard by the user whose listening overlaps most with this user's
+     * @throws SQLException if database access goes wrong
+     */
+    public Recommendations recommendFromSimilarUser(String username) throws SQLException {
+        SimilarUserIndex index = similarUsers();
+        Integer heardSongID = shards.forUser(username).analytics(conn -> {
+            ResultSet heard = randomHeardSong(conn, username);
+            return heard == null ? null : heard.getInt("song_id");
+        });
+        if (heardSongID == null) return new Recommendations("Sorry, you haven't listened to any songs yet!", List.of());
+        List<SimilarUserIndex.Match> similar = index.topSimilar(username, 1);
+        if (similar.isEmpty()) {
+            return new Recommendations("Sorry, we couldn't find any similar users, try again later", List.of());
+        }
+        SimilarUserIndex.Match other = similar.get(0);
+
+        //their listens are on their own shard
+        List<Song> songs = shards.forUser(other.username()).analytics(conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_SIMILAR_USER_SONGS);
+            ps.setString(1, other.username());
+            ps.setInt(2, heardSongID);
+            return songs(ps.executeQuery());
+        });
+        return new Recommendations("Found a similar user '" + other.username() + "' (" +
+                Math.round(other.similarity() * 100) + "% listening overlap), here are some songs they've listened to:",
+                withTotalListens(songs));
+    }
+
+    /**
+     * Recommends unheard songs closest to the user's genre and artist taste vector
+     * @throws SQLException if database access goes wrong
+     */
+    public Recommendations recommendFromTaste(String username) throws SQLException {
+        TasteVectorIndex index = tasteVectors();
+        return shards.forUser(username).analytics(conn -> {
+            HashSet<Integer> heard = new HashSet<>();
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_HEARD_SONGS);
+            ps.setString(1, username);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) heard.add(rs.getInt(1));
+            if (heard.isEmpty()) return new Recommendations("Sorry, you haven't listened to any songs yet!", List.of());
+
+            List<TasteVectorIndex.Neighbor<Integer>> songs = index.songsFor(username, heard, RECOMMENDATIONS);
+            if (songs.isEmpty()) {
+                return new Recommendations("Sorry, we couldn't build a taste profile for you yet, try again later", List.of());
+            }
+            Array songIDs = conn.createArrayOf("integer",
+                    songs.stream().map(TasteVectorIndex.Neighbor::key).distinct().toArray());
+            ps = conn.prepareStatement(PostgresLogic.SQL_SONG_DETAILS_BY_IDS);
+            ps.setArray(1, songIDs);
+            ps.setArray(2, songIDs);
+            return new Recommendations("Songs that match your taste profile:",
+                    withTotalListens(songs(ps.executeQuery())));
+        });
+    }
+
+    /**
+     * @return up to k users with the taste vectors closest to this user's
+     * @throws SQLException if database access goes wrong
+     */
+    public List<TasteVectorIndex.Neighbor<String>> usersLike(String username, int k) throws SQLException {
+        return tasteVectors().usersLike(username, k);
+    }
+
+    //endregion
+
+    //region Startup
+
+    /**
+     * Creates the tables and views the operations rely on that SchemaMigrator doesn't own, and the
+     * listen partitions for the coming months. Every shard needs them, since each holds its own
+     * users' playlists and listens.
+     * @param conn a connection to one shard's primary
+     * @return nothing, so it can be passed to ShardRouter.scatter
+     * @throws SQLException if database access goes wrong
+     */
+    public static Void ensureSchema(Connection conn) throws SQLException {
+        new PlaylistStats(conn).ensureTable();
+        new ListenHistory(conn).ensureSchema();
+        return null;
+    }
+
+    /**
+     * Has the server parse and describe the statements most sessions start with, so the first
+     * real ones don't pay for loading the catalog entries they touch
+     * @param conn the connection to prepare them on
+     * @return nothing, so it can be passed to ConnectionPool.onEach
+     * @throws SQLException if a statement doesn't parse
+     */
+    public static Void prepareHotStatements(Connection conn) throws SQLException {
+        for (String sql : HOT_STATEMENTS) conn.prepareStatement(sql).getParameterMetaData();
+        return null;
+    }
+
+    /**
+     * Builds the in-memory indexes and runs the site wide charts once, pulling the tables they
+     * read into the database's cache. Meant to run in the background while a user logs in.
+     * @throws SQLException if database access goes wrong
+     */
+    public void warmUp() throws SQLException {
+        followGraph();
+        friendCharts();
+        similarUsers();
+        tasteVectors();
+        listenColumns();
+        top50Last30Days();
+        top5GenresThisMonth();
+    }
+
+    //endregion
+
+    //region Helpers
+
+    private static List<Song> songs(ResultSet rs) throws SQLException {
+        List<Song> songs = new ArrayList<>();
+        while (rs.next()) songs.add(Song.from(rs));
+        return songs;
+    }
+
+    /**
+     * Replaces each song's listen count, which on one shard only counts that shard's users, with
+     * its total over every shard
+     * @param songs the songs
+     * @return the songs with their total listens
+     * @throws SQLException if database access goes wrong
+     */
+    private List<Song> withTotalListens(List<Song> songs) throws SQLException {
+        if (shards.size() == 1 || songs.isEmpty()) return songs;
+        Integer[] songIDs = songs.stream().map(Song::songID).distinct().toArray(Integer[]::new);
+        Map<Integer, Long> totals = new HashMap<>();
+        for (Map<Integer, Long> partial : shards.scatter(true, conn -> {
+            PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_SONG_LISTEN_TOTALS);
+            ps.setArray(1, conn.createArrayOf("integer", songIDs));
+            ResultSet rs = ps.executeQuery();
+            Map<Integer, Long> listens = new HashMap<>();
+            while (rs.next()) listens.put(rs.getInt("song_id"), rs.getLong("num_listens"));
+            return listens;
+        })) {
+            partial.forEach((songID, n) -> totals.merge(songID, n, Long::sum));
+        }
+        List<Song> counted = new ArrayList<>(songs.size());
+        for (Song song : songs) counted.add(song.withListens(totals.getOrDefault(song.songID(), 0L).intValue()));
+        return counted;
+    }
+
+    /**
+     * @return a result set on a random song the user has heard, or null if they haven't heard any
+     */
+    private static ResultSet randomHeardSong(Connection conn, String username) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(PostgresLogic.SQL_RANDOM_HEARD_SONG);
+        ps.setString(1, username);
+        ps.setString(2, username);
+        ResultSet rs = ps.executeQuery();
+        return rs.next() ? rs : null;
+    }
+
+    /**
+     * Keeps in-memory indexes and listen metrics up to date after a listen has been stored
+     */
+    private void listenRecorded(String username, int songID) {
+        DotifyEvents.ListenRecorded event = new DotifyEvents.ListenRecorded();
+        event.username = username;
+        event.songID = songID;
+        event.commit();
+        MetricsRegistry.get().count("dotify_listens_recorded_total", 1);
+        SimilarUserIndex similar = similarUsers.ifLoaded();
+        FriendChartService charts = friendCharts.ifLoaded();
+        ListenColumns columns = listenColumns.ifLoaded();
+        if (similar != null) similar.recordListen(username, songID);
+        if (charts != null) charts.recordListen(username, songID);
+        if (columns != null) columns.recordListen(username, songID);
+    }
+
+    private SimilarUserIndex similarUsers() throws SQLException {
+        return similarUsers.get();
+    }
+
+    private CatalogSnapshot catalog() throws SQLException {
+        return catalog.get();
+    }
+
+    private TasteVectorIndex tasteVectors() throws SQLException {
+        catalog();  //mapped first so building the index doesn't borrow more connections
+        return tasteVectors.get();
+    }
+
+    /**
+     * @return the listen columns, starting a refresh in the background once they're REFRESH_MS old
+     */
+    private ListenColumns listenColumns() throws SQLException {
+        catalog();
+        ListenColumns columns = listenColumns.get();
+        if (columns.needsRefresh() && refreshingListens.compareAndSet(false, true)) {
+            Thread refresh = new Thread(() -> {
+                try {
+                    shards.onAll(true, conns -> {
+                        columns.refresh(conns);
+                        return null;
+                    });
+                } catch (SQLException e) {
+                    System.err.println("Listen refresh failed: " + e.getMessage());
+                } finally {
+                    refreshingListens.set(false);
+                }
+            }, "listen-refresh");
+            refresh.setDaemon(true);
+            refresh.start();
+        }
+        return columns;
+    }
+
+    /**
+     * @return the identity index, starting a rebuild in the background once it's REFRESH_MS old
+     */
+    private IdentityIndex identity() throws SQLException {
+        IdentityIndex index = identity.get();
+        if (index.needsRebuild() && rebuildingIdentity.compareAndSet(false, true)) {
+            Thread rebuild = new Thread(() -> {
+                try {
+                    shards.onAll(false, conns -> {
+                        index.rebuild(conns);
+                        return null;
+                    });
+                } catch (SQLException e) {
+                    System.err.println("Identity index rebuild failed: " + e.getMessage());
+                } finally {
+                    rebuildingIdentity.set(false);
+                }
+            }, "identity-rebuild");
+            rebuild.setDaemon(true);
+            rebuild.start();
+        }
+        return index;
+    }
+
+    private FollowGraph followGraph() throws SQLException {
+        return followGraph.get();
+    }
+
+    private FriendChartService friendCharts() throws SQLException {
+        followGraph();  //loaded first so building the charts doesn't borrow more connections
+        return friendCharts.get();
+    }
+
+    private FriendChartService loadedFriendCharts() {
+        return friendCharts.ifLoaded();
+    }
+
+    //endregion
+}
@@ -0,0 +1,462 @@
+/* Headless Dotify: the operations of the console menus as an HTTP API on the local machine, for
+ * scripts, other front ends and load testing without a terminal per user.
+ *
+ *   DotifyService [port] [worker threads] [pooled connections]
+ *
+ * Logging in returns a session token to send as the X-Dotify-Session header (or a session
+ * parameter) with every other request. A session is only a token mapped to a username, so
+ * thousands of idle sessions cost little; worker threads and connections are only held while a
+ * request runs. A session expires after -Ddotify.session.idleMs without a request (30 minutes by
+ * default), and logins are turned away while -Ddotify.session.max sessions are live. Parameters come from the query string or a form encoded body, and responses are
+ * JSON, e.g.
+ *   curl -d 'username=ben&password=pw' localhost:8080/login
+ *   curl -H 'X-Dotify-Session: ...' 'localhost:8080/search?by=1&order=0&q=Queen'
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.RecordComponent;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class DotifyService {
+    private static final int DEFAULT_PORT = 8080;
+    //workers mostly wait on the database, so there are several per pooled connection
+    private static final int DEFAULT_THREADS = 200;
+    private static final int DEFAULT_CONNECTIONS = 20;
+    private static final int SUGGESTIONS = 10;
+    private static final int SIMILAR_USERS = 5;
+    private static final String SESSION_HEADER = "X-Dotify-Session";
+    private static final long SESSION_IDLE_MS = Long.getLong("dotify.session.idleMs", 30 * 60_000);
+    private static final int MAX_SESSIONS = Integer.getInteger("dotify.session.max", 100_000);
+
+    private final DotifyOperations ops;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(work -> {
+        Thread thread = new Thread(work, "session-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Handles one request, returning the value to send back as JSON
+     */
+    private interface Route {
+        Object handle(Request request) throws SQLException;
+    }
+
+    /**
+     * A request's parameters and, for logged in requests, the session and its user
+     */
+    private record Request(Map<String, String> params, String session, String username) {
+        String param(String name) {
+            String value = params.get(name);
+            if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+            return value;
+        }
+
+        String param(String name, String fallback) {
+            return params.getOrDefault(name, fallback);
+        }
+
+        int intParam(String name) {
+            try {
+                return Integer.parseInt(param(name));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parameter " + name + " must be a number");
+            }
+        }
+
+        Integer[] songIDs() {
+            return Arrays.stream(param("song").split(",")).map(String::trim).map(Integer::valueOf).toArray(Integer[]::new);
+        }
+    }
+
+    /**
+     * A logged in user and when they last sent a request, in System.nanoTime
+     */
+    private static class Session {
+        final String username;
+        volatile long lastUsed = System.nanoTime();
+
+        Session(String username) {
+            this.username = username;
+        }
+
+        boolean expired(long now) {
+            return now - lastUsed > TimeUnit.MILLISECONDS.toNanos(SESSION_IDLE_MS);
+        }
+    }
+
+    /**
+     * A request failing for a reason the client can fix, answered with the given status
+     */
+    private static class ClientError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ClientError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public DotifyService(DotifyOperations ops) {
+        this.ops = ops;
+        registerRoutes();
+        long sweepMs = Math.max(SESSION_IDLE_MS / 10, 1_000);
+        sweeper.scheduleWithFixedDelay(this::expireSessions, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String[] args) throws SQLException, IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADS;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONNECTIONS;
+
+        MetricsRegistry.get().registerMBean();
+        CatalogSnapshot.ensureVersionTable(DBConnEstablisher.getConnection());
+        ShardRouter shards = ShardRouter.open(new ConnectionPool(connections));
+        shards.scatter(false, DotifyOperations::ensureSchema);
+        shards.onEach(DotifyOperations::prepareHotStatements);
+        DotifyOperations ops = new DotifyOperations(shards);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        HttpServer server = new DotifyService(ops).start(port, workers);
+        CompletableFuture.runAsync(() -> {
+            try {
+                ops.warmUp();
+            } catch (SQLException e) {
+                System.err.println("Background warmup failed: " + e.getMessage());
+            }
+        });
+        System.out.println("Dotify service listening on http://localhost:" + port + " with " + threads +
+                " workers and " + connections + " connections");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            workers.shutdown();
+            try {
+                workers.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+                //shutting down regardless
+            }
+            ops.close();
+            shards.close();
+            try {
+                DBConnEstablisher.disconnect();
+            } catch (SQLException e) {
+                System.err.println("Could not disconnect: " + e.getMessage());
+            }
+        }));
+    }
+
+    /**
+     * Starts serving on the loopback interface
+     * @param port the port
+     * @param workers the threads requests run on
+     * @return the running server
+     * @throws IOException if the port can't be bound
+     */
+    public HttpServer start(int port, ExecutorService workers) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", this::dispatch);
+        server.setExecutor(workers);
+        server.start();
+        return server;
+    }
+
+    //region Routes
+
+    private void registerRoutes() {
+        //sessions
+        routes.put("POST /register", r -> {
+            if (!ops.register(r.param("username"), r.param("password"), r.param("first", ""), r.param("last", ""),
+                    r.param("email"))) throw new ClientError(409, "Username or email already taken");
+            return Map.of("session", newSession(r.param("username")));
+        });
+        routes.put("POST /login", r -> {
+            if (!ops.login(r.param("username"), r.param("password"))) {
+                throw new ClientError(401, "Unknown username or wrong password");
+            }
+            return Map.of("session", newSession(r.param("username")));
+        });
+        routes.put("POST /logout", r -> r.session() != null && sessions.remove(r.session()) != null);
+
+        //songs
+        routes.put("GET /search", r -> ops.search(r.intParam("by"), Integer.parseInt(r.param("order", "0")), r.param("q")));
+        routes.put("POST /listen", r -> {
+            ops.listen(r.username(), r.intParam("song"));
+            return true;
+        });
+
+        //playlists, owned by the session's user unless another owner is given to read
+        routes.put("GET /playlists", r -> ops.playlists(r.param("user", r.username())));
+        routes.put("GET /playlist", r -> {
+            String owner = r.param("user", r.username());
+            requirePlaylist(owner, r.param("name"));
+            return Map.of("playlist", ops.playlist(owner, r.param("name")),
+                    "songs", ops.playlistSongs(owner, r.param("name")));
+        });
+        routes.put("POST /playlist/listen", r -> {
+            String owner = r.param("user", r.username());
+            requirePlaylist(owner, r.param("name"));
+            return ops.listenToPlaylist(r.username(), owner, r.param("name"));
+        });
+        routes.put("POST /playlist/create", r -> {
+            if (ops.playlistExists(r.username(), r.param("name"))) throw new ClientError(409, "Playlist already exists");
+            if (r.params().containsKey("from")) {
+                requirePlaylist(r.param("from"), r.param("source"));
+                return ops.copyPlaylist(r.param("from"), r.param("source"), r.username(), r.param("name"));
+            }
+            ops.createPlaylist(r.username(), r.param("name"));
+            return 0;
+        });
+        routes.put("POST /playlist/rename", r -> {
+            requirePlaylist(r.username(), r.param("name"));
+            ops.renamePlaylist(r.username(), r.param("name"), r.param("newName"));
+            return true;
+        });
+        routes.put("POST /playlist/delete", r -> {
+            requirePlaylist(r.username(), r.param("name"));
+            ops.deletePlaylist(r.username(), r.param("name"));
+            return true;
+        });
+        routes.put("POST /playlist/add", r -> {
+            requirePlaylist(r.username(), r.param("name"));
+            return r.params().containsKey("album") ? ops.addAlbum(r.username(), r.param("name"), r.intParam("album"))
+                    : ops.addSongs(r.username(), r.param("name"), r.songIDs());
+        });
+        routes.put("POST /playlist/remove", r -> {
+            requirePlaylist(r.username(), r.param("name"));
+            return r.params().containsKey("album") ? ops.removeAlbum(r.username(), r.param("name"), r.intParam("album"))
+                    : ops.removeSongs(r.username(), r.param("name"), r.songIDs());
+        });
+        routes.put("POST /playlist/merge", r -> {
+            requirePlaylist(r.username(), r.param("name"));
+            requirePlaylist(r.username(), r.param("source"));
+            return ops.mergePlaylists(r.username(), r.param("source"), r.param("name"),
+                    Boolean.parseBoolean(r.param("deleteSource", "false")));
+        });
+        routes.put("POST /playlist/dedupe", r -> {
+            requirePlaylist(r.username(), r.param("name"));
+            return ops.dedupePlaylist(r.username(), r.param("name"));
+        });
+
+        //following
+        routes.put("POST /follow", r -> ops.follow(r.username(), requireUser(r.param("user"))));
+        routes.put("POST /unfollow", r -> ops.unfollow(r.username(), requireUser(r.param("user"))));
+        routes.put("GET /following", r -> ops.following(r.param("user", r.username())));
+        routes.put("GET /followers", r -> ops.followers(r.param("user", r.username())));
+        routes.put("GET /suggestions", r -> ops.suggestions(r.username(), SUGGESTIONS));
+
+        //analytics
+        routes.put("GET /profile", r -> ops.profile(r.param("user", r.username())));
+        routes.put("GET /charts/top50", r -> ops.top50Last30Days());
+        routes.put("GET /charts/genres", r -> ops.top5GenresThisMonth());
+        routes.put("GET /charts/friends", r -> ops.friendChart(r.username()));
+        routes.put("GET /recommendations", r -> switch (r.param("from", "history")) {
+            case "history" -> ops.recommendFromHistory(r.username());
+            case "similar" -> ops.recommendFromSimilarUser(r.username());
+            case "taste" -> ops.recommendFromTaste(r.username());
+            default -> throw new IllegalArgumentException("from must be history, similar or taste");
+        });
+        routes.put("GET /similar", r -> ops.usersLike(r.username(), SIMILAR_USERS));
+    }
+
+    private void requirePlaylist(String owner, String playlistName) throws SQLException {
+        if (!ops.playlistExists(owner, playlistName)) throw new ClientError(404, "Playlist does not exist");
+    }
+
+    private String requireUser(String username) throws SQLException {
+        if (!ops.userExists(username)) throw new ClientError(404, "No existing user has that username");
+        return username;
+    }
+
+    private String newSession(String username) {
+        if (sessions.size() >= MAX_SESSIONS) {
+            expireSessions();
+            if (sessions.size() >= MAX_SESSIONS) throw new ClientError(503, "Too many sessions, try again later");
+        }
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username));
+        return token;
+    }
+
+    /**
+     * @return the user a session belongs to, or null if it doesn't exist or has expired
+     */
+    private String sessionUser(String token) {
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        long now = System.nanoTime();
+        if (session.expired(now)) {
+            sessions.remove(token, session);
+            return null;
+        }
+        session.lastUsed = now;
+        return session.username;
+    }
+
+    private void expireSessions() {
+        long now = System.nanoTime();
+        sessions.values().removeIf(session -> session.expired(now));
+    }
+
+    //endregion
+
+    //region HTTP
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String path = exchange.getRequestURI().getPath();
+        String key = exchange.getRequestMethod() + " " + path;
+        Route route = routes.get(key);
+        int status = 200;
+        Object body;
+        try {
+            if (route == null) throw new ClientError(404, "No such operation " + key);
+            Map<String, String> params = params(exchange);
+            String session = exchange.getRequestHeaders().getFirst(SESSION_HEADER);
+            if (session == null) session = params.get("session");
+            String username = session == null ? null : sessionUser(session);
+            boolean open = path.equals("/login") || path.equals("/register") || path.equals("/logout");
+            if (username == null && !open) throw new ClientError(401, "Log in first");
+            body = route.handle(new Request(params, session, username));
+        } catch (ClientError e) {
+            status = e.status;
+            body = Map.of("error", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = Map.of("error", e.getMessage());
+        } catch (SQLException | RuntimeException e) {
+            status = 500;
+            body = Map.of("error", String.valueOf(e.getMessage()));
+            System.err.println(key + " failed: " + e);
+        }
+
+        byte[] json = toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, json.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+        }
+        String metricRoute = route == null ? "unknown" : key;
+        MetricsRegistry.get().time("dotify_http_request_seconds", System.nanoTime() - start, "route", metricRoute);
+        if (status >= 400) {
+            MetricsRegistry.get().count("dotify_http_errors_total", 1, "route", metricRoute, "status", String.valueOf(status));
+        }
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        if (body.length > 0 && (type == null || type.startsWith("application/x-www-form-urlencoded"))) {
+            parseForm(new String(body, StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> into) {
+        if (form == null || form.isEmpty()) return;
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            into.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    //endregion
+
+    //region JSON
+
+    /**
+     * Writes a response value as JSON: records become objects named after their components,
+     * dates are written as yyyy-mm-dd strings
+     */
+    static String toJson(Object value) {
+        StringBuilder json = new StringBuilder();
+        appendJson(json, value);
+        return json.toString();
+    }
+
+    private static void appendJson(StringBuilder json, Object value) {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value instanceof Map<?, ?> map) {
+            json.append('{');
+            String separator = "";
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                json.append(separator);
+                appendString(json, String.valueOf(entry.getKey()));
+                json.append(':');
+                appendJson(json, entry.getValue());
+                separator = ",";
+            }
+            json.append('}');
+        } else if (value instanceof Collection<?> list) {
+            json.append('[');
+            String separator = "";
+            for (Object item : list) {
+                json.append(separator);
+                appendJson(json, item);
+                separator = ",";
+            }
+            json.append(']');
+        } else if (value instanceof Record record) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for (RecordComponent component : record.getClass().getRecordComponents()) {
+                try {
+                    fields.put(component.getName(), component.getAccessor().invoke(record));
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Can't read " + component.getName(), e);
+                }
+            }
+            appendJson(json, fields);
+        } else {
+            appendString(json, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    //endregion
+}
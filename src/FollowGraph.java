@@ -0,0 +1,233 @@
+/* In-memory copy of the following table as a compressed sparse row graph over int user ids.
+ * Keeps an adjacency list for who each user follows and a reverse one for their followers,
+ * so degree counts, neighbor lists and follow suggestions never have to hit the database.
+ */
+
+import java.sql.*;
+import java.util.*;
+
+public class FollowGraph {
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    //CSR arrays: node n's neighbors are targets[offsets[n]] to targets[offsets[n + 1] - 1], sorted
+    private int[] outOffsets = {0};
+    private int[] outTargets = new int[0];
+    private int[] inOffsets = {0};
+    private int[] inTargets = new int[0];
+
+    //follows and unfollows applied since the CSR arrays were last rebuilt
+    private final Map<Integer, Set<Integer>> addedOut = new HashMap<>();
+    private final Map<Integer, Set<Integer>> addedIn = new HashMap<>();
+    private final Map<Integer, Set<Integer>> removedOut = new HashMap<>();
+    private final Map<Integer, Set<Integer>> removedIn = new HashMap<>();
+    private int pendingDeltas = 0;
+
+    /**
+     * Builds the graph from every row of the following table
+     * @param shards a connection to each shard, see ShardRouter
+     * @return the populated graph
+     * @throws SQLException if database access goes wrong
+     */
+    public static FollowGraph load(List<Connection> shards) throws SQLException {
+        FollowGraph graph = new FollowGraph();
+        List<int[]> edges = new ArrayList<>();
+        for (Connection conn : shards) {
+            ResultSet rs = conn.prepareStatement("SELECT follower_un, followed_un FROM following").executeQuery();
+            while (rs.next()) {
+                edges.add(new int[]{graph.idFor(rs.getString(1)), graph.idFor(rs.getString(2))});
+            }
+        }
+        graph.rebuild(edges);
+        return graph;
+    }
+
+    /**
+     * @return whether follower currently follows followed
+     */
+    public synchronized boolean follows(String follower, String followed) {
+        Integer from = ids.get(follower);
+        Integer to = ids.get(followed);
+        if (from == null || to == null) return false;
+        if (contains(addedOut, from, to)) return true;
+        return inBase(outOffsets, outTargets, from, to) && !contains(removedOut, from, to);
+    }
+
+    /**
+     * Records that follower started following followed
+     */
+    public synchronized void follow(String follower, String followed) {
+        if (follows(follower, followed)) return;
+        int from = idFor(follower);
+        int to = idFor(followed);
+        if (!remove(removedOut, from, to)) addedOut.computeIfAbsent(from, n -> new HashSet<>()).add(to);
+        if (!remove(removedIn, to, from)) addedIn.computeIfAbsent(to, n -> new HashSet<>()).add(from);
+        deltaApplied();
+    }
+
+    /**
+     * Records that follower stopped following followed
+     */
+    public synchronized void unfollow(String follower, String followed) {
+        if (!follows(follower, followed)) return;
+        int from = ids.get(follower);
+        int to = ids.get(followed);
+        if (!remove(addedOut, from, to)) removedOut.computeIfAbsent(from, n -> new HashSet<>()).add(to);
+        if (!remove(addedIn, to, from)) removedIn.computeIfAbsent(to, n -> new HashSet<>()).add(from);
+        deltaApplied();
+    }
+
+    /**
+     * @return the number of users a user follows
+     */
+    public synchronized int followingCount(String user) {
+        Integer id = ids.get(user);
+        return id == null ? 0 : degree(outOffsets, addedOut, removedOut, id);
+    }
+
+    /**
+     * @return the number of users following a user
+     */
+    public synchronized int followerCount(String user) {
+        Integer id = ids.get(user);
+        return id == null ? 0 : degree(inOffsets, addedIn, removedIn, id);
+    }
+
+    /**
+     * @return the usernames a user follows
+     */
+    public synchronized List<String> following(String user) {
+        Integer id = ids.get(user);
+        return id == null ? List.of() : toNames(neighbors(outOffsets, outTargets, addedOut, removedOut, id));
+    }
+
+    /**
+     * @return the usernames following a user
+     */
+    public synchronized List<String> followers(String user) {
+        Integer id = ids.get(user);
+        return id == null ? List.of() : toNames(neighbors(inOffsets, inTargets, addedIn, removedIn, id));
+    }
+
+    /**
+     * Suggests users followed by the people a user follows, ranked by how many of them do
+     * @param user the user to make suggestions for
+     * @param k the maximum number of suggestions
+     * @return up to k usernames, most mutual connections first
+     */
+    public synchronized List<String> suggestions(String user, int k) {
+        Integer id = ids.get(user);
+        if (id == null) return List.of();
+        int[] direct = neighbors(outOffsets, outTargets, addedOut, removedOut, id);
+        Set<Integer> skip = new HashSet<>();
+        skip.add(id);
+        for (int n : direct) skip.add(n);
+
+        Map<Integer, Integer> mutuals = new HashMap<>();
+        for (int friend : direct) {
+            for (int candidate : neighbors(outOffsets, outTargets, addedOut, removedOut, friend)) {
+                if (!skip.contains(candidate)) mutuals.merge(candidate, 1, Integer::sum);
+            }
+        }
+        List<Integer> ranked = new ArrayList<>(mutuals.keySet());
+        ranked.sort((a, b) -> mutuals.get(b) - mutuals.get(a));
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < k && i < ranked.size(); i++) result.add(names.get(ranked.get(i)));
+        return result;
+    }
+
+    private int idFor(String user) {
+        Integer id = ids.get(user);
+        if (id == null) {
+            id = names.size();
+            ids.put(user, id);
+            names.add(user);
+        }
+        return id;
+    }
+
+    private void deltaApplied() {
+        if (++pendingDeltas < COMPACT_THRESHOLD) return;
+        List<int[]> edges = new ArrayList<>();
+        for (int n = 0; n < names.size(); n++) {
+            for (int target : neighbors(outOffsets, outTargets, addedOut, removedOut, n)) edges.add(new int[]{n, target});
+        }
+        rebuild(edges);
+    }
+
+    private void rebuild(List<int[]> edges) {
+        int numNodes = names.size();
+        outOffsets = new int[numNodes + 1];
+        inOffsets = new int[numNodes + 1];
+        for (int[] edge : edges) {
+            outOffsets[edge[0] + 1]++;
+            inOffsets[edge[1] + 1]++;
+        }
+        for (int n = 0; n < numNodes; n++) {
+            outOffsets[n + 1] += outOffsets[n];
+            inOffsets[n + 1] += inOffsets[n];
+        }
+        outTargets = new int[edges.size()];
+        inTargets = new int[edges.size()];
+        int[] outFill = Arrays.copyOf(outOffsets, numNodes);
+        int[] inFill = Arrays.copyOf(inOffsets, numNodes);
+        for (int[] edge : edges) {
+            outTargets[outFill[edge[0]]++] = edge[1];
+            inTargets[inFill[edge[1]]++] = edge[0];
+        }
+        for (int n = 0; n < numNodes; n++) {
+            Arrays.sort(outTargets, outOffsets[n], outOffsets[n + 1]);
+            Arrays.sort(inTargets, inOffsets[n], inOffsets[n + 1]);
+        }
+        addedOut.clear();
+        addedIn.clear();
+        removedOut.clear();
+        removedIn.clear();
+        pendingDeltas = 0;
+    }
+
+    private static boolean inBase(int[] offsets, int[] targets, int node, int target) {
+        if (node + 1 >= offsets.length) return false;  //node added after the last rebuild
+        return Arrays.binarySearch(targets, offsets[node], offsets[node + 1], target) >= 0;
+    }
+
+    private static int degree(int[] offsets, Map<Integer, Set<Integer>> added,
+                              Map<Integer, Set<Integer>> removed, int node) {
+        int base = node + 1 < offsets.length ? offsets[node + 1] - offsets[node] : 0;
+        return base + added.getOrDefault(node, Set.of()).size() - removed.getOrDefault(node, Set.of()).size();
+    }
+
+    private static int[] neighbors(int[] offsets, int[] targets, Map<Integer, Set<Integer>> added,
+                                   Map<Integer, Set<Integer>> removed, int node) {
+        int[] result = new int[degree(offsets, added, removed, node)];
+        int i = 0;
+        if (node + 1 < offsets.length) {
+            Set<Integer> gone = removed.getOrDefault(node, Set.of());
+            for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+                if (!gone.contains(targets[e])) result[i++] = targets[e];
+            }
+        }
+        for (int target : added.getOrDefault(node, Set.of())) result[i++] = target;
+        return result;
+    }
+
+    private static boolean contains(Map<Integer, Set<Integer>> delta, int node, int target) {
+        Set<Integer> set = delta.get(node);
+        return set != null && set.contains(target);
+    }
+
+    private static boolean remove(Map<Integer, Set<Integer>> delta, int node, int target) {
+        Set<Integer> set = delta.get(node);
+        if (set == null || !set.remove(target)) return false;
+        if (set.isEmpty()) delta.remove(node);
+        return true;
+    }
+
+    private List<String> toNames(int[] nodes) {
+        List<String> result = new ArrayList<>(nodes.length);
+        for (int n : nodes) result.add(names.get(n));
+        return result;
+    }
+}
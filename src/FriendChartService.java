@@ -0,0 +1,199 @@
+/* Materialized "top songs among friends" charts, one bounded top-k chart per user.
+ * Listens are fanned out on write to the charts of everyone following the listener, except for
+ * heavily followed users whose listens are merged in when a chart is read instead.
+ */
+
+import java.sql.*;
+import java.util.*;
+
+public class FriendChartService {
+    public static final int CHART_SIZE = 50;
+    private static final int HOT_FOLLOWERS = 1000;
+
+    private final FollowGraph graph;
+    //users with at least HOT_FOLLOWERS followers when the service was loaded, fanned out on read
+    private final Set<String> hotUsers = new HashSet<>();
+
+    //each user's own listen count per song
+    private final Map<String, Map<Integer, Integer>> listens = new HashMap<>();
+    //the top songs of each hot user by their own listens
+    private final Map<String, TopK> hotUserTops = new HashMap<>();
+    //friend listen counts per song from non-hot followees, plus their top-k
+    private final Map<String, Map<Integer, Integer>> friendCounts = new HashMap<>();
+    private final Map<String, TopK> charts = new HashMap<>();
+    private final Map<String, Set<String>> hotFollowees = new HashMap<>();
+
+    /**
+     * A song on a chart with the number of times it has been listened to
+     */
+    public record Entry(int songID, int listens) {}
+
+    private FriendChartService(FollowGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Builds every user's friend chart from the stored listens and the follow graph
+     * @param shards a connection to each shard, see ShardRouter
+     * @param graph the follow graph, kept in sync by the caller
+     * @return the populated service
+     * @throws SQLException if database access goes wrong
+     */
+    public static FriendChartService load(List<Connection> shards, FollowGraph graph) throws SQLException {
+        FriendChartService service = new FriendChartService(graph);
+        //each user's listens are all on one shard
+        for (Connection conn : shards) {
+            ResultSet rs = conn.prepareStatement("SELECT username, song_id, SUM(listens) FROM listen_counts " +
+                    "GROUP BY username, song_id").executeQuery();
+            while (rs.next()) {
+                service.listens.computeIfAbsent(rs.getString(1), u -> new HashMap<>()).put(rs.getInt(2), rs.getInt(3));
+            }
+        }
+
+        for (Map.Entry<String, Map<Integer, Integer>> user : service.listens.entrySet()) {
+            List<String> followers = graph.followers(user.getKey());
+            if (followers.size() >= HOT_FOLLOWERS) {
+                service.hotUsers.add(user.getKey());
+                service.hotUserTops.put(user.getKey(), TopK.of(user.getValue()));
+                for (String follower : followers) {
+                    service.hotFollowees.computeIfAbsent(follower, f -> new HashSet<>()).add(user.getKey());
+                }
+                continue;
+            }
+            for (String follower : followers) {
+                Map<Integer, Integer> counts = service.friendCounts.computeIfAbsent(follower, f -> new HashMap<>());
+                user.getValue().forEach((songID, n) -> counts.merge(songID, n, Integer::sum));
+            }
+        }
+        service.friendCounts.forEach((user, counts) -> service.charts.put(user, TopK.of(counts)));
+        return service;
+    }
+
+    /**
+     * Counts a listen towards the listener's followers' charts
+     * @param user the listening user
+     * @param songID the song listened to
+     */
+    public synchronized void recordListen(String user, int songID) {
+        int count = listens.computeIfAbsent(user, u -> new HashMap<>()).merge(songID, 1, Integer::sum);
+        if (hotUsers.contains(user)) {
+            hotUserTops.computeIfAbsent(user, u -> new TopK()).update(songID, count);
+            return;
+        }
+        for (String follower : graph.followers(user)) {
+            Map<Integer, Integer> counts = friendCounts.computeIfAbsent(follower, f -> new HashMap<>());
+            int friendCount = counts.merge(songID, 1, Integer::sum);
+            charts.computeIfAbsent(follower, f -> new TopK()).update(songID, friendCount);
+        }
+    }
+
+    /**
+     * Adds a newly followed user's listens to the follower's chart
+     */
+    public synchronized void follow(String follower, String followed) {
+        if (hotUsers.contains(followed)) {
+            hotFollowees.computeIfAbsent(follower, f -> new HashSet<>()).add(followed);
+            return;
+        }
+        Map<Integer, Integer> counts = friendCounts.computeIfAbsent(follower, f -> new HashMap<>());
+        listens.getOrDefault(followed, Map.of()).forEach((songID, n) -> counts.merge(songID, n, Integer::sum));
+        charts.put(follower, TopK.of(counts));
+    }
+
+    /**
+     * Removes an unfollowed user's listens from the follower's chart
+     */
+    public synchronized void unfollow(String follower, String followed) {
+        if (hotUsers.contains(followed)) {
+            Set<String> hot = hotFollowees.get(follower);
+            if (hot != null) hot.remove(followed);
+            return;
+        }
+        Map<Integer, Integer> counts = friendCounts.get(follower);
+        if (counts == null) return;
+        listens.getOrDefault(followed, Map.of()).forEach((songID, n) -> {
+            if (counts.merge(songID, -n, Integer::sum) <= 0) counts.remove(songID);
+        });
+        charts.put(follower, TopK.of(counts));
+    }
+
+    /**
+     * Gets the top songs among the users someone follows
+     * @param user the user whose chart to read
+     * @return up to CHART_SIZE songs, most listened first
+     */
+    public synchronized List<Entry> chart(String user) {
+        TopK materialized = charts.getOrDefault(user, new TopK());
+        Set<String> hot = hotFollowees.getOrDefault(user, Set.of());
+        if (hot.isEmpty()) return materialized.entries();
+
+        //fan-out on read: only songs already in one of the merged top lists can make the chart
+        Map<Integer, Integer> counts = friendCounts.getOrDefault(user, Map.of());
+        Set<Integer> candidates = new HashSet<>();
+        for (Entry e : materialized.entries()) candidates.add(e.songID());
+        for (String followee : hot) {
+            for (Entry e : hotUserTops.getOrDefault(followee, new TopK()).entries()) candidates.add(e.songID());
+        }
+        Map<Integer, Integer> merged = new HashMap<>();
+        for (int songID : candidates) {
+            int total = counts.getOrDefault(songID, 0);
+            for (String followee : hot) total += listens.getOrDefault(followee, Map.of()).getOrDefault(songID, 0);
+            merged.put(songID, total);
+        }
+        return TopK.of(merged).entries();
+    }
+
+    /**
+     * Bounded list of the CHART_SIZE highest counts, kept sorted in descending order
+     */
+    static class TopK {
+        private final int[] songIDs = new int[CHART_SIZE];
+        private final int[] counts = new int[CHART_SIZE];
+        private int size = 0;
+
+        static TopK of(Map<Integer, Integer> all) {
+            TopK top = new TopK();
+            all.forEach(top::update);
+            return top;
+        }
+
+        /**
+         * Raises a song's count, adding it to the list if it now beats the lowest entry
+         */
+        void update(int songID, int count) {
+            int pos = -1;
+            for (int i = 0; i < size; i++) {
+                if (songIDs[i] == songID) {
+                    pos = i;
+                    break;
+                }
+            }
+            if (pos == -1) {
+                if (size < CHART_SIZE) pos = size++;
+                else if (count > counts[size - 1]) pos = size - 1;
+                else return;
+                songIDs[pos] = songID;
+            }
+            counts[pos] = count;
+            while (pos > 0 && counts[pos - 1] < counts[pos]) {
+                swap(pos - 1, pos);
+                pos--;
+            }
+        }
+
+        List<Entry> entries() {
+            List<Entry> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) entries.add(new Entry(songIDs[i], counts[i]));
+            return entries;
+        }
+
+        private void swap(int a, int b) {
+            int id = songIDs[a];
+            int count = counts[a];
+            songIDs[a] = songIDs[b];
+            counts[a] = counts[b];
+            songIDs[b] = id;
+            counts[b] = count;
+        }
+    }
+}
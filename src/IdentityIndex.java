@@ -0,0 +1,187 @@
+/* Answers "does this user exist?" and "who has this email?" mostly without the database. A small
+ * cache of recently seen user rows answers most positives, and what the database finds is cached.
+ * A Bloom filter over every username answers definite negatives for registration trying new names.
+ *
+ * Registrations made through this process are added to the filter as they happen. Ones made by
+ * another process sharing the database, e.g. the HTTP service next to a console, only show up
+ * once the filter is rebuilt, at most REFRESH_MS later. So a negative is only trusted as a hint
+ * that a new username is free, where a duplicate registration in that window is still refused by
+ * the primary key; logins and lookups that miss the cache always ask the database.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IdentityIndex {
+    static final long REFRESH_MS = Long.getLong("dotify.identity.refreshMs", 300_000);
+    private static final int CACHE_SIZE = Integer.getInteger("dotify.identity.cacheSize", 10_000);
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    //room for this many times the users present at load before the false positive rate rises
+    private static final int GROWTH = 2;
+    private static final int MIN_CAPACITY = 1024;
+
+    private BloomFilter names;
+    private long builtAt;
+    private final Map<String, UserRecord> rows = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UserRecord> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final Map<String, String> usernamesByEmail = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The parts of a user_t row that never change after registration
+     */
+    public record UserRecord(String username, String firstName, String lastName, String email, Date creationDate) {
+        /**
+         * Reads the current row of a user_t query
+         */
+        static UserRecord from(ResultSet rs) throws SQLException {
+            return new UserRecord(rs.getString("username"), rs.getString("first_name"), rs.getString("last_name"),
+                    rs.getString("email"), rs.getDate("creation_date"));
+        }
+    }
+
+    /**
+     * Builds the filter from every user
+     * @param shards a connection to each shard, see ShardRouter
+     * @return the populated index
+     * @throws SQLException if database access goes wrong
+     */
+    public static IdentityIndex load(List<Connection> shards) throws SQLException {
+        IdentityIndex index = new IdentityIndex();
+        index.rebuild(shards);
+        return index;
+    }
+
+    /**
+     * Rebuilds the filter from every user, picking up registrations made by other processes.
+     * Lookups keep using the old filter until the new one is ready.
+     * @param shards a connection to each shard, see ShardRouter
+     * @throws SQLException if database access goes wrong
+     */
+    public void rebuild(List<Connection> shards) throws SQLException {
+        long users = 0;
+        for (Connection conn : shards) {
+            ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM user_t");
+            rs.next();
+            users += rs.getLong(1);
+        }
+        int capacity = (int) Math.min(Math.max(users * GROWTH, MIN_CAPACITY), Integer.MAX_VALUE / 16);
+        BloomFilter newNames = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+        long started = System.currentTimeMillis();
+        for (Connection conn : shards) {
+            ResultSet rs = conn.createStatement().executeQuery("SELECT username FROM user_t");
+            while (rs.next()) newNames.add(rs.getString(1));
+        }
+        synchronized (this) {
+            //anything registered here while the scan ran is already in the old filter
+            if (names != null) {
+                for (UserRecord row : rows.values()) newNames.add(row.username());
+            }
+            names = newNames;
+            builtAt = started;
+        }
+    }
+
+    /**
+     * @return if the filter is older than REFRESH_MS
+     */
+    public synchronized boolean needsRebuild() {
+        return System.currentTimeMillis() - builtAt > REFRESH_MS;
+    }
+
+    /**
+     * @return false if no user had that username when the filter was built or since registered
+     * through this process, true if one might
+     */
+    public synchronized boolean mightHaveUsername(String username) {
+        boolean maybe = names.mightContain(username);
+        MetricsRegistry.get().count("dotify_identity_lookups_total", 1, "answer", maybe ? "maybe" : "no");
+        return maybe;
+    }
+
+    /**
+     * @return the cached row of a user, or null if they aren't cached
+     */
+    public synchronized UserRecord cached(String username) {
+        return rows.get(username);
+    }
+
+    /**
+     * @return the username of the cached user with that email, or null if there's none
+     */
+    public synchronized String cachedUsername(String email) {
+        return usernamesByEmail.get(email);
+    }
+
+    /**
+     * Caches a user read from the database, or adds one just registered to the filter too
+     * @param row the user
+     */
+    public synchronized void remember(UserRecord row) {
+        names.add(row.username());
+        rows.put(row.username(), row);
+        usernamesByEmail.put(row.email(), row.username());
+    }
+
+    /**
+     * A fixed size Bloom filter. Each value sets hashes bits chosen by double hashing a 64 bit
+     * FNV-1a hash of its UTF-8 bytes.
+     */
+    static final class BloomFilter {
+        private final long[] bits;
+        private final long size;
+        private final int hashes;
+
+        /**
+         * @param capacity the number of values it's sized for
+         * @param falsePositiveRate the chance a value never added is reported as present, at capacity
+         */
+        BloomFilter(int capacity, double falsePositiveRate) {
+            long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            bits = new long[(int) ((m + 63) / 64)];
+            size = bits.length * 64L;
+            hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+        }
+
+        void add(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, size);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(String value) {
+            long hash = hash(value);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, size);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        private static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/* Every listen and the song details the stats charts need, held in memory as primitive columns so
+ * the charts are answered by scanning arrays instead of PostgreSQL. Listens are stored one column
+ * per field (song, time and count), appended to as listens are recorded. Songs are numbered as in
+ * the CatalogSnapshot, which supplies their genres, artists and names, and their all-time listens
+ * sit in a column indexed by that number.
+ *
+ * Scans split the listen columns into CHUNK sized blocks run in parallel, each a plain loop over
+ * int and long arrays the JIT can vectorize. Each block remembers its latest listen, so a chart
+ * over a recent window skips the blocks wholly before it; listens are loaded in time order and
+ * appended as they happen, so that's nearly all of them. A profile needs only one user's listens,
+ * so rather than a listener column each user keeps the numbers of their rows, and their totals are
+ * read from those rows alone.
+ *
+ * Listens come from listen_counts on every shard, so compacted history is included with its
+ * counts. Every process keeps its own columns, so listens recorded by other processes are picked
+ * up by refresh, which reads the listens made since the last load or refresh. It only reads
+ * listens at least SETTLE_MS old, so one committed a moment after its timestamp or not yet
+ * replayed on a replica isn't skipped. Listens this process already holds, its own or ones loaded
+ * before that window, are remembered as pending until a refresh reads them back, so they aren't
+ * counted twice.
+ */
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+public class ListenColumns {
+    static final int CHUNK = 1 << 16;
+    private static final int INITIAL_CAPACITY = CHUNK;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    static final long REFRESH_MS = Long.getLong("dotify.listens.refreshMs", 10_000);
+    static final long SETTLE_MS = Long.getLong("dotify.listens.settleMs", RoutingDataSource.MAX_LAG_MS + 5_000);
+
+    private final CatalogSnapshot catalog;
+    //by song number
+    private final AtomicLongArray songListens;
+    //song_id -> song number, -1 for none, as listens are loaded and recorded by song_id
+    private final int[] songNumbers;
+    private final Map<String, Integer> userNumbers = new HashMap<>();
+    //by user number
+    private final List<UserRows> userRows = new ArrayList<>();
+    //listens held but not yet read back by a refresh, by user and song, each its time
+    private final Map<String, ArrayDeque<Long>> pending = new HashMap<>();
+    //every listen up to this time has been read from the database
+    private long loadedUntil;
+    private long refreshedAt;
+
+    private volatile Listens listens;
+
+    /**
+     * The listen columns. Rows below size never change, so a scan reads a consistent prefix
+     * while listens are appended.
+     */
+    private static final class Listens {
+        final int[] songs;
+        final long[] times;
+        final int[] counts;
+        //the latest time in each block of CHUNK rows
+        final long[] blockLatest;
+        volatile int size;
+
+        Listens(int capacity) {
+            songs = new int[capacity];
+            times = new long[capacity];
+            counts = new int[capacity];
+            blockLatest = new long[(capacity + CHUNK - 1) / CHUNK];
+            Arrays.fill(blockLatest, Long.MIN_VALUE);
+        }
+
+        Listens grown() {
+            Listens grown = new Listens(songs.length * 2);
+            System.arraycopy(songs, 0, grown.songs, 0, size);
+            System.arraycopy(times, 0, grown.times, 0, size);
+            System.arraycopy(counts, 0, grown.counts, 0, size);
+            System.arraycopy(blockLatest, 0, grown.blockLatest, 0, blockLatest.length);
+            grown.size = size;
+            return grown;
+        }
+    }
+
+    /**
+     * The rows holding one user's listens, in the order they were appended. Rows below size never
+     * change, and growing replaces the array, so a reader holding rows and size sees a fixed list.
+     */
+    private static final class UserRows {
+        int[] rows = new int[8];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+        }
+    }
+
+    private ListenColumns(CatalogSnapshot catalog) {
+        this.catalog = catalog;
+        int songs = catalog.songCount();
+        songListens = new AtomicLongArray(songs);
+        songNumbers = new int[songs == 0 ? 0 : catalog.songID(songs - 1) + 1];
+        Arrays.fill(songNumbers, -1);
+        for (int song = 0; song < songs; song++) songNumbers[catalog.songID(song)] = song;
+        listens = new Listens(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Loads the listens and song listen counts from every shard
+     * @param shards a connection to each shard, see ShardRouter
+     * @param catalog the catalog
+     * @return the loaded columns
+     * @throws SQLException if database access goes wrong
+     */
+    public static ListenColumns load(List<Connection> shards, CatalogSnapshot catalog) throws SQLException {
+        ListenColumns columns = new ListenColumns(catalog);
+        long started = System.currentTimeMillis();
+        columns.loadedUntil = started - SETTLE_MS;
+        columns.refreshedAt = started;
+        //each shard's num_listens only counts its own users' listens
+        for (Connection conn : shards) {
+            //both read from one snapshot, so every listen counted in num_listens is loaded and vice versa
+            inSnapshot(conn, () -> {
+                ResultSet rs = conn.createStatement().executeQuery(
+                        "SELECT song_id, num_listens FROM song WHERE num_listens > 0");
+                while (rs.next()) columns.addSongListens(rs.getInt(1), rs.getLong(2));
+                rs = conn.createStatement().executeQuery(
+                        "SELECT username, song_id, date_listened, listens FROM listen_counts ORDER BY date_listened");
+                while (rs.next()) {
+                    long time = rs.getTimestamp(3).getTime();
+                    columns.append(rs.getString(1), rs.getInt(2), time, rs.getInt(4));
+                    if (time > columns.loadedUntil) columns.addPending(rs.getString(1), rs.getInt(2), time);
+                }
+            });
+        }
+        return columns;
+    }
+
+    /**
+     * @return if the columns were last loaded or refreshed more than REFRESH_MS ago
+     */
+    public synchronized boolean needsRefresh() {
+        return System.currentTimeMillis() - refreshedAt > REFRESH_MS;
+    }
+
+    /**
+     * Adds the listens recorded since the last load or refresh, by any process, that aren't
+     * already held
+     * @param shards a connection to each shard, see ShardRouter
+     * @throws SQLException if database access goes wrong, leaving the columns as they were
+     */
+    public void refresh(List<Connection> shards) throws SQLException {
+        long started = System.currentTimeMillis();
+        long until = started - SETTLE_MS;
+        long from;
+        synchronized (this) {
+            from = loadedUntil;
+        }
+        List<Object[]> added = new ArrayList<>();
+        for (Connection conn : shards) {
+            PreparedStatement ps = conn.prepareStatement("SELECT username, song_id, date_listened, listens " +
+                    "FROM listen_counts WHERE date_listened > ? AND date_listened <= ? ORDER BY date_listened");
+            ps.setTimestamp(1, new Timestamp(from));
+            ps.setTimestamp(2, new Timestamp(until));
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                added.add(new Object[]{rs.getString(1), rs.getInt(2), rs.getTimestamp(3).getTime(), rs.getInt(4)});
+            }
+        }
+        synchronized (this) {
+            for (Object[] listen : added) {
+                String username = (String) listen[0];
+                int songID = (int) listen[1];
+                if (claimPending(username, songID)) continue;
+                append(username, songID, (long) listen[2], (int) listen[3]);
+                addSongListens(songID, (int) listen[3]);
+            }
+            //anything held from before the window's end would have been read back by now
+            for (Iterator<ArrayDeque<Long>> times = pending.values().iterator(); times.hasNext(); ) {
+                ArrayDeque<Long> held = times.next();
+                while (!held.isEmpty() && held.peekFirst() <= until) held.pollFirst();
+                if (held.isEmpty()) times.remove();
+            }
+            loadedUntil = until;
+            refreshedAt = started;
+        }
+    }
+
+    /**
+     * Records a listen as it happens
+     * @param username the listener
+     * @param songID the song
+     */
+    public synchronized void recordListen(String username, int songID) {
+        //the database's timestamp was taken before this, so a refresh reading it back has it pending
+        long now = System.currentTimeMillis();
+        append(username, songID, now, 1);
+        addSongListens(songID, 1);
+        addPending(username, songID, now);
+    }
+
+    private synchronized void addPending(String username, int songID, long time) {
+        pending.computeIfAbsent(username + "\n" + songID, k -> new ArrayDeque<>()).addLast(time);
+    }
+
+    private synchronized boolean claimPending(String username, int songID) {
+        ArrayDeque<Long> held = pending.get(username + "\n" + songID);
+        if (held == null) return false;
+        held.pollFirst();
+        if (held.isEmpty()) pending.remove(username + "\n" + songID);
+        return true;
+    }
+
+    private static void inSnapshot(Connection conn, SQLWork work) throws SQLException {
+        if (!conn.getAutoCommit()) {    //already in the caller's transaction
+            work.run();
+            return;
+        }
+        int isolation = conn.getTransactionIsolation();
+        conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        try {
+            new PlaylistEditor(conn).inTransaction(work);
+        } finally {
+            conn.setTransactionIsolation(isolation);
+        }
+    }
+
+    private synchronized void append(String username, int songID, long time, int count) {
+        int song = songNumber(songID);
+        if (song < 0) return;   //added to the catalog since loading
+        Listens columns = listens;
+        if (columns.size == columns.songs.length) {
+            columns = columns.grown();
+            listens = columns;
+        }
+        int row = columns.size;
+        int user = userNumbers.computeIfAbsent(username, u -> userNumbers.size());
+        if (user == userRows.size()) userRows.add(new UserRows());
+        userRows.get(user).add(row);
+        columns.songs[row] = song;
+        columns.times[row] = time;
+        columns.counts[row] = count;
+        columns.blockLatest[row / CHUNK] = Math.max(columns.blockLatest[row / CHUNK], time);
+        columns.size = row + 1;
+    }
+
+    private void addSongListens(int songID, long listens) {
+        int song = songNumber(songID);
+        if (song >= 0) songListens.addAndGet(song, listens);
+    }
+
+    private int songNumber(int songID) {
+        return songID >= 0 && songID < songNumbers.length ? songNumbers[songID] : -1;
+    }
+
+    /**
+     * @return the number of listen rows held, compacted history counting one per user, song and day
+     */
+    public int size() {
+        return listens.size;
+    }
+
+    //region Charts
+
+    /**
+     * The songs heard since a time, ranked by all-time listens, as SQL_TOP50_LAST_30_DAYS does
+     * @param since the start of the window, in System.currentTimeMillis
+     * @param k the length of the chart
+     * @return the chart, most listened first
+     */
+    public List<DotifyOperations.ChartEntry> topSongsHeardSince(long since, int k) {
+        BitSet heard = heardSince(since);
+        Map<Integer, Long> totals = new HashMap<>();
+        for (int song = heard.nextSetBit(0); song >= 0; song = heard.nextSetBit(song + 1)) {
+            long total = songListens.get(song);
+            if (total > 0) totals.put(song, total);
+        }
+        return chart(ShardRouter.topK(List.of(totals), k), catalog::title);
+    }
+
+    /**
+     * The genres of the songs heard since a time, ranked by those songs' all-time listens, as
+     * SQL_TOP5_GENRES_MONTH does
+     * @param since the start of the window, in System.currentTimeMillis
+     * @param k the length of the chart
+     * @return the chart, most listened first
+     */
+    public List<DotifyOperations.ChartEntry> topGenresHeardSince(long since, int k) {
+        BitSet heard = heardSince(since);
+        Map<Integer, Long> totals = new HashMap<>();
+        for (int song = heard.nextSetBit(0); song >= 0; song = heard.nextSetBit(song + 1)) {
+            long total = songListens.get(song);
+            if (total > 0) totals.merge(catalog.genreID(song), total, Long::sum);
+        }
+        return chart(ShardRouter.topK(List.of(totals), k), catalog::genreName);
+    }
+
+    /**
+     * A user's listens per artist, as SQL_TOP_ARTISTS_BY_LISTENS counts them
+     * @param username the user
+     * @return each artist_id they've heard and how many times
+     */
+    public Map<Integer, Long> artistListens(String username) {
+        Listens columns;
+        int[] rows;
+        int count;
+        synchronized (this) {
+            Integer user = userNumbers.get(username);
+            if (user == null) return new HashMap<>();
+            columns = listens;
+            rows = userRows.get(user).rows;
+            count = userRows.get(user).size;
+        }
+        Map<Integer, Long> songTotals = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            songTotals.merge(columns.songs[rows[i]], (long) columns.counts[rows[i]], Long::sum);
+        }
+        Map<Integer, Long> totals = new HashMap<>();
+        for (Map.Entry<Integer, Long> song : songTotals.entrySet()) {
+            for (int i = 0; i < catalog.artistCount(song.getKey()); i++) {
+                totals.merge(catalog.artistID(song.getKey(), i), song.getValue(), Long::sum);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Ranks artist totals for a profile
+     * @param totals how many times each artist_id was counted
+     * @return the artists, highest total first
+     */
+    public List<PostgresLogic.ArtistTotal> rankArtists(Map<Integer, Long> totals) {
+        List<PostgresLogic.ArtistTotal> ranked = new ArrayList<>(totals.size());
+        for (Map.Entry<Integer, Long> total : totals.entrySet()) {
+            String name = catalog.artistName(total.getKey());
+            ranked.add(new PostgresLogic.ArtistTotal(name, (int) (long) total.getValue()));
+        }
+        ranked.sort(Comparator.comparingInt(PostgresLogic.ArtistTotal::total).reversed());
+        return ranked;
+    }
+
+    /**
+     * @param songID a song
+     * @return its title, or null if it isn't in the catalog
+     */
+    public String title(int songID) {
+        int song = songNumber(songID);
+        return song < 0 ? null : catalog.title(song);
+    }
+
+    /**
+     * @return the start of the current calendar month, in System.currentTimeMillis
+     */
+    public static long startOfMonth() {
+        return LocalDate.now().withDayOfMonth(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the time a number of days ago, in System.currentTimeMillis
+     */
+    public static long daysAgo(int days) {
+        return System.currentTimeMillis() - days * DAY_MILLIS;
+    }
+
+    //endregion
+
+    //region Scans
+
+    /**
+     * Marks every song heard since a time, skipping blocks of listens that all came before it
+     */
+    private BitSet heardSince(long since) {
+        Listens columns = listens;
+        int size = columns.size;
+        return IntStream.range(0, (size + CHUNK - 1) / CHUNK).parallel()
+                .filter(block -> columns.blockLatest[block] >= since)
+                //each worker marks blocks into its own set, merged in place at the end
+                .collect(() -> new BitSet(catalog.songCount()), (heard, block) -> {
+                    int end = Math.min(size, (block + 1) * CHUNK);
+                    for (int row = block * CHUNK; row < end; row++) {
+                        if (columns.times[row] >= since) heard.set(columns.songs[row]);
+                    }
+                }, BitSet::or);
+    }
+
+    //endregion
+
+    private static List<DotifyOperations.ChartEntry> chart(List<Map.Entry<Integer, Long>> top,
+                                                           IntFunction<String> name) {
+        List<DotifyOperations.ChartEntry> chart = new ArrayList<>(top.size());
+        for (Map.Entry<Integer, Long> entry : top) {
+            chart.add(new DotifyOperations.ChartEntry(name.apply(entry.getKey()), entry.getValue()));
+        }
+        return chart;
+    }
+}
@@ -0,0 +1,220 @@
+/* Manages the size of the listen history. user_listens_song is range partitioned by month so
+ * recent-window queries only touch recent partitions. Raw listens older than the retention window
+ * are compacted into per (user, song, day) counts in user_listens_daily and their partitions dropped.
+ * The listen_counts view combines both so all-time queries see every listen.
+ *
+ * Every shard keeps its own users' listens, so running directly partitions the existing table or
+ * runs the periodic maintenance on shard 0 and every shard in -Ddotify.shards:
+ *   ListenHistory migrate
+ *   ListenHistory maintain [raw months to keep] [daily months to keep, 0 for forever]
+ */
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ListenHistory {
+    public static final int DEFAULT_RAW_MONTHS = 13;
+    private static final int MONTHS_AHEAD = 3;
+    private static final String TABLE = "user_listens_song";
+
+    private final Connection conn;
+
+    public ListenHistory(Connection conn) {
+        this.conn = conn;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 1) {
+            System.out.println("Usage: ListenHistory migrate");
+            System.out.println("       ListenHistory maintain [raw months to keep] [daily months to keep]");
+            return;
+        }
+        int rawMonths = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RAW_MONTHS;
+        int dailyMonths = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        try (ShardRouter shards = ShardRouter.open(ConnectionPool.of(DBConnEstablisher.getConnection()))) {
+            System.out.println("Connected to " + shards.size() + " shards");
+            List<int[]> results = shards.scatter(false, conn -> {
+                ListenHistory history = new ListenHistory(conn);
+                history.ensureSchema();
+                if (args[0].equals("migrate")) {
+                    history.migrate();
+                } else if (args[0].equals("maintain")) {
+                    history.ensurePartitions();
+                    return new int[]{history.compact(rawMonths), dailyMonths > 0 ? history.dropDaily(dailyMonths) : 0};
+                }
+                return new int[2];
+            });
+            if (args[0].equals("maintain")) {
+                for (int shard = 0; shard < results.size(); shard++) {
+                    System.out.println("Shard " + shard + ": compacted " + results.get(shard)[0] +
+                            " monthly partitions and removed " + results.get(shard)[1] + " daily rows");
+                }
+            }
+        }
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Creates the daily rollup table and the listen_counts view, and makes sure upcoming
+     * months have partitions if the listen table has been partitioned
+     * @throws SQLException if database access goes wrong
+     */
+    public void ensureSchema() throws SQLException {
+        Statement st = conn.createStatement();
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS user_listens_daily (
+                    username VARCHAR NOT NULL,
+                    song_id INT NOT NULL,
+                    day DATE NOT NULL,
+                    listens INT NOT NULL,
+                    PRIMARY KEY (username, song_id, day))""");
+        createView();
+        if (isPartitioned()) ensurePartitions();
+    }
+
+    /**
+     * Replaces the plain listen table with one partitioned by month, copying every listen over
+     * @throws SQLException if database access goes wrong
+     */
+    public void migrate() throws SQLException {
+        if (isPartitioned()) {
+            System.out.println(TABLE + " is already partitioned");
+            return;
+        }
+        conn.setAutoCommit(false);
+        try {
+            Statement st = conn.createStatement();
+            st.execute("DROP VIEW IF EXISTS listen_counts");    //would otherwise follow the renamed table
+            st.execute("ALTER TABLE " + TABLE + " RENAME TO " + TABLE + "_unpartitioned");
+            st.execute("CREATE TABLE " + TABLE + " (LIKE " + TABLE + "_unpartitioned INCLUDING DEFAULTS " +
+                    "INCLUDING CONSTRAINTS) PARTITION BY RANGE (date_listened)");
+            st.execute("CREATE TABLE " + TABLE + "_default PARTITION OF " + TABLE + " DEFAULT");
+            st.execute("CREATE INDEX ON " + TABLE + " (username, date_listened)");
+            st.execute("CREATE INDEX ON " + TABLE + " (date_listened, song_id)");
+
+            ResultSet rs = st.executeQuery("SELECT MIN(date_listened) FROM " + TABLE + "_unpartitioned");
+            rs.next();
+            Timestamp oldest = rs.getTimestamp(1);
+            YearMonth month = oldest == null ? YearMonth.now() : YearMonth.from(oldest.toLocalDateTime());
+            for (YearMonth last = YearMonth.now().plusMonths(MONTHS_AHEAD); !month.isAfter(last); month = month.plusMonths(1)) {
+                createPartition(month);
+            }
+
+            int moved = st.executeUpdate("INSERT INTO " + TABLE + " SELECT * FROM " + TABLE + "_unpartitioned");
+            st.execute("DROP TABLE " + TABLE + "_unpartitioned");
+            createView();
+            conn.commit();
+            System.out.println("Moved " + moved + " listens into monthly partitions");
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Creates partitions for the current month and the next few so new listens never land in
+     * the default partition
+     * @throws SQLException if database access goes wrong
+     */
+    public void ensurePartitions() throws SQLException {
+        for (int i = 0; i <= MONTHS_AHEAD; i++) createPartition(YearMonth.now().plusMonths(i));
+    }
+
+    /**
+     * Rolls every monthly partition older than the retention window up into daily counts and
+     * drops it, each partition in its own transaction
+     * @param rawMonths how many whole months of raw listens to keep before the current one
+     * @return the number of partitions compacted
+     * @throws SQLException if database access goes wrong
+     */
+    public int compact(int rawMonths) throws SQLException {
+        YearMonth cutoff = YearMonth.now().minusMonths(rawMonths);
+        List<String> expired = new ArrayList<>();
+        for (String partition : partitions()) {
+            YearMonth month = monthOf(partition);
+            if (month != null && month.isBefore(cutoff)) expired.add(partition);
+        }
+
+        for (String partition : expired) {
+            conn.setAutoCommit(false);
+            try {
+                Statement st = conn.createStatement();
+                st.execute("ALTER TABLE " + TABLE + " DETACH PARTITION " + partition);
+                st.executeUpdate("INSERT INTO user_listens_daily SELECT username, song_id, date_listened::date, COUNT(*) " +
+                        "FROM " + partition + " GROUP BY username, song_id, date_listened::date " +
+                        "ON CONFLICT (username, song_id, day) DO UPDATE SET " +
+                        "listens = user_listens_daily.listens + EXCLUDED.listens");
+                st.execute("DROP TABLE " + partition);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Deletes daily rollups older than a retention window
+     * @param dailyMonths how many months of daily counts to keep
+     * @return the number of rows deleted
+     * @throws SQLException if database access goes wrong
+     */
+    public int dropDaily(int dailyMonths) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("DELETE FROM user_listens_daily WHERE day < ?");
+        ps.setDate(1, Date.valueOf(YearMonth.now().minusMonths(dailyMonths).atDay(1)));
+        return ps.executeUpdate();
+    }
+
+    private void createView() throws SQLException {
+        conn.createStatement().execute("""
+                CREATE OR REPLACE VIEW listen_counts AS
+                    SELECT username, song_id, date_listened, 1 AS listens FROM user_listens_song
+                    UNION ALL
+                    SELECT username, song_id, day::timestamp, listens FROM user_listens_daily""");
+    }
+
+    private boolean isPartitioned() throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM pg_partitioned_table pt, pg_class c " +
+                "WHERE pt.partrelid = c.oid AND c.relname = ? AND pg_table_is_visible(c.oid)");
+        ps.setString(1, TABLE);
+        return ps.executeQuery().next();
+    }
+
+    private void createPartition(YearMonth month) throws SQLException {
+        LocalDate from = month.atDay(1);
+        LocalDate to = month.plusMonths(1).atDay(1);
+        conn.createStatement().execute("CREATE TABLE IF NOT EXISTS " + partitionName(month) + " PARTITION OF " +
+                TABLE + " FOR VALUES FROM ('" + from + "') TO ('" + to + "')");
+    }
+
+    private List<String> partitions() throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT c.relname FROM pg_inherits i, pg_class c, pg_class p " +
+                "WHERE i.inhrelid = c.oid AND i.inhparent = p.oid AND p.relname = ? AND pg_table_is_visible(p.oid)");
+        ps.setString(1, TABLE);
+        ResultSet rs = ps.executeQuery();
+        List<String> names = new ArrayList<>();
+        while (rs.next()) names.add(rs.getString(1));
+        return names;
+    }
+
+    private static String partitionName(YearMonth month) {
+        return String.format("%s_y%04dm%02d", TABLE, month.getYear(), month.getMonthValue());
+    }
+
+    private static YearMonth monthOf(String partition) {
+        String prefix = TABLE + "_y";
+        if (!partition.startsWith(prefix) || partition.length() != prefix.length() + 7) return null;
+        return YearMonth.of(Integer.parseInt(partition.substring(prefix.length(), prefix.length() + 4)),
+                Integer.parseInt(partition.substring(prefix.length() + 5)));
+    }
+}
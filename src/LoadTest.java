@@ -0,0 +1,315 @@
+/* Load test that drives many simulated users at once through DotifyOperations, the same layer
+ * behind the Dotify menus and DotifyService, sharing one connection pool the way the service
+ * does, with a think time between each user's operations. Reports the throughput and
+ * p50/p95/p99 latency of every operation, named after the PostgresLogic method it stands in for,
+ * and counts every operation that failed, whatever it threw.
+ *
+ * Point it at a local database with -Ddotify.db.url=jdbc:postgresql://localhost/dotify, load the
+ * catalog with DataParser, then seed load test users on top of it. Seeding writes to shard 0, so
+ * with -Ddotify.shards set run ShardRouter rebalance afterwards. -Ddotify.loadtest.connections
+ * sizes the pool (20 by default):
+ *   LoadTest seed <users> [listens per user]
+ *   LoadTest run <users> <seconds> [mean think time ms] [mix, e.g. searchSong=25,listen=30]
+ */
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoadTest {
+    private static final String USER_PREFIX = "loadtest_";
+    private static final String PLAYLIST = "load test";
+    private static final int SONGS_PER_PLAYLIST = 20;
+    private static final int FOLLOWS_PER_USER = 10;
+    private static final int DEFAULT_LISTENS_PER_USER = 200;
+    private static final int DEFAULT_THINK_MS = 500;
+    private static final int CONNECTIONS = Integer.getInteger("dotify.loadtest.connections", 20);
+    private static final String PASSWORD = "password";
+    private static final Set<String> OPERATIONS = Set.of("searchSong", "listen", "editPlaylist",
+            "viewAllPlaylists", "followFriend", "viewProfile", "top50last30days", "top5month", "forYou");
+    private static final String DEFAULT_MIX = "searchSong=25,listen=30,editPlaylist=10,viewAllPlaylists=5," +
+            "followFriend=5,viewProfile=10,top50last30days=5,top5month=5,forYou=5";
+    private static final String[] SEARCH_TERMS = {"love", "the", "night", "me", "you", "a", "in", "day"};
+
+    private final int users;
+    private final int[] songIDs;
+    private final String[] operations;
+    private final int[] cumulativeWeights;
+    private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+    private final AtomicInteger failedSessions = new AtomicInteger();
+
+    /**
+     * Recorded durations of one operation, in nanoseconds
+     */
+    private static class Latencies {
+        private long[] nanos = new long[1024];
+        private int count = 0;
+        private int errors = 0;
+
+        synchronized void add(long duration) {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = duration;
+        }
+
+        synchronized void error() {
+            errors++;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private LoadTest(int users, int[] songIDs, String mix) {
+        this.users = users;
+        this.songIDs = songIDs;
+        String[] parts = mix.split(",");
+        operations = new String[parts.length];
+        cumulativeWeights = new int[parts.length];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] op = parts[i].split("=");
+            if (op.length != 2 || !OPERATIONS.contains(op[0].trim())) {
+                throw new IllegalArgumentException("Unknown operation in mix: " + parts[i]);
+            }
+            operations[i] = op[0].trim();
+            total += Integer.parseInt(op[1].trim());
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    public static void main(String[] args) throws SQLException, InterruptedException {
+        if (args.length < 2 || (args[0].equals("run") && args.length < 3)) {
+            System.out.println("Usage: LoadTest seed <users> [listens per user]");
+            System.out.println("       LoadTest run <users> <seconds> [mean think time ms] [mix]");
+            return;
+        }
+        Connection conn = DBConnEstablisher.getConnection();
+        System.out.println("Connected to database");
+        int users = Integer.parseInt(args[1]);
+        int[] songIDs = songIDs(conn);
+
+        if (args[0].equals("seed")) {
+            seed(conn, users, args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_LISTENS_PER_USER, songIDs);
+        } else if (args[0].equals("run")) {
+            int seconds = Integer.parseInt(args[2]);
+            int thinkMs = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_THINK_MS;
+            LoadTest test = new LoadTest(users, songIDs, args.length > 4 ? args[4] : DEFAULT_MIX);
+            try (ShardRouter shards = ShardRouter.open(new ConnectionPool(CONNECTIONS))) {
+                shards.onEach(DotifyOperations::prepareHotStatements);
+                DotifyOperations ops = new DotifyOperations(shards);
+                //build the indexes up front so the first users' operations don't time the build
+                ops.warmUp();
+                try {
+                    test.run(ops, seconds, thinkMs);
+                } finally {
+                    ops.close();
+                }
+            }
+        }
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Creates load test users with a playlist each, follows between them and a listen history,
+     * all drawn at random from the loaded catalog
+     * @throws SQLException if database access goes wrong
+     */
+    private static void seed(Connection conn, int users, int listensPerUser, int[] songIDs) throws SQLException {
+        Array ids = conn.createArrayOf("integer", Arrays.stream(songIDs).boxed().toArray());
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO user_t SELECT ? || u, ?, 'Load', " +
+                "'Test ' || u, ? || u || '@example.com', CURRENT_DATE, CURRENT_DATE FROM generate_series(0, ? - 1) u " +
+                "ON CONFLICT DO NOTHING");
+        ps.setString(1, USER_PREFIX);
+        ps.setString(2, PASSWORD);
+        ps.setString(3, USER_PREFIX);
+        ps.setInt(4, users);
+        System.out.println("Created " + ps.executeUpdate() + " users");
+
+        ps = conn.prepareStatement("INSERT INTO playlist SELECT ?, ? || u FROM generate_series(0, ? - 1) u " +
+                "ON CONFLICT DO NOTHING");
+        ps.setString(1, PLAYLIST);
+        ps.setString(2, USER_PREFIX);
+        ps.setInt(3, users);
+        ps.executeUpdate();
+
+        //random() is evaluated per row, so every row draws its own song
+        ps = conn.prepareStatement("INSERT INTO song_on_playlist SELECT DISTINCT " +
+                "a.ids[1 + floor(random() * cardinality(a.ids))::int], ?, ? || u FROM (SELECT ?::int[] AS ids) a, " +
+                "generate_series(0, ? - 1) u, generate_series(1, ?) k ON CONFLICT DO NOTHING");
+        ps.setString(1, PLAYLIST);
+        ps.setString(2, USER_PREFIX);
+        ps.setArray(3, ids);
+        ps.setInt(4, users);
+        ps.setInt(5, SONGS_PER_PLAYLIST);
+        System.out.println("Added " + ps.executeUpdate() + " playlist songs");
+
+        ps = conn.prepareStatement("INSERT INTO following SELECT DISTINCT ? || f.u, ? || f.v FROM " +
+                "(SELECT u, floor(random() * ?)::int AS v FROM generate_series(0, ? - 1) u, generate_series(1, ?) k) f " +
+                "WHERE f.u <> f.v ON CONFLICT DO NOTHING");
+        ps.setString(1, USER_PREFIX);
+        ps.setString(2, USER_PREFIX);
+        ps.setInt(3, users);
+        ps.setInt(4, users);
+        ps.setInt(5, FOLLOWS_PER_USER);
+        System.out.println("Added " + ps.executeUpdate() + " follows");
+
+        ps = conn.prepareStatement("INSERT INTO user_listens_song SELECT ? || u, " +
+                "a.ids[1 + floor(random() * cardinality(a.ids))::int], NOW() - random() * INTERVAL '400 days' " +
+                "FROM (SELECT ?::int[] AS ids) a, generate_series(0, ? - 1) u, generate_series(1, ?) k");
+        ps.setString(1, USER_PREFIX);
+        ps.setArray(2, ids);
+        ps.setInt(3, users);
+        ps.setInt(4, listensPerUser);
+        System.out.println("Added " + ps.executeUpdate() + " listens");
+
+        new PlaylistStats(conn).verifyAndRepair();
+        conn.createStatement().execute("ANALYZE");
+    }
+
+    /**
+     * Runs every simulated user until the time is up, then prints the report
+     * @param ops the operations every user shares
+     * @param seconds how long to run for
+     * @param thinkMs the mean pause between one user's operations
+     * @throws InterruptedException if interrupted while waiting for the users to finish
+     */
+    private void run(DotifyOperations ops, int seconds, int thinkMs) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        List<Thread> sessions = new ArrayList<>(users);
+        for (int n = 0; n < users; n++) {
+            int user = n;
+            Thread session = new Thread(() -> session(ops, user, deadline, thinkMs), "loadtest-" + n);
+            sessions.add(session);
+            session.start();
+        }
+        for (Thread session : sessions) session.join();
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * One simulated user: logs in, then picks operations from the mix until the deadline
+     */
+    private void session(DotifyOperations ops, int n, long deadline, int thinkMs) {
+        String user = USER_PREFIX + n;
+        if (!timed("login", () -> login(ops, user))) {
+            failedSessions.incrementAndGet();
+            return;
+        }
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                String operation = pickOperation();
+                timed(operation, () -> runOperation(operation, ops, user));
+                //uniform around the mean so users drift out of lockstep
+                Thread.sleep(ThreadLocalRandom.current().nextInt(2 * thinkMs + 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs one operation, recording its latency if it succeeded and an error if it threw anything
+     * @return if it succeeded
+     */
+    private boolean timed(String operation, SQLWork work) {
+        Latencies recorded = latencies.computeIfAbsent(operation, o -> new Latencies());
+        long start = System.nanoTime();
+        try {
+            work.run();
+            recorded.add(System.nanoTime() - start);
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            //a failure that escaped would end the session and drop it from the results
+            recorded.error();
+            return false;
+        }
+    }
+
+    private String pickOperation() {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < operations.length; i++) {
+            if (pick < cumulativeWeights[i]) return operations[i];
+        }
+        return operations[operations.length - 1];
+    }
+
+    private void runOperation(String operation, DotifyOperations ops, String user) throws SQLException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (operation) {
+            case "searchSong" -> ops.search(random.nextInt(2), random.nextInt(9),
+                    SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)]);
+            case "listen" -> ops.listen(user, randomSong());
+            case "editPlaylist" -> {
+                Integer[] songs = {randomSong(), randomSong(), randomSong()};
+                if (random.nextBoolean()) ops.addSongs(user, PLAYLIST, songs);
+                else ops.removeSongs(user, PLAYLIST, songs);
+            }
+            case "viewAllPlaylists" -> ops.playlists(user);
+            case "followFriend" -> {
+                //toggle so the follow graph stays about the same size
+                String other = USER_PREFIX + random.nextInt(users);
+                if (!ops.unfollow(user, other) && !other.equals(user)) ops.follow(user, other);
+            }
+            case "viewProfile" -> ops.profile(USER_PREFIX + random.nextInt(users));
+            case "top50last30days" -> ops.top50Last30Days();
+            case "top5month" -> ops.top5GenresThisMonth();
+            case "forYou" -> {
+                switch (random.nextInt(3)) {
+                    case 0 -> ops.recommendFromHistory(user);
+                    case 1 -> ops.recommendFromSimilarUser(user);
+                    default -> ops.recommendFromTaste(user);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private void login(DotifyOperations ops, String user) throws SQLException {
+        if (!ops.login(user, PASSWORD)) throw new SQLException(user + " hasn't been seeded");
+    }
+
+    private int randomSong() {
+        return songIDs[ThreadLocalRandom.current().nextInt(songIDs.length)];
+    }
+
+    private static int[] songIDs(Connection conn) throws SQLException {
+        ResultSet rs = conn.createStatement().executeQuery("SELECT song_id FROM song");
+        int[] ids = new int[1024];
+        int count = 0;
+        while (rs.next()) {
+            if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = rs.getInt(1);
+        }
+        if (count == 0) throw new SQLException("The song catalog is empty, load it with DataParser first");
+        return Arrays.copyOf(ids, count);
+    }
+
+    private void report(double elapsedSeconds) {
+        System.out.println(PostgresLogic.LINE_SEPARATOR);
+        System.out.printf("%d users for %.1fs, %d sessions failed to log in%n", users, elapsedSeconds, failedSessions.get());
+        System.out.printf("%-18s %8s %8s %9s %9s %9s %9s%n", "operation", "count", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms");
+        long total = 0;
+        for (Map.Entry<String, Latencies> entry : new TreeMap<>(latencies).entrySet()) {
+            long[] sorted = entry.getValue().sorted();
+            total += sorted.length;
+            System.out.printf("%-18s %8d %8d %9.1f %9.2f %9.2f %9.2f%n", entry.getKey(), sorted.length,
+                    entry.getValue().errors, sorted.length / elapsedSeconds,
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99));
+        }
+        System.out.printf("%-18s %8d %8s %9.1f%n", "total", total, "", total / elapsedSeconds);
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(rank, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,249 @@
+/* Process-wide counters and timers for Dotify's subsystems, plus the per-statement figures from
+ * StatementMetrics. Everything is readable over JMX as the dotify:type=Metrics MBean and can be
+ * written as a Prometheus text file, e.g. for node_exporter's textfile collector.
+ *
+ * Series are named the Prometheus way, a metric name plus optional label pairs:
+ *   MetricsRegistry.get().time("dotify_menu_action_seconds", nanos, "action", "searchSong");
+ */
+
+import javax.management.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class MetricsRegistry implements DynamicMBean {
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    /**
+     * A metric name with its rendered labels, e.g. action="searchSong"
+     */
+    private record Series(String name, String labels) implements Comparable<Series> {
+        @Override
+        public String toString() {
+            return labels.isEmpty() ? name : name + "{" + labels + "}";
+        }
+
+        String with(String suffix, String extraLabel) {
+            String all = labels.isEmpty() ? extraLabel : extraLabel.isEmpty() ? labels : labels + "," + extraLabel;
+            return name + suffix + (all.isEmpty() ? "" : "{" + all + "}");
+        }
+
+        @Override
+        public int compareTo(Series other) {
+            return toString().compareTo(other.toString());
+        }
+    }
+
+    private final Map<Series, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<Series, StatementMetrics.Histogram> timers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumper;
+
+    private MetricsRegistry() {}
+
+    /**
+     * @return the registry shared by the whole process
+     */
+    public static MetricsRegistry get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds to a counter
+     * @param name the metric name, ending in _total by convention
+     * @param n the amount to add
+     * @param labels label names and values, alternating
+     */
+    public void count(String name, long n, String... labels) {
+        counters.computeIfAbsent(series(name, labels), s -> new LongAdder()).add(n);
+    }
+
+    /**
+     * Records a duration
+     * @param name the metric name, ending in _seconds by convention
+     * @param nanos the duration in nanoseconds
+     * @param labels label names and values, alternating
+     */
+    public void time(String name, long nanos, String... labels) {
+        timers.computeIfAbsent(series(name, labels), s -> new StatementMetrics.Histogram()).record(nanos);
+    }
+
+    /**
+     * Registers the registry with the platform MBean server, doing nothing if it already is
+     */
+    public void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("dotify:type=Metrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites a Prometheus text file on a background thread until the process exits
+     * @param file the file to keep up to date
+     * @param periodSeconds how often to rewrite it
+     */
+    public synchronized void startDumping(Path file, long periodSeconds) {
+        if (dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                writePrometheus(file);
+            } catch (IOException e) {
+                System.err.println("Could not write metrics: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format, replacing the file atomically so a
+     * collector never reads half of it
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writePrometheus(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temp, prometheus(), StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder();
+        Set<String> typed = new HashSet<>();
+        for (Map.Entry<Series, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            if (typed.add(counter.getKey().name())) out.append("# TYPE ").append(counter.getKey().name()).append(" counter\n");
+            out.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<Series, StatementMetrics.Histogram> timer : new TreeMap<>(timers).entrySet()) {
+            if (typed.add(timer.getKey().name())) out.append("# TYPE ").append(timer.getKey().name()).append(" summary\n");
+            appendSummary(out, timer.getKey(), timer.getValue());
+        }
+
+        out.append("# TYPE dotify_sql_duration_seconds summary\n");
+        for (StatementMetrics.QueryStats stats : StatementMetrics.snapshot()) {
+            Series series = new Series("dotify_sql_duration_seconds", "statement=\"" + escape(stats.fingerprint()) + "\"");
+            appendSummary(out, series, stats.latency());
+        }
+        out.append("# TYPE dotify_sql_rows_total counter\n");
+        for (StatementMetrics.QueryStats stats : StatementMetrics.snapshot()) {
+            out.append("dotify_sql_rows_total{statement=\"").append(escape(stats.fingerprint())).append("\"} ")
+                    .append(stats.rows()).append('\n');
+        }
+        out.append("# TYPE dotify_sql_errors_total counter\n");
+        for (StatementMetrics.QueryStats stats : StatementMetrics.snapshot()) {
+            out.append("dotify_sql_errors_total{statement=\"").append(escape(stats.fingerprint())).append("\"} ")
+                    .append(stats.errors()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendSummary(StringBuilder out, Series series, StatementMetrics.Histogram histogram) {
+        for (double q : QUANTILES) {
+            out.append(series.with("", "quantile=\"" + q + "\"")).append(' ')
+                    .append(histogram.percentile(q * 100) / 1e9).append('\n');
+        }
+        out.append(series.with("_sum", "")).append(' ').append(histogram.totalNanos() / 1e9).append('\n');
+        out.append(series.with("_count", "")).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static Series series(String name, String... labels) {
+        StringBuilder rendered = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (rendered.length() > 0) rendered.append(',');
+            rendered.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return new Series(name, rendered.toString());
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    //region DynamicMBean
+
+    //counters are exposed by series, timers as <series> count, p50 ms, p99 ms and max ms
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Map.Entry<Series, LongAdder> counter : counters.entrySet()) {
+            if (counter.getKey().toString().equals(attribute)) return counter.getValue().sum();
+        }
+        for (Map.Entry<Series, StatementMetrics.Histogram> timer : timers.entrySet()) {
+            String prefix = timer.getKey() + " ";
+            if (!attribute.startsWith(prefix)) continue;
+            StatementMetrics.Histogram h = timer.getValue();
+            switch (attribute.substring(prefix.length())) {
+                case "count": return h.count();
+                case "p50 ms": return h.percentile(50) / 1e6;
+                case "p99 ms": return h.percentile(99) / 1e6;
+                case "max ms": return h.maxNanos() / 1e6;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+                //metrics can't disappear, so this only happens for names that never existed
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Series counter : new TreeSet<>(counters.keySet())) {
+            attributes.add(new MBeanAttributeInfo(counter.toString(), "long", "counter", true, false, false));
+        }
+        for (Series timer : new TreeSet<>(timers.keySet())) {
+            attributes.add(new MBeanAttributeInfo(timer + " count", "long", "timer count", true, false, false));
+            for (String stat : new String[]{"p50 ms", "p99 ms", "max ms"}) {
+                attributes.add(new MBeanAttributeInfo(timer + " " + stat, "double", "timer " + stat, true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Dotify metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    //endregion
+}
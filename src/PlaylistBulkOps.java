@@ -0,0 +1,223 @@
+/* Bulk playlist operations: merging, cloning, deduplicating and importing/exporting playlists
+ * as CSV or M3U files. Playlist to playlist operations run as single set-based statements, and
+ * file transfers stream through a cursor or in batches inside one transaction.
+ *
+ * Run directly to move every playlist of a user to or from a directory:
+ *   PlaylistBulkOps export <username> <directory> [csv|m3u]
+ *   PlaylistBulkOps import <username> <directory>
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PlaylistBulkOps {
+    private static final int FETCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 1000;
+    private static final String M3U_SONG_PREFIX = "dotify:song:";
+
+    private final Connection conn;
+    private final PlaylistEditor editor;
+
+    public PlaylistBulkOps(Connection conn, PlaylistEditor editor) {
+        this.conn = conn;
+        this.editor = editor;
+    }
+
+    public static void main(String[] args) throws SQLException, IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: PlaylistBulkOps export <username> <directory> [csv|m3u]");
+            System.out.println("       PlaylistBulkOps import <username> <directory>");
+            return;
+        }
+        Connection conn = DBConnEstablisher.getConnection();
+        System.out.println("Connected to database");
+        PlaylistBulkOps ops = new PlaylistBulkOps(conn, new PlaylistEditor(conn));
+        Path dir = Paths.get(args[2]);
+
+        if (args[0].equals("export")) {
+            String extension = args.length > 3 ? args[3] : "csv";
+            Files.createDirectories(dir);
+            PreparedStatement ps = conn.prepareStatement("SELECT playlist_name FROM playlist WHERE username = ?");
+            ps.setString(1, args[1]);
+            ResultSet rs = ps.executeQuery();
+            List<String> playlists = new ArrayList<>();
+            while (rs.next()) playlists.add(rs.getString(1));
+            for (String playlist : playlists) {
+                int songs = ops.exportPlaylist(args[1], playlist, dir.resolve(playlist + "." + extension));
+                System.out.println("Exported " + songs + " songs from '" + playlist + "'");
+            }
+        } else if (args[0].equals("import")) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.{csv,m3u}")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String playlist = name.substring(0, name.lastIndexOf('.'));
+                    System.out.println("Imported " + ops.importPlaylist(args[1], playlist, file) +
+                            " songs into '" + playlist + "'");
+                }
+            }
+        }
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Adds every song of one of a user's playlists to another, optionally deleting the source after
+     * @param user the owner of both playlists
+     * @param source the playlist to take songs from
+     * @param target the playlist to add songs to, created if it doesn't exist
+     * @param deleteSource whether to delete the source playlist once merged
+     * @return the number of songs added to the target
+     * @throws SQLException if database access goes wrong
+     */
+    public int merge(String user, String source, String target, boolean deleteSource) throws SQLException {
+        int[] added = new int[1];
+        editor.inTransaction(() -> {
+            createIfMissing(user, target);
+            added[0] = editor.addSongs(user, target, PlaylistEditor.PLAYLIST_SONGS, user, source);
+            if (deleteSource) editor.delete(user, source);
+        });
+        return added[0];
+    }
+
+    /**
+     * Copies another user's playlist into a new or existing playlist of the given user
+     * @param owner the user the playlist is copied from
+     * @param source the playlist to copy
+     * @param user the user receiving the copy
+     * @param target the name of the copy, created if it doesn't exist
+     * @return the number of songs copied
+     * @throws SQLException if database access goes wrong
+     */
+    public int clone(String owner, String source, String user, String target) throws SQLException {
+        int[] added = new int[1];
+        editor.inTransaction(() -> {
+            createIfMissing(user, target);
+            added[0] = editor.addSongs(user, target, PlaylistEditor.PLAYLIST_SONGS, owner, source);
+        });
+        return added[0];
+    }
+
+    /**
+     * Removes songs that have the same title and artist as a lower numbered song on the same
+     * playlist, such as a single that also appears on an album
+     * @return the number of songs removed
+     * @throws SQLException if database access goes wrong
+     */
+    public int dedupe(String user, String playlistName) throws SQLException {
+        return editor.removeSongs(user, playlistName, """
+                SELECT sop.song_id FROM song_on_playlist sop, song s, song_by_artist sba
+                WHERE sop.song_id = s.song_id AND sop.song_id = sba.song_id
+                    AND sop.username = ? AND sop.playlist_name = ?
+                    AND EXISTS (SELECT 1 FROM song_on_playlist sop2, song s2, song_by_artist sba2
+                        WHERE sop2.song_id = s2.song_id AND sop2.song_id = sba2.song_id
+                            AND sop2.username = sop.username AND sop2.playlist_name = sop.playlist_name
+                            AND s2.title = s.title AND sba2.artist_id = sba.artist_id
+                            AND s2.song_id < s.song_id)""", user, playlistName);
+    }
+
+    /**
+     * Streams a playlist to a file, as M3U if the file name ends in .m3u and CSV otherwise
+     * @return the number of songs written
+     * @throws SQLException if database access goes wrong
+     * @throws IOException if the file can't be written
+     */
+    public int exportPlaylist(String user, String playlistName, Path file) throws SQLException, IOException {
+        boolean m3u = file.toString().endsWith(".m3u");
+        int[] written = new int[1];
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(m3u ? "#EXTM3U" : "song_id,title,artist,length");
+            out.newLine();
+            //cursors are only used when autocommit is off
+            editor.inTransaction(() -> {
+                PreparedStatement ps = conn.prepareStatement("SELECT s.song_id, s.title, s.length, " +
+                        "MIN(ar.artist_name) AS artist_name FROM song_on_playlist sop, song s, song_by_artist sba, " +
+                        "artist ar WHERE sop.song_id = s.song_id AND s.song_id = sba.song_id AND " +
+                        "sba.artist_id = ar.artist_id AND sop.username = ? " +
+                        "AND sop.playlist_name = ? GROUP BY s.song_id, s.title, s.length ORDER BY s.song_id");
+                ps.setFetchSize(FETCH_SIZE);
+                ps.setString(1, user);
+                ps.setString(2, playlistName);
+                ResultSet rs = ps.executeQuery();
+                try {
+                    while (rs.next()) {
+                        if (m3u) {
+                            out.write("#EXTINF:" + rs.getInt("length") + "," + rs.getString("artist_name") +
+                                    " - " + rs.getString("title"));
+                            out.newLine();
+                            out.write(M3U_SONG_PREFIX + rs.getInt("song_id"));
+                        } else {
+                            out.write(rs.getInt("song_id") + "," + csvField(rs.getString("title")) + "," +
+                                    csvField(rs.getString("artist_name")) + "," + rs.getInt("length"));
+                        }
+                        out.newLine();
+                        written[0]++;
+                    }
+                } catch (IOException e) {
+                    throw new SQLException("Could not write " + file, e);
+                }
+            });
+        }
+        return written[0];
+    }
+
+    /**
+     * Adds the songs listed in a CSV or M3U file written by exportPlaylist to a playlist,
+     * creating it if needed. Lines without a song_id are skipped.
+     * @return the number of songs added
+     * @throws SQLException if database access goes wrong
+     * @throws IOException if the file can't be read
+     */
+    public int importPlaylist(String user, String playlistName, Path file) throws SQLException, IOException {
+        boolean m3u = file.toString().endsWith(".m3u");
+        int[] added = new int[1];
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            editor.inTransaction(() -> {
+                createIfMissing(user, playlistName);
+                List<Integer> batch = new ArrayList<>(BATCH_SIZE);
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String id = m3u ? (line.startsWith(M3U_SONG_PREFIX) ? line.substring(M3U_SONG_PREFIX.length()) : "")
+                                : line.split(",", 2)[0];
+                        try {
+                            batch.add(Integer.parseInt(id.trim()));
+                        } catch (NumberFormatException ignored) {
+                            continue;   //header, comment or unknown song
+                        }
+                        if (batch.size() == BATCH_SIZE) added[0] += addBatch(user, playlistName, batch);
+                    }
+                } catch (IOException e) {
+                    throw new SQLException("Could not read " + file, e);
+                }
+                if (!batch.isEmpty()) added[0] += addBatch(user, playlistName, batch);
+            });
+        }
+        return added[0];
+    }
+
+    private int addBatch(String user, String playlistName, List<Integer> batch) throws SQLException {
+        //only keep ids that exist so one stale line doesn't fail the whole import
+        int added = editor.addSongs(user, playlistName, "SELECT song_id FROM song WHERE song_id = ANY(?)",
+                conn.createArrayOf("integer", batch.toArray()));
+        batch.clear();
+        return added;
+    }
+
+    private void createIfMissing(String user, String playlistName) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM playlist WHERE username = ? AND playlist_name = ?");
+        ps.setString(1, user);
+        ps.setString(2, playlistName);
+        if (!ps.executeQuery().next()) editor.create(user, playlistName);
+    }
+
+    private static String csvField(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n"))
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        return value;
+    }
+}
@@ -0,0 +1,154 @@
+/* Writes changes to playlists as set-based statements, each run in a single transaction together
+ * with the matching playlist_stats update so the stats can never drift from song_on_playlist.
+ */
+
+import java.sql.*;
+
+public class PlaylistEditor {
+    //sources of song_ids for the set-based statements
+    public static final String ALBUM_SONGS = "SELECT song_id FROM song_on_album WHERE album_id = ?";
+    public static final String LISTED_SONGS = "SELECT unnest(?::int[])";
+    public static final String PLAYLIST_SONGS = "SELECT song_id FROM song_on_playlist WHERE username = ? " +
+            "AND playlist_name = ?";
+
+    private final Connection conn;
+    private final PlaylistStats stats;
+
+    public PlaylistEditor(Connection conn) {
+        this.conn = conn;
+        this.stats = new PlaylistStats(conn);
+    }
+
+    /**
+     * @return the stats maintained alongside the playlists
+     */
+    public PlaylistStats stats() {
+        return stats;
+    }
+
+    /**
+     * Adds songs to a playlist, skipping any already on it
+     * @param user the playlist's owner
+     * @param playlistName the playlist's name
+     * @param songSource one of the song sources, or any query selecting a song_id column
+     * @param sourceParams the parameters of the source query
+     * @return the number of songs actually added
+     * @throws SQLException if database access goes wrong
+     */
+    public int addSongs(String user, String playlistName, String songSource, Object... sourceParams) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("WITH added AS (INSERT INTO song_on_playlist " +
+                "SELECT src.song_id, ?, ? FROM (" + songSource + ") AS src(song_id) ON CONFLICT DO NOTHING " +
+                "RETURNING song_id) SELECT COUNT(*), COALESCE(SUM(s.length), 0) FROM added, song s " +
+                "WHERE s.song_id = added.song_id");
+        ps.setString(1, playlistName);
+        ps.setString(2, user);
+        for (int i = 0; i < sourceParams.length; i++) ps.setObject(3 + i, sourceParams[i]);
+        return changeSongs(ps, user, playlistName, 1);
+    }
+
+    /**
+     * Removes songs from a playlist
+     * @param user the playlist's owner
+     * @param playlistName the playlist's name
+     * @param songSource one of the song sources, or any query selecting a song_id column
+     * @param sourceParams the parameters of the source query
+     * @return the number of songs actually removed
+     * @throws SQLException if database access goes wrong
+     */
+    public int removeSongs(String user, String playlistName, String songSource, Object... sourceParams) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("WITH removed AS (DELETE FROM song_on_playlist " +
+                "WHERE username = ? AND playlist_name = ? AND song_id IN (" + songSource + ") RETURNING song_id) " +
+                "SELECT COUNT(*), COALESCE(SUM(s.length), 0) FROM removed, song s WHERE s.song_id = removed.song_id");
+        ps.setString(1, user);
+        ps.setString(2, playlistName);
+        for (int i = 0; i < sourceParams.length; i++) ps.setObject(3 + i, sourceParams[i]);
+        return changeSongs(ps, user, playlistName, -1);
+    }
+
+    /**
+     * Creates an empty playlist
+     * @throws SQLException if database access goes wrong
+     */
+    public void create(String user, String playlistName) throws SQLException {
+        inTransaction(() -> {
+            PreparedStatement ps = conn.prepareStatement("INSERT INTO playlist VALUES(?, ?)");
+            ps.setString(1, playlistName);
+            ps.setString(2, user);
+            ps.executeUpdate();
+            stats.created(user, playlistName);
+        });
+    }
+
+    /**
+     * Renames a playlist along with all of its songs and stats
+     * @throws SQLException if database access goes wrong
+     */
+    public void rename(String user, String oldName, String newName) throws SQLException {
+        inTransaction(() -> {
+            for (String table : new String[]{"playlist", "song_on_playlist"}) {
+                PreparedStatement ps = conn.prepareStatement("UPDATE " + table + " SET playlist_name = ? " +
+                        "WHERE playlist_name = ? AND username = ?");
+                ps.setString(1, newName);
+                ps.setString(2, oldName);
+                ps.setString(3, user);
+                ps.executeUpdate();
+            }
+            stats.renamed(user, oldName, newName);
+        });
+    }
+
+    /**
+     * Deletes a playlist along with all of its songs and stats
+     * @throws SQLException if database access goes wrong
+     */
+    public void delete(String user, String playlistName) throws SQLException {
+        inTransaction(() -> {
+            for (String table : new String[]{"song_on_playlist", "playlist"}) {
+                PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table +
+                        " WHERE playlist_name = ? AND username = ?");
+                ps.setString(1, playlistName);
+                ps.setString(2, user);
+                ps.executeUpdate();
+            }
+            stats.deleted(user, playlistName);
+        });
+    }
+
+    /**
+     * Runs work in a single transaction on this editor's connection, rolling back if it fails in
+     * any way, so turning auto-commit back on never commits half of it
+     * @param work the statements to run
+     * @throws SQLException if database access goes wrong
+     */
+    public void inTransaction(SQLWork work) throws SQLException {
+        if (!conn.getAutoCommit()) {    //already part of the caller's transaction
+            work.run();
+            return;
+        }
+        conn.setAutoCommit(false);
+        try {
+            work.run();
+            conn.commit();
+        } catch (Throwable t) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                t.addSuppressed(e);
+            }
+            throw t;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private int changeSongs(PreparedStatement ps, String user, String playlistName, int direction) throws SQLException {
+        int[] changed = new int[1];
+        inTransaction(() -> {
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            changed[0] = rs.getInt(1);
+            if (changed[0] > 0) stats.adjust(user, playlistName, direction * changed[0], direction * rs.getLong(2));
+        });
+        return changed[0];
+    }
+}
@@ -0,0 +1,169 @@
+/* Maintains the playlist_stats aggregate, holding the number of songs and total length of each
+ * playlist so they can be read without counting song_on_playlist. Running this class directly
+ * verifies every playlist's stats against song_on_playlist and repairs any that have drifted, on
+ * shard 0 and every shard in -Ddotify.shards.
+ */
+
+import java.sql.*;
+import java.util.List;
+
+public class PlaylistStats {
+    private final Connection conn;
+
+    /**
+     * Song count and total duration in seconds of a playlist
+     */
+    public record Stats(int numSongs, long totalLength) {}
+
+    public PlaylistStats(Connection conn) {
+        this.conn = conn;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        try (ShardRouter shards = ShardRouter.open(ConnectionPool.of(DBConnEstablisher.getConnection()))) {
+            System.out.println("Connected to " + shards.size() + " shards");
+            List<int[]> repaired = shards.scatter(false, conn -> {
+                PlaylistStats stats = new PlaylistStats(conn);
+                stats.ensureTable();
+                return stats.verifyAndRepair();
+            });
+            for (int shard = 0; shard < repaired.size(); shard++) {
+                System.out.println("Shard " + shard + ": repaired " + repaired.get(shard)[0] + " playlist stats and removed " +
+                        repaired.get(shard)[1] + " orphaned rows");
+            }
+        }
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Creates the playlist_stats table if it doesn't exist yet
+     * @throws SQLException if database access goes wrong
+     */
+    public void ensureTable() throws SQLException {
+        conn.createStatement().execute("""
+                CREATE TABLE IF NOT EXISTS playlist_stats (
+                    username VARCHAR NOT NULL,
+                    playlist_name VARCHAR NOT NULL,
+                    num_songs INT NOT NULL DEFAULT 0,
+                    total_length BIGINT NOT NULL DEFAULT 0,
+                    PRIMARY KEY (username, playlist_name))""");
+    }
+
+    /**
+     * Reads the stats of a playlist, computing and storing them if they haven't been yet
+     * @param user the playlist's owner
+     * @param playlistName the playlist's name
+     * @return the playlist's stats
+     * @throws SQLException if database access goes wrong
+     */
+    public Stats get(String user, String playlistName) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT num_songs, total_length FROM playlist_stats " +
+                "WHERE username = ? AND playlist_name = ?");
+        ps.setString(1, user);
+        ps.setString(2, playlistName);
+        ResultSet rs = ps.executeQuery();
+        if (!rs.next()) {   //playlist predates playlist_stats
+            recompute(user, playlistName);
+            rs = ps.executeQuery();
+            rs.next();
+        }
+        return new Stats(rs.getInt("num_songs"), rs.getLong("total_length"));
+    }
+
+    /**
+     * Adds an empty stats row for a newly created playlist
+     * @throws SQLException if database access goes wrong
+     */
+    public void created(String user, String playlistName) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO playlist_stats VALUES(?, ?, 0, 0) " +
+                "ON CONFLICT DO NOTHING");
+        ps.setString(1, user);
+        ps.setString(2, playlistName);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Adjusts a playlist's stats after songs were added to or removed from it. A playlist with no
+     * stats row yet, one created before playlist_stats existed, has its stats computed from
+     * song_on_playlist instead, which must already reflect the change.
+     * @param user the playlist's owner
+     * @param playlistName the playlist's name
+     * @param songs the change in number of songs, negative for removals
+     * @param length the change in total length in seconds, negative for removals
+     * @throws SQLException if database access goes wrong
+     */
+    public void adjust(String user, String playlistName, int songs, long length) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("UPDATE playlist_stats SET num_songs = num_songs + ?, " +
+                "total_length = total_length + ? WHERE username = ? AND playlist_name = ?");
+        ps.setInt(1, songs);
+        ps.setLong(2, length);
+        ps.setString(3, user);
+        ps.setString(4, playlistName);
+        if (ps.executeUpdate() == 0) recompute(user, playlistName);
+    }
+
+    /**
+     * Moves a playlist's stats to its new name
+     * @throws SQLException if database access goes wrong
+     */
+    public void renamed(String user, String oldName, String newName) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("UPDATE playlist_stats SET playlist_name = ? " +
+                "WHERE username = ? AND playlist_name = ?");
+        ps.setString(1, newName);
+        ps.setString(2, user);
+        ps.setString(3, oldName);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Removes the stats of a deleted playlist
+     * @throws SQLException if database access goes wrong
+     */
+    public void deleted(String user, String playlistName) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("DELETE FROM playlist_stats WHERE username = ? AND playlist_name = ?");
+        ps.setString(1, user);
+        ps.setString(2, playlistName);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Recomputes one playlist's stats from song_on_playlist
+     * @throws SQLException if database access goes wrong
+     */
+    public void recompute(String user, String playlistName) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO playlist_stats SELECT ?, ?, COUNT(*), " +
+                "COALESCE(SUM(s.length), 0) FROM song_on_playlist sop, song s WHERE s.song_id = sop.song_id " +
+                "AND sop.username = ? AND sop.playlist_name = ? ON CONFLICT (username, playlist_name) DO UPDATE SET " +
+                "num_songs = EXCLUDED.num_songs, total_length = EXCLUDED.total_length");
+        ps.setString(1, user);
+        ps.setString(2, playlistName);
+        ps.setString(3, user);
+        ps.setString(4, playlistName);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Recomputes every playlist's stats, only rewriting rows that don't match, and drops rows
+     * left behind for playlists that no longer exist
+     * @return the number of rows repaired and the number of orphaned rows removed
+     * @throws SQLException if database access goes wrong
+     */
+    public int[] verifyAndRepair() throws SQLException {
+        int repaired = conn.createStatement().executeUpdate("""
+                INSERT INTO playlist_stats
+                    SELECT p.username, p.playlist_name, COUNT(s.song_id), COALESCE(SUM(s.length), 0)
+                    FROM playlist p
+                    LEFT JOIN song_on_playlist sop ON sop.username = p.username AND sop.playlist_name = p.playlist_name
+                    LEFT JOIN song s ON s.song_id = sop.song_id
+                    GROUP BY p.username, p.playlist_name
+                ON CONFLICT (username, playlist_name) DO UPDATE SET
+                    num_songs = EXCLUDED.num_songs, total_length = EXCLUDED.total_length
+                WHERE playlist_stats.num_songs <> EXCLUDED.num_songs
+                    OR playlist_stats.total_length <> EXCLUDED.total_length""");
+        int orphaned = conn.createStatement().executeUpdate("DELETE FROM playlist_stats ps WHERE NOT EXISTS " +
+                "(SELECT 1 FROM playlist p WHERE p.username = ps.username AND p.playlist_name = ps.playlist_name)");
+        return new int[]{repaired, orphaned};
+    }
+}
@@ -1,5 +1,6 @@
-/* Class to hold all the methods for interacting with the database and
- * carrying out the logic to retrieve/store data
+/* Class to hold all the methods for the console's menus. The database work itself is done by
+ * DotifyOperations, which the HTTP service (DotifyService) shares, so this class only prompts
+ * and prints for the logged in user.
  *
  *  @author John Kudela
  *  @author Riley Muessig
@@ -7,16 +8,23 @@
  *  @author Ryan Nowak
  */
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.HashSet;
-import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class PostgresLogic {
     private static final Scanner scanner = new Scanner(System.in);
-    private final Connection conn;
+    //how long a chart or recommendation may take before the last one is shown instead
+    private static final long STATS_BUDGET_MS = Long.getLong("dotify.stats.budgetMs", 2_000);
+    private final CompletableFuture<DotifyOperations> ops;
+    private final DeadlineCache stats = new DeadlineCache(STATS_BUDGET_MS);
     private String username;
 
     public static final String LINE_SEPARATOR = "--------------------";
@@ -27,8 +35,119 @@ public class PostgresLogic {
 
     private static final int PAGE_LENGTH = 20;
 
+    //region SQL
+    //Fixed statements are kept here so QueryPlanCheck can EXPLAIN every one of them.
+    //Statements built from menu choices stay next to the code that builds them.
+
+    static final String SQL_REGISTER_USER = "INSERT INTO user_t VALUES(?, ?, ?, ?, ?, ?, ?)";
+    static final String SQL_RECORD_LISTEN = "INSERT INTO user_listens_song VALUES(?, ?, ?)";
+    static final String SQL_COUNT_LISTEN = "UPDATE song SET num_listens = num_listens + 1 WHERE song_id = ?";
+    static final String SQL_ADD_LISTENS = "UPDATE song SET num_listens = num_listens + ? WHERE song_id = ?";
+    static final String SQL_PLAYLIST_SONG_DETAILS = "SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, " +
+            "g.genre_name, ar.artist_name, a.album_id, a.name FROM song_on_playlist sop, song s, song_by_artist sba, " +
+            "artist ar, song_on_album soa, genre g, album a WHERE sop.song_id = s.song_id AND s.song_id = sba.song_id AND " +
+            "sba.artist_id = ar.artist_id AND s.genre_id = g.genre_id AND s.song_id = soa.song_id AND " +
+            "a.album_id = soa.album_id AND sop.playlist_name = ? AND sop.username = ?";
+    static final String SQL_PLAYLISTS_WITH_STATS = "SELECT p.playlist_name, ps.num_songs, ps.total_length " +
+            "FROM playlist p LEFT JOIN playlist_stats ps ON ps.username = p.username AND " +
+            "ps.playlist_name = p.playlist_name WHERE p.username=? ORDER BY p.playlist_name ASC";
+    static final String SQL_FOLLOW = "INSERT INTO following(follower_un, followed_un) VALUES(?, ?)";
+    static final String SQL_FOLLOW_IF_NEW = SQL_FOLLOW + " ON CONFLICT DO NOTHING";
+    static final String SQL_UNFOLLOW = "DELETE FROM following WHERE (follower_un = ?) AND (followed_un = ?)";
+    static final String SQL_PLAYLIST_COUNT = "SELECT COUNT(playlist_name) AS num_playlists FROM playlist WHERE username = ?";
+    static final String SQL_TOP_ARTISTS_BY_LISTENS = "SELECT t.total, ar.artist_name FROM (SELECT SUM(uls.listens) AS total, " +
+            "sba.artist_id FROM song_by_artist sba, listen_counts uls WHERE sba.song_id = uls.song_id AND " +
+            "uls.username = ? GROUP BY sba.artist_id) t, artist ar WHERE ar.artist_id = t.artist_id " +
+            "ORDER BY t.total DESC";
+    static final String SQL_TOP_ARTISTS_BY_PLAYLISTS = "SELECT t.total, ar.artist_name FROM (SELECT COUNT(*) AS total, " +
+            "sba.artist_id FROM song_by_artist sba, song_on_playlist sop WHERE sba.song_id = sop.song_id AND " +
+            "sop.username = ? GROUP BY sba.artist_id) t, artist ar WHERE ar.artist_id = t.artist_id " +
+            "ORDER BY t.total DESC";
+    static final String SQL_ARTIST_PLAYLIST_COUNTS = "SELECT sba.artist_id, COUNT(*) AS total FROM song_by_artist sba, " +
+            "song_on_playlist sop WHERE sba.song_id = sop.song_id AND sop.username = ? GROUP BY sba.artist_id";
+    //top artists by listens and playlist occurrences combined
+    static final String SQL_TOP_ARTISTS_COMBINED = """
+            SELECT (sop2.total + uls2.total) AS total, ar.artist_name FROM
+
+            (SELECT SUM(uls.listens) AS total, sba.artist_id FROM song_by_artist sba, listen_counts uls
+                WHERE sba.song_id = uls.song_id AND uls.username = ? GROUP BY sba.artist_id) AS sop2,
+
+            (SELECT COUNT(*) AS total, sba.artist_id FROM song_by_artist sba,
+                song_on_playlist sop WHERE sba.song_id = sop.song_id AND sop.username = ? GROUP BY sba.artist_id) AS uls2,
+
+            artist ar
+
+            WHERE sop2.artist_id = uls2.artist_id AND ar.artist_id = sop2.artist_id ORDER BY total DESC""";
+    static final String SQL_TOP50_LAST_30_DAYS = "SELECT title, num_listens FROM song WHERE song_id IN" +
+            "(SELECT song_id FROM user_listens_song WHERE date_listened >= NOW() - INTERVAL '30 DAY')" +
+            "ORDER BY num_listens DESC LIMIT 50";
+    static final String SQL_TOP5_GENRES_MONTH = "SELECT g.genre_name, n.genre_listens FROM genre g, " +
+            "(SELECT genre_id, SUM(num_listens) as genre_listens FROM song WHERE song_id IN " +
+            "(SELECT song_id FROM user_listens_song WHERE date_listened >= date_trunc('month', NOW()))" +
+            "GROUP BY genre_id ORDER BY genre_listens DESC LIMIT 5) n WHERE g.genre_id = n.genre_id";
+    //each shard's part of the listens of some songs, summed over every shard for the real count
+    static final String SQL_SONG_LISTEN_TOTALS = "SELECT song_id, num_listens FROM song " +
+            "WHERE song_id = ANY(?) AND num_listens > 0";
+    static final String SQL_RANDOM_HEARD_SONG = "SELECT * FROM song WHERE song_id = (" +
+            "SELECT song_id FROM listen_counts WHERE username = ? " +
+            "OFFSET floor(random()*(SELECT COUNT(*) FROM listen_counts WHERE username = ?)) LIMIT 1)";
+    static final String SQL_RELATED_BY_GENRE = "SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, " +
+            "g.genre_name, ar.artist_name, a.album_id, a.name FROM song s, song_by_artist sba, artist ar, song_on_album soa, " +
+            "genre g, album a WHERE sba.artist_id = ar.artist_id AND s.song_id = soa.song_id AND " +
+            "a.album_id = soa.album_id AND s.song_id = sba.song_id AND s.genre_id = ? ORDER BY random() LIMIT 5";
+    static final String SQL_RELATED_BY_ARTIST = "SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, " +
+            "g.genre_name, ar.artist_name, a.album_id, a.name FROM song s, song_by_artist sba, artist ar, song_on_album soa, " +
+            "genre g, album a WHERE sba.artist_id = ar.artist_id AND s.song_id = soa.song_id AND " +
+            "a.album_id = soa.album_id AND sba.song_id = ? AND s.genre_id = g.genre_id ORDER BY random() LIMIT 5";
+    static final String SQL_SIMILAR_USER_SONGS = "SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, g.genre_name, " +
+            "ar.artist_name, a.album_id, a.name FROM song s, song_by_artist sba, artist ar, song_on_album soa, genre g, " +
+            "listen_counts l, album a WHERE sba.artist_id = ar.artist_id AND s.song_id = soa.song_id AND " +
+            "a.album_id = soa.album_id AND s.song_id = sba.song_id AND s.genre_id = g.genre_id AND " +
+            "s.song_id = l.song_id AND l.username = ? AND s.song_id != ? ORDER BY random() LIMIT 5";
+    static final String SQL_HEARD_SONGS = "SELECT DISTINCT song_id FROM listen_counts WHERE username = ?";
+    //one row per song, naming all of its artists
+    static final String SQL_SONG_DETAILS_BY_IDS = "SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, g.genre_name, " +
+            "string_agg(ar.artist_name, ', ' ORDER BY ar.artist_name) AS artist_name, a.album_id, a.name " +
+            "FROM song s, song_by_artist sba, artist ar, song_on_album soa, genre g, " +
+            "album a WHERE sba.artist_id = ar.artist_id AND s.song_id = sba.song_id AND s.genre_id = g.genre_id AND " +
+            "s.song_id = soa.song_id AND a.album_id = soa.album_id AND s.song_id = ANY(?) " +
+            "GROUP BY s.song_id, g.genre_id, a.album_id ORDER BY array_position(?::int[], s.song_id)";
+    static final String SQL_PLAYLIST_EXISTS = "SELECT username FROM playlist WHERE playlist_name = ? AND username = ?";
+    static final String SQL_USER_BY_USERNAME = "SELECT username, password, first_name, last_name, email, " +
+            "creation_date FROM user_t WHERE username = ?";
+    static final String SQL_USER_BY_EMAIL = "SELECT username, first_name, last_name, email, creation_date " +
+            "FROM user_t WHERE email = ?";
+    //sets each user in the first array to the date at the same position in the second, leaving rows
+    //that already have it alone; one text however many users, so it's prepared and tracked once
+    static final String SQL_TOUCH_USERS = "UPDATE user_t u SET last_access_date = v.accessed " +
+            "FROM unnest(?::text[], ?::date[]) AS v(username, accessed) " +
+            "WHERE u.username = v.username AND u.last_access_date < v.accessed";
+
+    //endregion
+
+    /**
+     * Creates a console session running its operations on one connection
+     * @param conn the connection
+     */
     public PostgresLogic(Connection conn) {
-        this.conn = conn;
+        this(new DotifyOperations(ConnectionPool.of(conn)));
+    }
+
+    /**
+     * Creates a console session on operations that may be shared with other clients
+     * @param ops the operations
+     */
+    public PostgresLogic(DotifyOperations ops) {
+        this(CompletableFuture.completedFuture(ops));
+    }
+
+    /**
+     * Creates a console session whose operations are still starting up, so the menus can be
+     * shown before the database connection is ready
+     * @param ops the operations once they're ready
+     */
+    public PostgresLogic(CompletableFuture<DotifyOperations> ops) {
+        this.ops = ops;
     }
 
     /**
@@ -52,14 +171,10 @@ public class PostgresLogic {
             username = getInput("Username: ");
             if (username.equals("")) return false;  //cancel
             else {    //user is attempting a login
-                ResultSet rs = usernameExists(username);
-                if(rs != null) {
+                if(ops().userExists(username)) {
                     String pass = getInput("Password: ");
-                    if(rs.getString("password").equals(pass)) { //successful login
-                        loggedIn = true;
-                        rs.updateDate("last_access_date", new Date(System.currentTimeMillis()));
-                        rs.updateRow();
-                    } else System.out.println("Incorrect password.");
+                    if(ops().login(username, pass)) loggedIn = true;  //successful login
+                    else System.out.println("Incorrect password.");
                 } else System.out.println(NO_USER);
             }
         } while (!loggedIn);
@@ -89,7 +204,7 @@ public class PostgresLogic {
         while (username == null) {
             username = getInput("New Username: ");
             if (username.equals("")) return false;   //cancel
-            if(usernameExists(username) != null) {
+            if(ops().usernameMightBeTaken(username)) {
                 System.out.println("Username already taken! Try again.");
                 username = null;
             }
@@ -103,23 +218,17 @@ public class PostgresLogic {
         while (email == null) {
             email = getInput("Enter email: ");
             if(email.equals("")) return false; //cancel in case user is stuck
-            if(userEmailExists(email) != null) {
+            if(ops().usernameForEmail(email) != null) {
                 System.out.println("Email already taken! Try again.");
                 email = null;
             }
         }
 
-        Date creationDate = new Date(System.currentTimeMillis());
-
-        PreparedStatement ps = conn.prepareStatement("INSERT INTO user_t VALUES(?, ?, ?, ?, ?, ?, ?)");
-        ps.setString(1, username);
-        ps.setString(2, password);
-        ps.setString(3, first);
-        ps.setString(4, last);
-        ps.setString(5, email);
-        ps.setDate(6, creationDate);
-        ps.setDate(7, creationDate);
-        ps.executeUpdate();
+        if(!ops().register(username, password, first, last, email)) {  //taken since it was checked
+            System.out.println("Username or email already taken!");
+            username = null;
+            return false;
+        }
 
         System.out.println("Account successfully created!\n");
         return true;
@@ -130,9 +239,6 @@ public class PostgresLogic {
      * @throws SQLException if something breaks with the database
      */
     public void searchSong() throws SQLException {
-        PreparedStatement ps;
-        ResultSet rs;
-
         //get arg1
         System.out.println(LINE_SEPARATOR + "\n");
         int searchChoice = numbered_Menu("""
@@ -162,73 +268,29 @@ public class PostgresLogic {
             6. Genre (Descending)
             7. Release Date (Ascending)
             8. Release Date (Descending)""", 9);
-        String arg2 = switch (orderChoice) {
-            case 0 -> "s.title, sba.artist_name ASC";
-            case 1 -> "s.title ASC";
-            case 2 -> "s.title DESC";
-            case 3 -> "sba.artist_name ASC";
-            case 4 -> "sba.artist_name DESC";
-            case 5 -> "g.genre_name ASC";
-            case 6 -> "g.genre_name DESC";
-            case 7 -> "s.release_date ASC";
-            case 8 -> "s.release_date DESC";
-            default -> null;
-        };
-        if(arg1 == null || arg2 == null) {    //shouldn't occur but can't hurt
+        if(arg1 == null || searchSQL(searchChoice, orderChoice) == null) {    //shouldn't occur but can't hurt
             System.out.println("Something has gone wrong!");
             return;
         }
 
-        //prepare big boy statement based on user input
-        ps = conn.prepareStatement("SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, g.genre_name," +
-                " sba.artist_name, a.album_id, a.name FROM song s, song_by_artist sba, song_on_album soa, genre g, " +
-                "album a WHERE s.song_id = sba.song_id AND s.genre_id = g.genre_id AND s.song_id = soa.song_id " +
-                "AND a.album_id = soa.album_id AND " + switch(searchChoice) {
-            case 0 -> "s.title LIKE ?";
-            case 1 -> "sba.artist_name LIKE ?";
-            case 2 -> "a.name LIKE ?";
-            case 3 -> "g.genre_name LIKE ?";
-            default -> null;
-        } + " ORDER BY " + arg2, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        if(ps == null) {    //shouldn't happen, but stops compiler complaining
-            System.out.println("Something has gone wrong!");
-            return;
-        }
-
-        ps.setString(1, "%" + arg1 + "%");
-        rs = ps.executeQuery();
-
-        if(!rs.isBeforeFirst()) {
+        List<DotifyOperations.Song> songs = ops().search(searchChoice, orderChoice, arg1);
+        if(songs.isEmpty()) {
             System.out.println("No songs found matching your search!");
             return;
         }
 
         System.out.println(LINE_SEPARATOR + "\n");
 
-        rs.last();
-        int numSongs = rs.getRow();
-        rs.beforeFirst();
+        int numSongs = songs.size();
         int counter = 0;
 
         int choice = -1;
         while (choice != 0) {
             int tempCounter = counter;
             do {
-                counter++;
-                rs.next();
-                String songName = rs.getString("title");
-                int songLength = rs.getInt("length");
-                Date songReleaseDate = rs.getDate("release_date");
-                int songListens = rs.getInt("num_listens");
-                String genreName = rs.getString("genre_name");
-                String artistName = rs.getString("artist_name");
-                String albumName = rs.getString("name");
-
-                int minutes = songLength / 60;
-                int seconds = songLength % 60;
-                System.out.println("\t" + counter + ". Song name: " + songName + " by " + artistName + ", Album: " + albumName +
-                        ", Length: " + minutes + "m " + seconds + "s, Listen Count: " + songListens + ", Release Date: " + songReleaseDate +
-                        ", Genre: " + genreName);
+                DotifyOperations.Song song = songs.get(counter++);
+                System.out.println(formatSearchRow(counter, song.title(), song.artistName(), song.albumName(),
+                        song.length(), song.listens(), song.releaseDate(), song.genreName()));
             } while (counter % PAGE_LENGTH != 0 && counter < numSongs);
 
             String choiceMenu = """
@@ -261,20 +323,18 @@ public class PostgresLogic {
             }
 
             if(choice == 1)  {
-                selectASong(rs, numSongs);
+                selectASong(songs);
                 counter = tempCounter;
             }
-            rs.absolute(counter);
         }
     }
 
     /**
-     * Allows a user to select a song from a resultset to listen to it or use it in playlists
-     * @param rs the song resultset
-     * @param max the number of songs in the resultset, used to check
+     * Allows a user to select a song from a list to listen to it or use it in playlists
+     * @param songs the songs, updated in place when one is listened to
      * @throws SQLException if something breaks with the database
      */
-    public void selectASong(ResultSet rs, int max) throws SQLException {
+    public void selectASong(List<DotifyOperations.Song> songs) throws SQLException {
         System.out.println(LINE_SEPARATOR);
         String songNum;
         int songInt = -1;
@@ -282,27 +342,18 @@ public class PostgresLogic {
             songNum = getInput("Please select a number corresponding to a song: ");
             try {
                 songInt = Integer.parseInt(songNum);
-                if(songInt < 1 || songInt > max) songInt = -1;
+                if(songInt < 1 || songInt > songs.size()) songInt = -1;
             } catch (Exception ignored) {}
         }
 
-        rs.absolute(songInt);
+        DotifyOperations.Song song = songs.get(songInt - 1);
         System.out.println("Selected song number " + songInt);
 
-        int songID = rs.getInt("song_id");
-        int albumID = rs.getInt("album_id");
-        String songName = rs.getString("title");
-        int songLength = rs.getInt("length");
-        Date songReleaseDate = rs.getDate("release_date");
-        int songListens = rs.getInt("num_listens");
-        String genreName = rs.getString("genre_name");
-        String artistName = rs.getString("artist_name");
-        String albumName = rs.getString("name");
-        int minutes = songLength / 60;
-        int seconds = songLength % 60;
-        System.out.println(songInt + ". Song name: " + songName + " by " + artistName + ", Album: " + albumName +
-                           ", Length: " + minutes + "m " + seconds + "s, Listen Count: " + songListens + ", Release Date: " + songReleaseDate +
-                           ", Genre: " + genreName);
+        int minutes = song.length() / 60;
+        int seconds = song.length() % 60;
+        System.out.println(songInt + ". Song name: " + song.title() + " by " + song.artistName() + ", Album: " +
+                           song.albumName() + ", Length: " + minutes + "m " + seconds + "s, Listen Count: " +
+                           song.listens() + ", Release Date: " + song.releaseDate() + ", Genre: " + song.genreName());
 
         System.out.println(LINE_SEPARATOR);
         String choiceMenu = """
@@ -314,15 +365,8 @@ public class PostgresLogic {
                 """;
         int choice = numbered_Menu(choiceMenu, 4);
         if(choice == 1) {
-            PreparedStatement listenPS;
-            listenPS = conn.prepareStatement("INSERT INTO user_listens_song VALUES(?, ?, ?)");
-            listenPS.setString(1, username);
-            listenPS.setInt(2, songID);
-            listenPS.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
-            listenPS.executeUpdate();
-
-            rs.updateInt("num_listens", rs.getInt("num_listens") + 1);
-            rs.updateRow();
+            ops().listen(username, song.songID());
+            songs.set(songInt - 1, song.listened());
             System.out.println("Successfully listened to song!");
             System.out.println(LINE_SEPARATOR + "\n");
         } else if(choice == 2) {
@@ -337,31 +381,15 @@ public class PostgresLogic {
             do {
                 playlistName = getInput("Enter the playlist you would like to add to or enter nothing to cancel: ");
                 if (playlistName.equals("")) return; //cancel operation
-                if(!playlistExists(username, playlistName)) playlistName = null;
+                if(!ops().playlistExists(username, playlistName)) playlistName = null;
             }while (playlistName == null);
 
             if(input.equalsIgnoreCase("y")) {
-                PreparedStatement soa_ps = conn.prepareStatement("SELECT song_id FROM song_on_album WHERE album_id = ?");
-                soa_ps.setInt(1, albumID);
-                ResultSet soa = soa_ps.executeQuery();
-                while (soa.next()) {
-                    int soaSongID = soa.getInt("song_id");
-                    PreparedStatement addAll = conn.prepareStatement("INSERT INTO song_on_playlist VALUES(?, ?, ?)" +
-                            " ON CONFLICT DO NOTHING");
-                    addAll.setInt(1, soaSongID);
-                    addAll.setString(2, playlistName);
-                    addAll.setString(3, username);
-                    addAll.executeUpdate();
-                }
+                ops().addAlbum(username, playlistName, song.albumID());
                 System.out.println("Songs added!");
                 System.out.println(LINE_SEPARATOR + "\n");
             } else {
-                PreparedStatement ps = conn.prepareStatement("INSERT INTO song_on_playlist VALUES(?, ?, ?)" +
-                        " ON CONFLICT DO NOTHING");
-                ps.setInt(1, songID);
-                ps.setString(2, playlistName);
-                ps.setString(3, username);
-                ps.executeUpdate();
+                ops().addSongs(username, playlistName, song.songID());
                 System.out.println("Song added!");
                 System.out.println(LINE_SEPARATOR + "\n");
             }
@@ -377,31 +405,15 @@ public class PostgresLogic {
             do {
                 playlistName = getInput("Enter the playlist you would like to remove from or enter nothing to cancel: ");
                 if (playlistName.equals("")) return; //cancel operation
-                if(!playlistExists(username, playlistName)) playlistName = null;
+                if(!ops().playlistExists(username, playlistName)) playlistName = null;
             }while (playlistName == null);
 
             if (input.equalsIgnoreCase("y")) {
-                PreparedStatement soa_ps = conn.prepareStatement("SELECT song_id FROM song_on_album WHERE album_id = ?");
-                soa_ps.setInt(1, albumID);
-                ResultSet soa = soa_ps.executeQuery();
-                while (soa.next()) {
-                    int soaSongID = soa.getInt("song_id");
-                    PreparedStatement addAll = conn.prepareStatement("DELETE FROM song_on_playlist WHERE song_id = ? " +
-                            "AND playlist_name = ? AND username = ?");
-                    addAll.setInt(1, soaSongID);
-                    addAll.setString(2, playlistName);
-                    addAll.setString(3, username);
-                    addAll.executeUpdate();
-                }
+                ops().removeAlbum(username, playlistName, song.albumID());
                 System.out.println("Songs removed!");
                 System.out.println(LINE_SEPARATOR + "\n");
             } else {
-                PreparedStatement ps = conn.prepareStatement("DELETE FROM song_on_playlist WHERE song_id = ? AND" +
-                        " playlist_name = ? AND username = ?");
-                ps.setInt(1, songID);
-                ps.setString(2, playlistName);
-                ps.setString(3, username);
-                ps.executeUpdate();
+                ops().removeSongs(username, playlistName, song.songID());
                 System.out.println("Song removed!");
                 System.out.println(LINE_SEPARATOR + "\n");
             }
@@ -421,7 +433,7 @@ public class PostgresLogic {
                 searchUser = username;    //user viewing themselves
                 break;
             }
-            if(usernameExists(searchUser) == null) {
+            if(!ops().userExists(searchUser)) {
                 System.out.println(NO_USER);
                 searchUser = null;
             }
@@ -433,7 +445,7 @@ public class PostgresLogic {
         do {
             searchPlaylist = getInput("Enter a playlist name or nothing to cancel: ");
             if(searchPlaylist.equals("")) return;
-            if(!playlistExists(searchUser, searchPlaylist)) {
+            if(!ops().playlistExists(searchUser, searchPlaylist)) {
                 System.out.println("Playlist does not exist");
                 searchPlaylist = null;
             }
@@ -442,87 +454,17 @@ public class PostgresLogic {
 
 
         //Playlist Data
-        PreparedStatement song_statement = conn.prepareStatement("SELECT COUNT(*) AS num_songs, SUM(length) " +
-                "AS total_length FROM song WHERE song_id IN (SELECT song_id FROM song_on_playlist WHERE " +
-                "playlist_name=? AND username=?)");
-
-        song_statement.setString(1, searchPlaylist);
-        song_statement.setString(2, searchUser);
-
-        ResultSet playlistStats = song_statement.executeQuery();
-        playlistStats.next();
-        int numSongs = playlistStats.getInt("num_songs");
-        int totalLength = playlistStats.getInt("total_length");
-        int minutes = totalLength / 60;
-        int seconds = totalLength % 60;
+        DotifyOperations.Playlist playlist = ops().playlist(searchUser, searchPlaylist);
+        long minutes = playlist.totalLength() / 60;
+        long seconds = playlist.totalLength() % 60;
         System.out.println(LINE_SEPARATOR);
-        System.out.println("Name: " + searchPlaylist + ", Number of Songs: " + numSongs +
+        System.out.println("Name: " + searchPlaylist + ", Number of Songs: " + playlist.numSongs() +
                 ", Total Duration: " + minutes + "m " + seconds + "s");
 
-        //Song Data
-        PreparedStatement playlistSongs = conn.prepareStatement("SELECT song_id FROM song_on_playlist " +
-                "WHERE playlist_name=? AND username=?");
-        PreparedStatement songData = conn.prepareStatement("SELECT title, length, release_date, genre_id, num_listens FROM song " +
-                "WHERE song_id=?");
-        PreparedStatement songArtist = conn.prepareStatement("SELECT artist_name FROM song_by_artist WHERE song_id=?");
-        PreparedStatement songGenre = conn.prepareStatement("SELECT genre_name FROM genre WHERE genre_id=?");
-        PreparedStatement setNumListens = conn.prepareStatement("INSERT INTO user_listens_song VALUES(?, ?, ?)");
-
-        PreparedStatement getAlbumID = conn.prepareStatement("SELECT album_id FROM song_on_album WHERE song_id=?");
-        PreparedStatement songAlbum = conn.prepareStatement("SELECT name FROM album WHERE album_id=?");
-
-        ResultSet rsSongData;
-        ResultSet rsSongArtist;
-        ResultSet rsSongGenre;
-        ResultSet rsGetAlbumID;
-        ResultSet rsSongAlbum;
-
-        playlistSongs.setString(1, searchPlaylist);
-        playlistSongs.setString(2, searchUser);
-        ResultSet rsPlaylistSongs = playlistSongs.executeQuery();
-        //Print Song Data
-        while (rsPlaylistSongs.next()) {
-            int songID = rsPlaylistSongs.getInt("song_id");
-            songData.setInt(1, songID);
-            songArtist.setInt(1, songID);
-
-            getAlbumID.setInt(1, songID);
-            rsGetAlbumID = getAlbumID.executeQuery();
-            rsGetAlbumID.next();
-
-            songAlbum.setInt(1, rsGetAlbumID.getInt("album_id"));
-            rsSongAlbum = songAlbum.executeQuery();
-            rsSongAlbum.next();
-
-            rsSongData = songData.executeQuery();
-            rsSongData.next();
-            rsSongArtist = songArtist.executeQuery();
-            rsSongArtist.next();
-
-            //Increase num_listens by 1
-            setNumListens.setString(1, username);
-            setNumListens.setInt(2, songID);
-            setNumListens.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
-            setNumListens.executeUpdate();
-            //
-
-            songGenre.setInt(1, rsSongData.getInt("genre_id"));
-            rsSongGenre = songGenre.executeQuery();
-            rsSongGenre.next();
-
-            int length = rsSongData.getInt("length");
-            minutes = length / 60;
-            seconds = length % 60;
-            //Total Duration: " + minutes + "m " + seconds + "s"
-
-            //Print each song info - name, artist, album, length, genre, release date, listen count
-            System.out.println("\tSong name: " + rsSongData.getString("title") +
-                    ", Artist: " + rsSongArtist.getString("artist_name") +
-                    ", Album: " + rsSongAlbum.getString("name") +
-                    ", Length: " + minutes + "m " + seconds + "s" +
-                    ", Genre: " + rsSongGenre.getString("genre_name") +
-                    ", Release Date: " + rsSongData.getDate("release_date") +
-                    ", Listen Count: " + (rsSongData.getInt("num_listens")+1));
+        //Print each song info - name, artist, album, length, genre, release date, listen count
+        for (DotifyOperations.Song song : ops().listenToPlaylist(username, searchUser, searchPlaylist)) {
+            System.out.println(formatPlaylistRow(song.title(), song.artistName(), song.albumName(), song.length(),
+                    song.genreName(), song.releaseDate(), song.listens()));
         }
     }
 
@@ -541,78 +483,57 @@ public class PostgresLogic {
                 searchUser = username;    //user viewing themselves
                 break;
             }
-            if(usernameExists(searchUser) == null) {
+            if(!ops().userExists(searchUser)) {
                 System.out.println(NO_USER);
                 searchUser = null;
             }
         }while (searchUser == null);
         System.out.println("Searching through " + searchUser + "'s playlists.");
 
-        PreparedStatement ps = conn.prepareStatement("SELECT playlist_name FROM playlist WHERE " +
-                "username=? ORDER BY playlist_name ASC", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        ps.setString(1, searchUser);
-        ResultSet rs = ps.executeQuery();
-
+        List<DotifyOperations.Playlist> playlists = ops().playlists(searchUser);
+        if(playlists.isEmpty()) {
+            System.out.println(searchUser + " has no playlists.");
+            return;
+        }
 
-        rs.last();
-        int numSongs = rs.getRow();
-        rs.beforeFirst();
+        int numPlaylists = playlists.size();
         int counter = 0;
 
         int choice = -1;
         while (choice != 0) {
-            int tempCounter = counter;
             do {
-                counter++;
-                rs.next();
-                String playlistName = rs.getString("playlist_name");
-                PreparedStatement song_statement = conn.prepareStatement("SELECT COUNT(*) AS num_songs, SUM(length) " +
-                        "AS total_length FROM song WHERE song_id IN (SELECT song_id FROM song_on_playlist WHERE " +
-                        "playlist_name=? AND username=?)");
-                song_statement.setString(1, playlistName);
-                song_statement.setString(2, searchUser);
-                ResultSet playlistStats = song_statement.executeQuery();
-                playlistStats.next();
-                int totalLength = playlistStats.getInt("total_length");
-                int minutes = totalLength / 60;
-                int seconds = totalLength % 60;
-                System.out.println("\t" + counter + ". Name: " + playlistName + ", Number of Songs: " + numSongs +
-                        ", Total Duration: " + minutes + "m " + seconds + "s");
-            } while (counter % PAGE_LENGTH != 0 && counter < numSongs);
+                DotifyOperations.Playlist playlist = playlists.get(counter++);
+                long minutes = playlist.totalLength() / 60;
+                long seconds = playlist.totalLength() % 60;
+                System.out.println("\t" + counter + ". Name: " + playlist.name() + ", Number of Songs: " +
+                        playlist.numSongs() + ", Total Duration: " + minutes + "m " + seconds + "s");
+            } while (counter % PAGE_LENGTH != 0 && counter < numPlaylists);
 
             String choiceMenu = """
                     0. Exit view
                     """;
             System.out.println(LINE_SEPARATOR);
-            if(numSongs <= PAGE_LENGTH) {    //only one page
-                choice = numbered_Menu(choiceMenu, 2);
+            if(numPlaylists <= PAGE_LENGTH) {    //only one page
+                choice = numbered_Menu(choiceMenu, 1);
             } else if(counter == PAGE_LENGTH) { //end of first page
                 choiceMenu += """
-                        2. Next page
+                        1. Next page
                         """;
-                choice = numbered_Menu(choiceMenu, 3);
-                if(choice == 2) continue;
+                choice = numbered_Menu(choiceMenu, 2);
             } else if(counter % PAGE_LENGTH != 0) { //end of last page
                 choiceMenu += """
-                        2. Previous page
+                        1. Previous page
                         """;
-                choice = numbered_Menu(choiceMenu, 3);
-                if(choice == 2) counter -= PAGE_LENGTH + (counter % PAGE_LENGTH);
+                choice = numbered_Menu(choiceMenu, 2);
+                if(choice == 1) counter -= PAGE_LENGTH + (counter % PAGE_LENGTH);
             } else {    //middle page
                 choiceMenu += """
-                        2. Next page
-                        3. Previous page
+                        1. Next page
+                        2. Previous page
                         """;
-                choice = numbered_Menu(choiceMenu, 4);
-                if(choice == 2) continue;
-                else if(choice == 3) counter -= (2* PAGE_LENGTH);
-            }
-
-            if(choice == 1)  {
-                selectASong(rs, numSongs);
-                counter = tempCounter;
+                choice = numbered_Menu(choiceMenu, 3);
+                if(choice == 2) counter -= (2* PAGE_LENGTH);
             }
-            rs.absolute(counter);
         }
 
     }
@@ -628,16 +549,40 @@ public class PostgresLogic {
         do {
             playlistName = getInput("Enter a playlist name or nothing to cancel: ");
             if(playlistName.equals("")) return;
-            if(playlistExists(username, playlistName)) {
+            if(ops().playlistExists(username, playlistName)) {
                 System.out.println("Playlist name already taken. Please select a different name.");
                 playlistName = null;
             }
         } while (playlistName == null);
 
-        PreparedStatement ps = conn.prepareStatement("INSERT INTO playlist VALUES(?, ?)");
-        ps.setString(1, playlistName);
-        ps.setString(2, username);
-        ps.executeUpdate();
+        System.out.println(LINE_SEPARATOR);
+        int choice = numbered_Menu("""
+                0. Start with an empty playlist
+                1. Copy another user's playlist
+                2. Import songs from a file
+                """, 3);
+        if(choice == 1) {
+            String owner;
+            do {
+                owner = getInput(GET_USERNAME);
+                if(owner.equals("")) return;
+                if(!ops().userExists(owner)) {
+                    System.out.println(NO_USER);
+                    owner = null;
+                }
+            } while (owner == null);
+            String source = getInput("Enter the name of their playlist to copy: ");
+            if(!ops().playlistExists(owner, source)) {
+                System.out.println("Playlist does not exist");
+                return;
+            }
+            int copied = ops().copyPlaylist(owner, source, username, playlistName);
+            System.out.println("Copied " + copied + " songs from " + owner + "'s '" + source + "'.");
+        } else if(choice == 2) {
+            if(!importPlaylist(playlistName)) return;
+        } else {
+            ops().createPlaylist(username, playlistName);
+        }
 
         System.out.println("Successfully created playlist '" + playlistName + "'!");
     }
@@ -654,46 +599,72 @@ public class PostgresLogic {
         do {
             playlistName = getInput("Enter the playlist you would like to edit or enter nothing to cancel: ");
             if (playlistName.equals("")) return; //cancel operation
-            if(!playlistExists(username, playlistName)) playlistName = null;
+            if(!ops().playlistExists(username, playlistName)) playlistName = null;
         }while (playlistName == null);
 
         //actually edit the playlist
-        PreparedStatement ps;
         System.out.println(LINE_SEPARATOR);
         String editMenu = """
                 0. Return to menu
                 1. Change a playlist name
                 2. Delete a playlist
+                3. Merge another of your playlists into this one
+                4. Remove duplicate songs
+                5. Export to a file
+                6. Import songs from a file
                 """;
-        int choice = numbered_Menu(editMenu, 3);
+        int choice = numbered_Menu(editMenu, 7);
         if(choice == 1) {
             String newName = getInput("What would you like to change the name of the playlist to? ");
-            ps = conn.prepareStatement("UPDATE playlist SET playlist_name = ? WHERE playlist_name = ? AND" +
-                    " username = ?");
-            ps.setString(1, newName);
-            ps.setString(2, playlistName);
-            ps.setString(3, username);
-            ps.executeUpdate();
-
-            ps = conn.prepareStatement("UPDATE song_on_playlist SET playlist_name = ? WHERE playlist_name = ? AND " +
-                    "username = ?");
-            ps.setString(1, newName);
-            ps.setString(2, playlistName);
-            ps.setString(3, username);
-            ps.executeUpdate();
+            ops().renamePlaylist(username, playlistName, newName);
             System.out.println("Playlist name successfully updated! '" + playlistName + "' is now '" + newName + "'.");
         } else if (choice == 2){
-            ps = conn.prepareStatement("DELETE FROM playlist WHERE playlist_name = ? AND username = ?");
-            ps.setString(1, playlistName);
-            ps.setString(2, username);
-            ps.executeUpdate();
-
-            ps = conn.prepareStatement("DELETE FROM song_on_playlist WHERE playlist_name = ? AND username = ?");
-            ps.setString(1, playlistName);
-            ps.setString(2, username);
-            ps.executeUpdate();
+            ops().deletePlaylist(username, playlistName);
 
             System.out.println("Playlist '" + playlistName + "' successfully deleted.");
+        } else if (choice == 3){
+            String source = getInput("Enter the playlist to merge into '" + playlistName + "': ");
+            if(source.equals(playlistName) || !ops().playlistExists(username, source)) {
+                System.out.println("Playlist does not exist");
+                return;
+            }
+            String input;
+            do {
+                input = getInput("Delete '" + source + "' after merging? (y/n) ");
+            }while (!(input.equalsIgnoreCase("y") || input.equalsIgnoreCase("n")));
+            int added = ops().mergePlaylists(username, source, playlistName, input.equalsIgnoreCase("y"));
+            System.out.println("Merged " + added + " new songs into '" + playlistName + "'.");
+        } else if (choice == 4){
+            int removed = ops().dedupePlaylist(username, playlistName);
+            System.out.println("Removed " + removed + " duplicate songs from '" + playlistName + "'.");
+        } else if (choice == 5){
+            String file = getInput("Enter a file name ending in .csv or .m3u: ");
+            try {
+                int written = ops().exportPlaylist(username, playlistName, Paths.get(file));
+                System.out.println("Exported " + written + " songs to " + file + ".");
+            } catch (IOException | InvalidPathException e) {
+                System.out.println("Could not write to " + file + ".");
+            }
+        } else if (choice == 6){
+            importPlaylist(playlistName);
+        }
+    }
+
+    /**
+     * Prompts for a CSV or M3U file and adds its songs to one of the user's playlists
+     * @param playlistName the playlist, created if it doesn't exist
+     * @return if the file was imported
+     * @throws SQLException if something breaks with the database
+     */
+    private boolean importPlaylist(String playlistName) throws SQLException {
+        String file = getInput("Enter a file name ending in .csv or .m3u: ");
+        try {
+            int added = ops().importPlaylist(username, playlistName, Paths.get(file));
+            System.out.println("Imported " + added + " songs into '" + playlistName + "'.");
+            return true;
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Could not read " + file + ".");
+            return false;
         }
     }
 
@@ -702,13 +673,7 @@ public class PostgresLogic {
      * @throws SQLException if something breaks with the database
      */
     public void followFriend() throws SQLException {
-        PreparedStatement follows = conn.prepareStatement("SELECT COUNT(*) AS follows FROM following WHERE" +
-                "(follower_un = ?) AND (followed_un = ?)", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        PreparedStatement insert = conn.prepareStatement("INSERT INTO following(follower_un, followed_un) " +
-                "VALUES(?, ?)");
-
-        ResultSet toFollow;
-        ResultSet rsFollows;
+        String un;
 
         while (true) {
             System.out.println(LINE_SEPARATOR);
@@ -716,23 +681,38 @@ public class PostgresLogic {
                     0. Return to menu
                     1. Search by username to follow
                     2. Search by email to follow
+                    3. View suggested users to follow
                     """;
-            int choice = numbered_Menu(friendMenu, 3);
+            int choice = numbered_Menu(friendMenu, 4);
             if (choice == 0) return;
+            if (choice == 3) {
+                List<String> suggested = ops().suggestions(username, 10);
+                if (suggested.isEmpty()) {
+                    System.out.println("No suggestions yet, try following some users first.");
+                    continue;
+                }
+                StringBuilder suggestMenu = new StringBuilder("Followed by people you follow:\n0. Go back\n");
+                for (int i = 0; i < suggested.size(); i++)
+                    suggestMenu.append(i + 1).append(". ").append(suggested.get(i)).append("\n");
+                int pick = numbered_Menu(suggestMenu.toString(), suggested.size() + 1);
+                if (pick == 0) continue;
+                un = suggested.get(pick - 1);
+                break;
+            }
             if (choice == 1) {
                 String followUN = getInput(GET_USERNAME);
                 if (followUN.equals("")) return;   //cancel search
-                toFollow = usernameExists(followUN);
-                if(toFollow == null) {
+                if(!ops().userExists(followUN)) {
                     System.out.println(NO_USER);
                     continue;
                 }
+                un = followUN;
                 break;
             } else if (choice == 2){
                 String followEmail = getInput(GET_EMAIL);
                 if(followEmail.equals("")) return;  //cancel search
-                toFollow = userEmailExists(followEmail);
-                if (toFollow == null) {
+                un = ops().usernameForEmail(followEmail);
+                if (un == null) {
                     System.out.println(BAD_EMAIL);
                     continue;
                 }
@@ -740,19 +720,8 @@ public class PostgresLogic {
             }
         }
 
-        String un = toFollow.getString("username");
-        follows.setString(1, username);
-        follows.setString(2, un);
-        rsFollows = follows.executeQuery();
-        rsFollows.next();
-        if (rsFollows.getInt("follows") > 0) {
-            System.out.println("You are already following this user");
-        } else {    // add to following relation
-            insert.setString(1, username);
-            insert.setString(2, un);
-            insert.execute();
-            System.out.println("You are now following " + un + ".");
-        }
+        if (!ops().follow(username, un)) System.out.println("You are already following this user");
+        else System.out.println("You are now following " + un + ".");
     }
 
     /**
@@ -760,13 +729,7 @@ public class PostgresLogic {
      * @throws SQLException if something breaks with the database
      */
     public void unfollowFriend() throws SQLException {
-        PreparedStatement follows = conn.prepareStatement("SELECT COUNT(*) AS follows FROM following WHERE" +
-                "(follower_un = ?) AND (followed_un = ?)", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        PreparedStatement delete = conn.prepareStatement("DELETE FROM following WHERE (follower_un = ?) AND " +
-                "(followed_un = ?)");
-
-        ResultSet toFollow;
-        ResultSet rsFollows;
+        String un;
 
         while (true) {
             System.out.println(LINE_SEPARATOR);
@@ -780,17 +743,17 @@ public class PostgresLogic {
             if (choice == 1) {
                 String followUN = getInput(GET_USERNAME);
                 if (followUN.equals("")) return;   //cancel search
-                toFollow = usernameExists(followUN);
-                if(toFollow == null) {
+                if(!ops().userExists(followUN)) {
                     System.out.println(NO_USER);
                     continue;
                 }
+                un = followUN;
                 break;
             } else if (choice == 2){
                 String followEmail = getInput(GET_EMAIL);
                 if(followEmail.equals("")) return;  //cancel search
-                toFollow = userEmailExists(followEmail);
-                if (toFollow == null) {
+                un = ops().usernameForEmail(followEmail);
+                if (un == null) {
                     System.out.println(BAD_EMAIL);
                     continue;
                 }
@@ -798,19 +761,8 @@ public class PostgresLogic {
             }
         }
 
-        String un = toFollow.getString("username");
-        follows.setString(1, username);
-        follows.setString(2, un);
-        rsFollows = follows.executeQuery();
-        rsFollows.next();
-        if (rsFollows.getInt("follows") == 0)
-            System.out.println("You do not follow this user");
-        else {  // delete following relation
-            delete.setString(1, username);
-            delete.setString(2, un);
-            delete.execute();
-            System.out.println("You are no longer following " + un + ".");
-        }
+        if (!ops().unfollow(username, un)) System.out.println("You do not follow this user");
+        else System.out.println("You are no longer following " + un + ".");
     }
 
     /**
@@ -825,35 +777,23 @@ public class PostgresLogic {
             searchUser = getInput("Enter a user's username or nothing to search your own: ");
             if(searchUser.equals(""))   //user viewing themselves
                 searchUser = username;
-            else if(usernameExists(searchUser) == null) {
+            else if(!ops().userExists(searchUser)) {
                 System.out.println(NO_USER);
                 searchUser = null;
             }
         }while (searchUser == null);
 
 
-        PreparedStatement getFollows = conn.prepareStatement("SELECT followed_un FROM following " +
-                "WHERE following.follower_un=?");
-        PreparedStatement getFollowCount = conn.prepareStatement("SELECT COUNT(*) FROM following " +
-                "WHERE following.follower_un=?");
-
-        getFollows.setString(1, searchUser);
-        getFollowCount.setString(1, searchUser);
-
-        ResultSet follows = getFollows.executeQuery();
-        ResultSet followCount = getFollowCount.executeQuery();
-
-        followCount.next();
-
-        int numOfFollows = followCount.getInt(1);
+        List<String> follows = ops().following(searchUser);
+        int numOfFollows = follows.size();
         System.out.println(switch (numOfFollows) {
             case 0 -> searchUser + " is following no users.";
             case 1 -> searchUser + " is following one user:";
             default -> searchUser + " is following " + numOfFollows + " users:";
         });
 
-        while (follows.next())
-            System.out.println("\t" + follows.getString(1));
+        for (String follow : follows)
+            System.out.println("\t" + follow);
     }
 
     /**
@@ -868,34 +808,22 @@ public class PostgresLogic {
             searchUser = getInput("Enter a user's username or nothing to search your own: ");
             if(searchUser.equals(""))   //user viewing themselves
                 searchUser = username;
-            else if(usernameExists(searchUser) == null) {
+            else if(!ops().userExists(searchUser)) {
                 System.out.println(NO_USER);
                 searchUser = null;
             }
         }while (searchUser == null);
 
-        PreparedStatement getFollowers = conn.prepareStatement("SELECT follower_un FROM following " +
-                "WHERE following.followed_un=?");
-        PreparedStatement getFollowerCount = conn.prepareStatement("SELECT COUNT(*) FROM following " +
-                "WHERE following.followed_un=?");
-
-        getFollowers.setString(1, searchUser);
-        getFollowerCount.setString(1, searchUser);
-
-        ResultSet followers = getFollowers.executeQuery();
-        ResultSet followerCount = getFollowerCount.executeQuery();
-
-        followerCount.next();
-
-        int numOfFollowers = followerCount.getInt(1);
+        List<String> followers = ops().followers(searchUser);
+        int numOfFollowers = followers.size();
         System.out.println(switch (numOfFollowers) {
             case 0 -> searchUser + " is followed by no users.";
             case 1 -> searchUser + " is followed by one user:";
             default -> searchUser + " is followed by " + numOfFollowers + " users:";
         });
 
-        while (followers.next())
-            System.out.println("\t" + followers.getString(1));
+        for (String follower : followers)
+            System.out.println("\t" + follower);
     }
 
     //endregion
@@ -916,133 +844,27 @@ public class PostgresLogic {
             System.out.println();
             System.out.println(username + "'s profile\n");
 
-            PreparedStatement ps = conn.prepareStatement("SELECT COUNT(playlist_name) AS num_playlists FROM playlist WHERE username = ?");
-            ps.setString(1, username);
-            ResultSet rs = ps.executeQuery();
-            rs.next();
-            System.out.println("Number of playlists: " + rs.getInt("num_playlists"));
-
-            ps = conn.prepareStatement("SELECT COUNT(followed_un) AS num_following FROM following WHERE follower_un = ?");
-            ps.setString(1, username);
-            rs = ps.executeQuery();
-            rs.next();
-            System.out.println("Following: " + rs.getInt("num_following"));
-
-            ps = conn.prepareStatement("SELECT COUNT(follower_un) AS num_followed FROM following WHERE followed_un = ?");
-            ps.setString(1, username);
-            rs = ps.executeQuery();
-            rs.next();
-            System.out.println("Followed: " + rs.getInt("num_followed"));
-
-            ps = conn.prepareStatement("SELECT COUNT(*) AS total, sba.artist_name FROM song_by_artist sba, " +
-                    "user_listens_song uls WHERE sba.song_id = uls.song_id AND uls.username = ? GROUP BY sba.artist_name " +
-                    "ORDER BY COUNT(*) DESC");
-            ps.setString(1, username);
-            rs = ps.executeQuery();
-            rs.next();
+            DotifyOperations.Profile profile = ops().profile(username);
+            System.out.println("Number of playlists: " + profile.playlists());
+            System.out.println("Following: " + profile.following());
+            System.out.println("Followed: " + profile.followers());
+
             System.out.println("Top 10 artists by listen count");
-            for (int i = 1; i < 11; i++) {
-                System.out.println(i + ". " + rs.getString("artist_name") + " with " +
-                        rs.getString("total") + " listens");
-                rs.next();
-                if (rs.isAfterLast()) {
-                    break;
-                }
+            int i = 1;
+            for (ArtistTotal artist : profile.byListens()) {
+                System.out.println(i++ + ". " + artist.artistName() + " with " + artist.total() + " listens");
             }
 
-            ps = conn.prepareStatement("SELECT COUNT(*) AS total, sba.artist_name FROM song_by_artist sba, " +
-                    "song_on_playlist sop WHERE sba.song_id = sop.song_id AND sop.username = ? GROUP BY sba.artist_name " +
-                    "ORDER BY COUNT(*) DESC");
-            ps.setString(1, username);
-            rs = ps.executeQuery();
-            rs.next();
             System.out.println("Top 10 artists by playlist occurrences");
-            for (int i = 1; i < 11; i++) {
-                System.out.println(i + ". " + rs.getString("artist_name") + " with " +
-                        rs.getString("total") + " occurrences");
-                rs.next();
-                if (rs.isAfterLast()) {
-                    break;
-                }
+            i = 1;
+            for (ArtistTotal artist : profile.byPlaylists()) {
+                System.out.println(i++ + ". " + artist.artistName() + " with " + artist.total() + " occurrences");
             }
 
-            // calculates combination of top 10 artists between song listens and playlist additions
-            ps = conn.prepareStatement("""
-                    SELECT (sop2.total + uls2.total) AS total, sop2.artist_name FROM
-
-                    (SELECT COUNT(*) AS total, sba.artist_name FROM song_by_artist sba, user_listens_song uls
-                        WHERE sba.song_id = uls.song_id AND uls.username = ? GROUP BY sba.artist_name
-                        ORDER BY COUNT(*) DESC) AS sop2,
-
-                    (SELECT COUNT(*) AS total, sba.artist_name FROM song_by_artist sba,
-                        song_on_playlist sop WHERE sba.song_id = sop.song_id AND sop.username = ? GROUP BY sba.artist_name
-                        ORDER BY COUNT(*) DESC) AS uls2
-
-                    WHERE sop2.artist_name = uls2.artist_name ORDER BY total DESC""");
-            ps.setString(1, username);
-            ps.setString(2, username);
-            ResultSet rsBoth = ps.executeQuery();
-            boolean bothEmpty = !rsBoth.isBeforeFirst();
-            rsBoth.next();
-
-            ps = conn.prepareStatement("SELECT COUNT(*) AS total, sba.artist_name FROM song_by_artist sba, " +
-                "song_on_playlist sop WHERE sba.song_id = sop.song_id AND sop.username = ? GROUP BY sba.artist_name " +
-                "ORDER BY COUNT(*) DESC");
-            ps.setString(1, username);
-            ResultSet rsPlaylist = ps.executeQuery();
-            boolean playlistEmpty = !rsPlaylist.isBeforeFirst();
-            rsPlaylist.next();
-
-            ps = conn.prepareStatement("SELECT COUNT(*) AS total, sba.artist_name FROM song_by_artist sba, " +
-                "user_listens_song uls WHERE sba.song_id = uls.song_id AND uls.username = ? GROUP BY sba.artist_name " +
-                "ORDER BY COUNT(*) DESC");
-            ps.setString(1, username);
-            ResultSet rsListen = ps.executeQuery();
-            boolean listenEmpty = !rsListen.isBeforeFirst();
-            rsListen.next();
-
-            HashSet<String> artists = new HashSet<>();
             System.out.println("Top 10 artists (by playlist occurrences and listens)");
-            for (int i = 1; i < 11; i++) {
-                int both = 0;
-                int playlist = 0;
-                int listen = 0;
-                if (!rsBoth.isAfterLast() && !bothEmpty) {
-                    both = rsBoth.getInt("total");
-                }
-                if (!rsPlaylist.isAfterLast() && !playlistEmpty) {
-                    playlist = Integer.parseInt(rsPlaylist.getString("total"));
-                }
-                if (!rsListen.isAfterLast() && !listenEmpty) {
-                    listen = rsListen.getInt("total");
-                }
-                int total;
-                String artistName;
-                if (both >= playlist && both >= listen) {
-                    total = rsBoth.getInt("total");
-                    artistName = rsBoth.getString("artist_name");
-                    rsBoth.next();
-                } else if (playlist >= both && playlist >= listen) {
-                    total = rsPlaylist.getInt("total");
-                    artistName = rsPlaylist.getString("artist_name");
-                    rsPlaylist.next();
-                } else {
-                    total = rsListen.getInt("total");
-                    artistName = rsListen.getString("artist_name");
-                    rsListen.next();
-                }
-
-                if (!artists.contains(artistName)) {
-                    System.out.println(i + ". " + artistName + " with " + total + " occurrences and listens");
-                    artists.add(artistName);
-                } else {
-                    i--;
-                }
-
-                if ((rsBoth.isAfterLast() || bothEmpty) && (rsListen.isAfterLast() || listenEmpty)
-                        && (rsPlaylist.isAfterLast() || playlistEmpty)) {
-                    break;
-                }
+            i = 1;
+            for (ArtistTotal artist : profile.combined()) {
+                System.out.println(i++ + ". " + artist.artistName() + " with " + artist.total() + " occurrences and listens");
             }
         }
 
@@ -1052,17 +874,11 @@ public class PostgresLogic {
      * @throws SQLException if something goes wrong with database
      */
     public void top50last30days() throws SQLException {
-        PreparedStatement ps = conn.prepareStatement(
-                "SELECT title, num_listens FROM song WHERE song_id IN" +
-                        "(SELECT song_id FROM user_listens_song WHERE date_listened >= NOW() - INTERVAL '30 DAY')" +
-                        "ORDER BY num_listens DESC LIMIT 50");
-
-
-        ResultSet rs = ps.executeQuery();
-
+        List<DotifyOperations.ChartEntry> chart = withinBudget("top50", () -> ops().top50Last30Days());
+        if(chart == null) return;
         int rank = 1;
-        while (rs.next()) {
-            System.out.printf("%d: %s\tListens: %s%n", rank++, rs.getString(1), rs.getString(2));
+        for (DotifyOperations.ChartEntry entry : chart) {
+            System.out.printf("%d: %s\tListens: %s%n", rank++, entry.name(), entry.listens());
         }
         getInput("Press any key to exit view.");
     }
@@ -1074,69 +890,31 @@ public class PostgresLogic {
      * @throws SQLException if something goes wrong with database
      */
     public void top50friends() throws SQLException{
-        // Key: song_id, Value: total listens
-        Map<Integer, Integer> friend_songs = new HashMap<>();
-
-        //Get all friends of current user
-        PreparedStatement getFollows = conn.prepareStatement("SELECT followed_un FROM following " +
-                "WHERE following.follower_un=?");
-        getFollows.setString(1, username);
-        ResultSet follows = getFollows.executeQuery();
-
-        //Get every song that each friend listened to
-        while (follows.next()) {
-            PreparedStatement getUserListens = conn.prepareStatement("SELECT song_id FROM " +
-                    "user_listens_song WHERE username=?");
-            getUserListens.setString(1, follows.getString("followed_un"));
-            ResultSet listens = getUserListens.executeQuery();
-
-            //Count the number of times a friend listened to a song
-            while (listens.next()) {
-                int song_id = listens.getInt("song_id");
-                if (friend_songs.containsKey(song_id)) {
-                    friend_songs.put(song_id, friend_songs.get(song_id) + 1); //increment total listens
-                }
-                else {
-                    friend_songs.put(song_id, 1); //new song so set total listens to 1
-                }
-            }
-        }
+        //chart is maintained as friends listen, so this is just a read once it's built
+        List<DotifyOperations.ChartEntry> chart = withinBudget("friends:" + username,
+                () -> ops().friendChart(username));
+        if(chart == null) return;
 
         //Print the top 50 most listened songs among friends
-        final int top_songs = 50;
+        final int top_songs = FriendChartService.CHART_SIZE;
         int num_of_friend_songs;
-        PreparedStatement getSongTitle = conn.prepareStatement("SELECT title FROM " +
-                "song WHERE song_id=?");
 
-        if (friend_songs.isEmpty()){
+        if (chart.isEmpty()){
             System.out.println("Unable to recommend song: " +
                     "Your friends have not listened to any songs.");
         }
         else {
-            num_of_friend_songs = friend_songs.size();
-            if (num_of_friend_songs < 50) {
+            num_of_friend_songs = chart.size();
+            if (num_of_friend_songs < top_songs) {
                 System.out.println("Your friends have only listened to " + num_of_friend_songs +
                         " songs.\nRecommending top " + num_of_friend_songs + " songs amongst friends instead:");
             }
             else {
                 System.out.println("Top " + top_songs + " songs amongst friends:");
             }
-            for (int i = 0; i < top_songs && i < num_of_friend_songs; i++) {
-                int top_song_id = 0;
-                int top_song_listens = 0;
-                for (Map.Entry<Integer, Integer> entry : friend_songs.entrySet()) {
-                    if (entry.getValue() > top_song_listens) {
-                        top_song_id = entry.getKey();
-                        top_song_listens = entry.getValue();
-                    }
-                }
-                friend_songs.remove(top_song_id);
-
-                getSongTitle.setInt(1, top_song_id);
-                ResultSet song_title = getSongTitle.executeQuery();
-                song_title.next();
 
-                System.out.println("\t" + (i+1) + ": "+ song_title.getString("title"));
+            for (int i = 0; i < num_of_friend_songs; i++) {
+                System.out.println("\t" + (i+1) + ": "+ chart.get(i).name());
             }
         }
         getInput("Press enter to return to menu.");
@@ -1148,18 +926,11 @@ public class PostgresLogic {
      * @throws SQLException if something goes wrong with database
      */
     public void top5month() throws SQLException {
-        PreparedStatement ps = conn.prepareStatement( "SELECT g.genre_name, n.genre_listens FROM genre g, " +
-                "(SELECT genre_id, SUM(num_listens) as genre_listens FROM song WHERE song_id IN " +
-                        "(SELECT song_id FROM " +
-                        "user_listens_song WHERE EXTRACT(MONTH from date_listened) = EXTRACT(MONTH from NOW()))" +
-                        "GROUP BY genre_id ORDER BY genre_listens DESC LIMIT 5) n WHERE g.genre_id = n.genre_id");
-
-
-        ResultSet rs = ps.executeQuery();
-
+        List<DotifyOperations.ChartEntry> chart = withinBudget("genres", () -> ops().top5GenresThisMonth());
+        if(chart == null) return;
         int rank = 1;
-        while (rs.next()) {
-            System.out.printf("%d: %s\tListens: %s%n", rank++, rs.getString(1), rs.getString(2));
+        for (DotifyOperations.ChartEntry entry : chart) {
+            System.out.printf("%d: %s\tListens: %s%n", rank++, entry.name(), entry.listens());
         }
         getInput("Press any key to exit view.");
     }
@@ -1172,108 +943,46 @@ public class PostgresLogic {
                 0. Return to Menu
                 1. Recommendations based on previously heard songs
                 2. Recommendations based on friend activity
+                3. Recommendations based on your taste profile
                 """;
-        int choice = numbered_Menu(recommendMenu, 3);
+        int choice = numbered_Menu(recommendMenu, 4);
         System.out.println(LINE_SEPARATOR + "\n");
 
-        //get a random listened song
-        PreparedStatement getSong = conn.prepareStatement("SELECT * FROM song WHERE song_id = (" +
-                "SELECT song_id FROM user_listens_song WHERE username = ? " +
-                "OFFSET floor(random()*(SELECT COUNT(*) FROM user_listens_song WHERE username = ?)) LIMIT 1)");
-        getSong.setString(1, username);
-        getSong.setString(2, username);
-        ResultSet songSet = getSong.executeQuery();
-        if(!songSet.isBeforeFirst()) {  //no songs found
-            System.out.println("Sorry, you haven't listened to any songs yet!");
-            return;
-        }
-        songSet.next();
-
-        if(choice == 1) {
-            //get the related songs by either artist or genre
-            PreparedStatement getRelated;
-            Random random = new Random();
-            int option = random.nextInt(2);
-            getRelated = conn.prepareStatement("SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, g.genre_name," +
-                    " sba.artist_name, a.album_id, a.name FROM song s, song_by_artist sba, song_on_album soa, genre g, " +
-                    "album a WHERE s.song_id = soa.song_id AND a.album_id = soa.album_id AND "
-                    + (option == 0 ? "s.song_id = sba.song_id AND s.genre_id = ?" : "sba.song_id = ? AND s.genre_id = g.genre_id") +
-                    " ORDER BY random() LIMIT 5", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            getRelated.setInt(1, songSet.getInt(option == 0 ? "genre_id" : "song_id"));
-            ResultSet recommended = getRelated.executeQuery();
-            recommended.next();
-            System.out.println("Because you listened to '" + recommended.getString(option == 0 ? "genre_name" : "artist_name") + "' recently:");
-
-
-            int numSongs = 1;
-            //print out songs and allow user to select them
-            do {
-                int songLength = recommended.getInt("length");
-                int minutes = songLength / 60;
-                int seconds = songLength % 60;
-
-                System.out.println("\t" + numSongs++ +
-                        ". Song name: " + recommended.getString("title") +
-                        " by " + recommended.getString("artist_name")+
-                        ", Album: " + recommended.getString("name") +
-                        ", Length: " + minutes + "m " + seconds +
-                        "s, Listen Count: " + recommended.getInt("num_listens") +
-                        ", Release Date: " + recommended.getDate("release_date") +
-                        ", Genre: " + recommended.getString("genre_name"));
-            } while (recommended.next());
-
-            if(numbered_Menu("""
-                    0. Return to menu
-                    1. Select a song
-                    """, 2) == 1) selectASong(recommended, numSongs);
+        DotifyOperations.Recommendations recommended;
+        if(choice == 1) recommended = withinBudget("history:" + username, () -> ops().recommendFromHistory(username));
+        else if(choice == 2) {    //based on similar users
+            recommended = withinBudget("similar:" + username, () -> ops().recommendFromSimilarUser(username));
         }
-        else if(choice == 2){    //based on similar users
-            PreparedStatement otherUser = conn.prepareStatement("SELECT username FROM user_listens_song " +
-                    "WHERE username <> ? AND song_id IN (SELECT song_id FROM user_listens_song WHERE username = ?)" +
-                    "ORDER BY random()" +
-                    "LIMIT 1");
-            otherUser.setString(1, username);
-            otherUser.setString(2, username);
-            ResultSet other = otherUser.executeQuery();
-            if(!other.isBeforeFirst()) {
-                System.out.println("Sorry, we couldn't find any similar users, try again later");
-                return;
+        else if(choice == 3) {    //based on genre and artist affinity
+            List<TasteVectorIndex.Neighbor<String>> users = withinBudget("usersLike:" + username,
+                    () -> ops().usersLike(username, 5));
+            if(users == null) return;
+            if(!users.isEmpty()) {
+                System.out.println("Users with taste like yours:");
+                for (TasteVectorIndex.Neighbor<String> user : users)
+                    System.out.println("\t" + user.key() + " (" + Math.round(user.score() * 100) + "% match)");
+                System.out.println();
             }
-            other.next();
-
-            PreparedStatement otherSongs = conn.prepareStatement("SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, g.genre_name, sba.artist_name, a.album_id, a.name" +
-                    " FROM song s, song_by_artist sba, song_on_album soa, genre g, user_listens_song l, album a" +
-                    " WHERE s.song_id = soa.song_id  AND a.album_id = soa.album_id  AND s.song_id = sba.song_id" +
-                    "  AND s.genre_id = g.genre_id  AND s.song_id = l.song_id  AND l.username =?" +
-                    "  AND s.song_id != ? ORDER BY random() LIMIT 5");
-            otherSongs.setString(1, other.getString("username"));
-            otherSongs.setInt(2, songSet.getInt("song_id"));
-            ResultSet recommended = otherSongs.executeQuery();
-            recommended.next();
-            System.out.println("Found a similar user '" + other.getString("username") + "', here are some songs they've listened to:");
-
-            int numSongs = 1;
-            //print out songs and allow user to select them
-            do {
-                int songLength = recommended.getInt("length");
-                int minutes = songLength / 60;
-                int seconds = songLength % 60;
-
-                System.out.println("\t" + numSongs++ +
-                        ". Song name: " + recommended.getString("title") +
-                        " by " + recommended.getString("artist_name")+
-                        ", Album: " + recommended.getString("name") +
-                        ", Length: " + minutes + "m " + seconds +
-                        "s, Listen Count: " + recommended.getInt("num_listens") +
-                        ", Release Date: " + recommended.getDate("release_date") +
-                        ", Genre: " + recommended.getString("genre_name"));
-            } while (recommended.next());
-
-            if(numbered_Menu("""
-                    0. Return to menu
-                    1. Select a song
-                    """, 2) == 1) selectASong(recommended, numSongs);
+            recommended = withinBudget("taste:" + username, () -> ops().recommendFromTaste(username));
         }
+        else return;
+        if(recommended == null) return;
+
+        System.out.println(recommended.reason());
+        if(recommended.songs().isEmpty()) return;
+
+        //print out songs and allow user to select them
+        List<DotifyOperations.Song> songs = recommended.songs();
+        for (int i = 0; i < songs.size(); i++) {
+            DotifyOperations.Song song = songs.get(i);
+            System.out.println(formatSearchRow(i + 1, song.title(), song.artistName(), song.albumName(),
+                    song.length(), song.listens(), song.releaseDate(), song.genreName()));
+        }
+
+        if(numbered_Menu("""
+                0. Return to menu
+                1. Select a song
+                """, 2) == 1) selectASong(songs);
     }
 
     //endregion
@@ -1281,6 +990,96 @@ public class PostgresLogic {
 
     //region Helpers
 
+    /**
+     * An artist with a listen or playlist occurrence total from one of the profile queries
+     */
+    record ArtistTotal(String artistName, int total) {}
+
+    /**
+     * Merges top artist lists sorted by total, each step taking the highest head of the three
+     * and skipping artists that were already taken
+     * @param both artists by listens and playlist occurrences combined
+     * @param playlist artists by playlist occurrences
+     * @param listen artists by listens
+     * @param n the number of artists to return
+     * @return up to n distinct artists
+     */
+    static List<ArtistTotal> mergeTopArtists(List<ArtistTotal> both, List<ArtistTotal> playlist,
+                                             List<ArtistTotal> listen, int n) {
+        List<List<ArtistTotal>> lists = List.of(both, playlist, listen);
+        int[] heads = new int[lists.size()];
+        HashSet<String> taken = new HashSet<>();
+        List<ArtistTotal> merged = new ArrayList<>(n);
+        while (merged.size() < n) {
+            int best = -1;
+            for (int l = 0; l < lists.size(); l++) {
+                if (heads[l] < lists.get(l).size() && (best == -1 ||
+                        lists.get(l).get(heads[l]).total() > lists.get(best).get(heads[best]).total())) {
+                    best = l;
+                }
+            }
+            if (best == -1) break;  //every list is used up
+            ArtistTotal artist = lists.get(best).get(heads[best]++);
+            if (taken.add(artist.artistName())) merged.add(artist);
+        }
+        return merged;
+    }
+
+    /**
+     * Builds the song search statement for a search field and sort order from the search menus
+     * @param searchChoice 0 for song name, 1 for artist, 2 for album and 3 for genre
+     * @param orderChoice the sorting method, 0 to 8
+     * @return the statement, taking the LIKE pattern as its one parameter, or null for an unknown choice
+     */
+    static String searchSQL(int searchChoice, int orderChoice) {
+        String order = switch (orderChoice) {
+            case 0 -> "s.title, ar.artist_name ASC";
+            case 1 -> "s.title ASC";
+            case 2 -> "s.title DESC";
+            case 3 -> "ar.artist_name ASC";
+            case 4 -> "ar.artist_name DESC";
+            case 5 -> "g.genre_name ASC";
+            case 6 -> "g.genre_name DESC";
+            case 7 -> "s.release_date ASC";
+            case 8 -> "s.release_date DESC";
+            default -> null;
+        };
+        String filter = switch (searchChoice) {
+            case 0 -> "s.title LIKE ?";
+            case 1 -> "ar.artist_name LIKE ?";
+            case 2 -> "a.name LIKE ?";
+            case 3 -> "g.genre_name LIKE ?";
+            default -> null;
+        };
+        if(order == null || filter == null) return null;
+        return "SELECT s.song_id, s.title, s.length, s.release_date, s.num_listens, g.genre_name," +
+                " ar.artist_name, a.album_id, a.name FROM song s, song_by_artist sba, artist ar, song_on_album soa, genre g, " +
+                "album a WHERE sba.artist_id = ar.artist_id AND s.song_id = sba.song_id AND s.genre_id = g.genre_id AND s.song_id = soa.song_id " +
+                "AND a.album_id = soa.album_id AND " + filter + " ORDER BY " + order;
+    }
+
+    /**
+     * Formats a song as a numbered line of search results
+     * @return the line to print
+     */
+    static String formatSearchRow(int number, String title, String artistName, String albumName, int length,
+                                  int listens, Date releaseDate, String genreName) {
+        return "\t" + number + ". Song name: " + title + " by " + artistName + ", Album: " + albumName +
+                ", Length: " + length / 60 + "m " + length % 60 + "s, Listen Count: " + listens +
+                ", Release Date: " + releaseDate + ", Genre: " + genreName;
+    }
+
+    /**
+     * Formats a song as a line of a playlist being listened to
+     * @return the line to print
+     */
+    static String formatPlaylistRow(String title, String artistName, String albumName, int length,
+                                    String genreName, Date releaseDate, int listens) {
+        return "\tSong name: " + title + ", Artist: " + artistName + ", Album: " + albumName +
+                ", Length: " + length / 60 + "m " + length % 60 + "s, Genre: " + genreName +
+                ", Release Date: " + releaseDate + ", Listen Count: " + listens;
+    }
+
     /**
      * Prints out all statistics options for a user
      */
@@ -1300,6 +1099,43 @@ public class PostgresLogic {
         }
     }
 
+    /**
+     * Runs a chart or recommendation query within STATS_BUDGET_MS, showing the last result
+     * instead, with its age, if the database is too busy to answer in time
+     * @param key identifies the result, including the user for personal ones
+     * @param work the query
+     * @return the result, or null if there's none to show yet
+     * @throws SQLException if the query fails other than by running out of time
+     */
+    private <T> T withinBudget(String key, QueryDeadline.SQLSupplier<T> work) throws SQLException {
+        DeadlineCache.Result<T> result = stats.get(key, work);
+        if(result.value() == null) {
+            System.out.println("Dotify is busy right now and this is taking longer than usual. It's being " +
+                    "prepared in the background, please try again in a moment.");
+            return null;
+        }
+        if(result.stale()) {
+            System.out.println("Dotify is busy right now, so this is from " +
+                    DeadlineCache.describeAge(result.ageMillis()) + " ago. A fresh copy is being prepared in the background.");
+        }
+        return result.value();
+    }
+
+    /**
+     * Waits for startup to finish if it hasn't yet
+     * @return the operations
+     * @throws SQLException if connecting to the database failed
+     */
+    private DotifyOperations ops() throws SQLException {
+        if(!ops.isDone()) System.out.println("Connecting to Dotify...");
+        try {
+            return ops.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof SQLException cause) throw cause;
+            throw new SQLException("Could not connect to Dotify", e.getCause());
+        }
+    }
+
     /**
      * Reads in and returns user input based on a prompt
      * @param prompt the prompt
@@ -1327,49 +1163,5 @@ public class PostgresLogic {
         }
     }
 
-    /**
-     * Checks to see if a playlist of a name given a user exists
-     * @param searchUser the username
-     * @param playlistName the playlist's name
-     * @return whether the playlist exists
-     * @throws SQLException if database access goes wrong
-     */
-    public boolean playlistExists(String searchUser, String playlistName) throws SQLException {
-        PreparedStatement playlistPS = conn.prepareStatement("SELECT username FROM playlist WHERE " +
-                "playlist_name = ? AND username = ?");
-        playlistPS.setString(1, playlistName);
-        playlistPS.setString(2, searchUser);
-        ResultSet playlistRS = playlistPS.executeQuery();
-        return playlistRS.isBeforeFirst();
-    }
-
-    /**
-     * Checks to see if a user with a given name exists
-     * @param searchUser the user's name
-     * @return a resultset with the user in the current row, or null otherwise
-     * @throws SQLException if database access goes wrong
-     */
-    public ResultSet usernameExists(String searchUser) throws SQLException {
-        PreparedStatement userPS = conn.prepareStatement("SELECT * FROM user_t WHERE username = ?",
-                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-        userPS.setString(1, searchUser);
-        ResultSet userRS = userPS.executeQuery();
-        return userRS.next() ? userRS : null;
-    }
-
-    /**
-     * Checks to see if a user with a given name exists
-     * @param searchEmail the user's email
-     * @return a resultset with the user in the current row, or null otherwise
-     * @throws SQLException if database access goes wrong
-     */
-    public ResultSet userEmailExists(String searchEmail) throws SQLException {
-        PreparedStatement userPS = conn.prepareStatement("SELECT * FROM user_t WHERE email = ?",
-                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
-        userPS.setString(1, searchEmail);
-        ResultSet userRS = userPS.executeQuery();
-        return userRS.next() ? userRS : null;
-    }
-
     //endregion
 }
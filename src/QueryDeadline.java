@@ -0,0 +1,117 @@
+/* Time budgets for database work. While work runs inside within(), every statement it executes on
+ * a DBConnEstablisher connection is cancelled once the budget runs out, the way setQueryTimeout
+ * would but to the millisecond and over all of the work's statements together rather than each
+ * one. The cancelled statement fails with an SQLTimeoutException, as does any statement started
+ * after the budget is spent. Statements ShardRouter.scatter runs on other threads for the work
+ * keep its deadline.
+ */
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class QueryDeadline {
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+    private static final ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor(work -> {
+        Thread thread = new Thread(work, "query-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Database work that returns a result
+     */
+    public interface SQLSupplier<T> {
+        T get() throws SQLException;
+    }
+
+    /**
+     * A statement execution, as intercepted by StatementMetrics
+     */
+    interface Execution {
+        Object run() throws Throwable;
+    }
+
+    private QueryDeadline() {}
+
+    /**
+     * Runs work with a time budget, or what's left of the caller's if that's sooner
+     * @param millis the budget
+     * @param work the work
+     * @return what the work returned
+     * @throws SQLTimeoutException if the budget runs out while a statement is running or before one starts
+     * @throws SQLException if the work fails some other way
+     */
+    public static <T> T within(long millis, SQLSupplier<T> work) throws SQLException {
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        Long outer = deadline.get();
+        return at(outer != null && outer - due < 0 ? outer : due, work);
+    }
+
+    /**
+     * @return the current thread's deadline in System.nanoTime, or null if it has none, for
+     * handing to at() on another thread
+     */
+    public static Long current() {
+        return deadline.get();
+    }
+
+    /**
+     * Runs work with a deadline taken from another thread
+     * @param due the deadline in System.nanoTime, or null for none
+     * @param work the work
+     * @return what the work returned
+     * @throws SQLException if the work fails, see within
+     */
+    public static <T> T at(Long due, SQLSupplier<T> work) throws SQLException {
+        Long previous = deadline.get();
+        if (due == null) deadline.remove();
+        else deadline.set(due);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) deadline.remove();
+            else deadline.set(previous);
+        }
+    }
+
+    /**
+     * Runs a statement, cancelling it if the current thread's deadline passes first
+     * @param st the statement being executed
+     * @param execution runs it
+     * @return what the execution returned
+     * @throws Throwable whatever the execution threw, or an SQLTimeoutException in place of the
+     * error a cancelled statement fails with
+     */
+    static Object enforce(Statement st, Execution execution) throws Throwable {
+        Long due = deadline.get();
+        if (due == null) return execution.run();
+        long remaining = due - System.nanoTime();
+        if (remaining <= 0) throw timedOut(null);
+
+        ScheduledFuture<?> cancel = canceller.schedule(() -> {
+            try {
+                st.cancel();    //does nothing if the statement has already finished
+            } catch (SQLException ignored) {
+                //the statement runs to the end instead, and the next one is refused
+            }
+        }, remaining, TimeUnit.NANOSECONDS);
+        try {
+            return execution.run();
+        } catch (SQLException e) {
+            if (cancel.isDone() && !cancel.isCancelled()) throw timedOut(e);
+            throw e;
+        } finally {
+            cancel.cancel(false);
+        }
+    }
+
+    private static SQLTimeoutException timedOut(SQLException cause) {
+        MetricsRegistry.get().count("dotify_query_deadlines_exceeded_total", 1);
+        return new SQLTimeoutException("Query ran past its deadline", "57014", cause);
+    }
+}
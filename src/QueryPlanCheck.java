@@ -0,0 +1,121 @@
+/* Plan regression check for the statements in PostgresLogic. Every SQL_ constant and every search
+ * searchSQL can build from the menu choices is planned with EXPLAIN (GENERIC_PLAN), which needs
+ * PostgreSQL 16 or later, against a seeded database, and the check fails if any of them reads a
+ * large table with a sequential scan. Run it after SchemaMigrator whenever a query or index changes.
+ *
+ *   QueryPlanCheck [minimum rows for a table to count as large]
+ */
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class QueryPlanCheck {
+    private static final long DEFAULT_LARGE_TABLE_ROWS = 10_000;
+    private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+
+    private final Connection conn;
+    private final long largeTableRows;
+    private final Map<String, Long> tableRows = new HashMap<>();
+
+    public QueryPlanCheck(Connection conn, long largeTableRows) {
+        this.conn = conn;
+        this.largeTableRows = largeTableRows;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        long largeTableRows = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_LARGE_TABLE_ROWS;
+        QueryPlanCheck check = new QueryPlanCheck(DBConnEstablisher.getConnection(), largeTableRows);
+        System.out.println("Connected to database");
+
+        List<String> failures = check.run();
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+        if (!failures.isEmpty()) {
+            System.out.println(failures.size() + " statements failed the plan check:");
+            for (String failure : failures) System.out.println("  " + failure);
+            System.exit(1);
+        }
+        System.out.println("All statements passed the plan check");
+    }
+
+    /**
+     * Plans every statement and collects the ones that scan a large table sequentially or can't be planned
+     * @return a description of each failure, empty if every statement passed
+     * @throws SQLException if database access goes wrong outside of planning a statement
+     */
+    public List<String> run() throws SQLException {
+        conn.createStatement().execute("ANALYZE");  //plans are only meaningful with current row estimates
+        ResultSet rs = conn.createStatement().executeQuery("SELECT relname, reltuples::bigint FROM pg_class " +
+                "WHERE relkind IN ('r', 'p') AND pg_table_is_visible(oid)");
+        while (rs.next()) tableRows.put(rs.getString(1), rs.getLong(2));
+
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, String> statement : statements().entrySet()) {
+            int before = failures.size();
+            List<String> plan;
+            try {
+                plan = explain(statement.getValue());
+            } catch (SQLException e) {
+                failures.add(statement.getKey() + ": could not be planned (" + e.getMessage() + ")");
+                System.out.println("FAIL  " + statement.getKey());
+                continue;
+            }
+            for (String line : plan) {
+                Matcher m = SEQ_SCAN.matcher(line);
+                if (m.find() && tableRows.getOrDefault(m.group(1), 0L) >= largeTableRows) {
+                    failures.add(statement.getKey() + ": sequential scan on " + m.group(1) +
+                            " (" + tableRows.get(m.group(1)) + " rows)");
+                }
+            }
+            System.out.println((failures.size() == before ? "ok    " : "FAIL  ") + statement.getKey());
+        }
+        return failures;
+    }
+
+    /**
+     * Collects the SQL_ constants of PostgresLogic by name, along with every search searchSQL
+     * builds, named like searchSQL(1, 4)
+     * @return statement name to SQL, in name order
+     */
+    static SortedMap<String, String> statements() {
+        SortedMap<String, String> statements = new TreeMap<>();
+        for (Field field : PostgresLogic.class.getDeclaredFields()) {
+            if (field.getName().startsWith("SQL_") && Modifier.isStatic(field.getModifiers())
+                    && field.getType() == String.class) {
+                try {
+                    statements.put(field.getName(), (String) field.get(null));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(field.getName() + " is not accessible", e);
+                }
+            }
+        }
+        for (int searchChoice = 0; ; searchChoice++) {
+            if (PostgresLogic.searchSQL(searchChoice, 0) == null) break;
+            for (int orderChoice = 0; ; orderChoice++) {
+                String sql = PostgresLogic.searchSQL(searchChoice, orderChoice);
+                if (sql == null) break;
+                statements.put("searchSQL(" + searchChoice + ", " + orderChoice + ")", sql);
+            }
+        }
+        return statements;
+    }
+
+    private List<String> explain(String sql) throws SQLException {
+        //generic plans take $n placeholders rather than JDBC's ?
+        StringBuilder numbered = new StringBuilder();
+        int param = 0;
+        for (char c : sql.toCharArray()) {
+            if (c == '?') numbered.append('$').append(++param);
+            else numbered.append(c);
+        }
+        ResultSet rs = conn.createStatement().executeQuery("EXPLAIN (GENERIC_PLAN) " + numbered);
+        List<String> plan = new ArrayList<>();
+        while (rs.next()) plan.add(rs.getString(1));
+        return plan;
+    }
+}
@@ -0,0 +1,197 @@
+/* Sends read-only analytic work (charts, profiles, recommendations and the indexes behind them) to
+ * a read replica and everything else to the primary, so heavy scans don't queue up behind, or
+ * slow down, listen inserts and playlist edits.
+ *
+ * Reads from the replica may be up to MAX_LAG_MS behind. The replica's replay lag is checked at
+ * most once per LAG_CHECK_MS, by comparing what it has replayed with the primary's current WAL
+ * position, so a replica cut off from the primary falls further behind rather than looking
+ * caught up. Analytic work goes to the primary whenever the replica is further behind than
+ * MAX_LAG_MS, can't be reached within LAG_TIMEOUT_SECONDS, or fails part way. Analytic work started inside
+ * work already running on the primary stays there, so it sees the caller's own writes.
+ *
+ * To try it with two local PostgreSQL instances, the second a streaming replica of the first:
+ *   -Ddotify.db.url=jdbc:postgresql://localhost:5432/dotify
+ *   -Ddotify.replica.url=jdbc:postgresql://localhost:5433/dotify
+ * and running RoutingDataSource prints the replica's lag and where analytic work would go.
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class RoutingDataSource implements AutoCloseable {
+    static final long MAX_LAG_MS = Long.getLong("dotify.replica.maxLagMs", 5_000);
+    private static final long LAG_CHECK_MS = Long.getLong("dotify.replica.lagCheckMs", 1_000);
+    private static final int LAG_TIMEOUT_SECONDS = 2;
+    static final String SQL_PRIMARY_WAL = "SELECT pg_current_wal_lsn()::text";
+    //0 once the replica has replayed up to where the primary was just now, otherwise the age of the
+    //last replayed transaction, or infinite if there's been none. A server that isn't in recovery,
+    //e.g. a logical replication subscriber, has no replay lag to report.
+    static final String SQL_REPLICA_LAG = "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 " +
+            "WHEN pg_last_wal_replay_lsn() >= ?::pg_lsn THEN 0 " +
+            "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 'Infinity') END";
+
+    private final ConnectionPool primary;
+    private final ConnectionPool replica;
+    private long lagCheckedAt = Long.MIN_VALUE;
+    private long lagMillis = Long.MAX_VALUE;
+    private boolean checkingLag;
+
+    /**
+     * Routes between a primary and a replica
+     * @param primary connections to the primary
+     * @param replica connections to the replica, or null to send everything to the primary
+     */
+    public RoutingDataSource(ConnectionPool primary, ConnectionPool replica) {
+        this.primary = primary;
+        this.replica = replica;
+    }
+
+    /**
+     * Routes between a primary pool and a replica pool of the same size, if a replica is
+     * configured and can be reached; otherwise everything goes to the primary
+     * @param primary connections to the primary
+     * @return the routing
+     */
+    public static RoutingDataSource withReplica(ConnectionPool primary) {
+        if (!DBConnEstablisher.replicaConfigured()) return new RoutingDataSource(primary, null);
+        try {
+            return new RoutingDataSource(primary, new ConnectionPool(primary.size(), DBConnEstablisher::newReplicaConnection));
+        } catch (SQLException e) {
+            System.err.println("Could not connect to the replica, reading from the primary: " + e.getMessage());
+            return new RoutingDataSource(primary, null);
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        if (!DBConnEstablisher.replicaConfigured()) {
+            System.out.println("No replica configured, set -Ddotify.replica.url");
+            return;
+        }
+        try (RoutingDataSource routing = new RoutingDataSource(ConnectionPool.of(DBConnEstablisher.getConnection()),
+                new ConnectionPool(1, DBConnEstablisher::newReplicaConnection))) {
+            long lag = routing.replicaLag();
+            System.out.println("Replica lag: " + (lag == Long.MAX_VALUE ? "unreachable" : lag + " ms") +
+                    ", allowed: " + MAX_LAG_MS + " ms");
+            System.out.println("Analytic work goes to the " + (routing.replicaUsable() ? "replica" : "primary"));
+        }
+        DBConnEstablisher.disconnect();
+    }
+
+    /**
+     * Runs work on the primary, for writes and reads that must see the latest writes
+     * @param work the work
+     * @return what the work returned
+     * @throws SQLException if database access goes wrong
+     */
+    public <T> T call(ConnectionPool.SQLFunction<T> work) throws SQLException {
+        return primary.call(work);
+    }
+
+    /**
+     * Runs read-only work on the replica if it's close enough to the primary, otherwise on the
+     * primary. The work may run twice if the replica fails part way through it.
+     * @param work the work, which must not write
+     * @return what the work returned
+     * @throws SQLException if database access goes wrong on the primary
+     */
+    public <T> T analytics(ConnectionPool.SQLFunction<T> work) throws SQLException {
+        if (primary.isHeld() || !replicaUsable()) return onPrimary(work);
+        try {
+            T result = replica.call(work);
+            MetricsRegistry.get().count("dotify_routed_queries_total", 1, "target", "replica");
+            return result;
+        } catch (SQLException e) {
+            //don't try the replica again until the next lag check says it's back
+            markUnusable();
+            MetricsRegistry.get().count("dotify_replica_fallbacks_total", 1);
+            return onPrimary(work);
+        }
+    }
+
+    /**
+     * Runs work once on every primary connection, e.g. to prepare statements on them
+     * @param work the work
+     * @throws SQLException if a connection doesn't come free in time or the work fails
+     */
+    public void onEach(ConnectionPool.SQLFunction<?> work) throws SQLException {
+        primary.onEach(work);
+    }
+
+    /**
+     * @return if the current thread is running work on one of this source's connections
+     */
+    public boolean isHeld() {
+        return primary.isHeld() || (replica != null && replica.isHeld());
+    }
+
+    /**
+     * @return if analytic work would go to the replica right now
+     */
+    public boolean replicaUsable() {
+        return replica != null && replicaLag() <= MAX_LAG_MS;
+    }
+
+    /**
+     * @return the replica's replay lag in milliseconds, at most LAG_CHECK_MS old, or
+     * Long.MAX_VALUE if there's no replica or it can't be reached. Callers arriving while a
+     * check is running get the previous result rather than waiting for it.
+     */
+    public long replicaLag() {
+        if (replica == null) return Long.MAX_VALUE;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (checkingLag || now - lagCheckedAt < LAG_CHECK_MS) return lagMillis;
+            lagCheckedAt = now;
+            checkingLag = true;
+        }
+        long lag = Long.MAX_VALUE;
+        try {
+            String primaryWal = primary.call(conn -> {
+                Statement st = conn.createStatement();
+                st.setQueryTimeout(LAG_TIMEOUT_SECONDS);
+                ResultSet rs = st.executeQuery(SQL_PRIMARY_WAL);
+                rs.next();
+                return rs.getString(1);
+            });
+            lag = replica.call(conn -> {
+                PreparedStatement ps = conn.prepareStatement(SQL_REPLICA_LAG);
+                ps.setQueryTimeout(LAG_TIMEOUT_SECONDS);
+                ps.setString(1, primaryWal);
+                ResultSet rs = ps.executeQuery();
+                rs.next();
+                return (long) rs.getDouble(1);
+            });
+        } catch (SQLException e) {
+            //unreachable, or too slow to answer
+        } finally {
+            synchronized (this) {
+                lagMillis = lag;
+                checkingLag = false;
+            }
+        }
+        MetricsRegistry.get().time("dotify_replica_lag_seconds", lag == Long.MAX_VALUE ? 0 : lag * 1_000_000);
+        return lag;
+    }
+
+    private synchronized void markUnusable() {
+        lagMillis = Long.MAX_VALUE;
+        lagCheckedAt = System.currentTimeMillis();
+    }
+
+    private <T> T onPrimary(ConnectionPool.SQLFunction<T> work) throws SQLException {
+        T result = primary.call(work);
+        MetricsRegistry.get().count("dotify_routed_queries_total", 1, "target", "primary");
+        return result;
+    }
+
+    /**
+     * Closes both pools
+     */
+    @Override
+    public void close() {
+        primary.close();
+        if (replica != null) replica.close();
+    }
+}
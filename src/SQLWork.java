@@ -0,0 +1,9 @@
+/* Work that touches the database and returns nothing: a transaction's body, a migration step, a
+ * menu action or a load test operation.
+ */
+
+import java.sql.SQLException;
+
+public interface SQLWork {
+    void run() throws SQLException;
+}
@@ -0,0 +1,215 @@
+/* Versioned schema for Dotify. Each migration runs once and is recorded in schema_version, so a
+ * fresh database gets every table and index and an existing one only gets what it's missing.
+ * Migrations are written to be rerunnable, so one interrupted before its version was recorded
+ * can simply be run again.
+ *
+ * Run directly to bring a database up to date:
+ *   SchemaMigrator [status]
+ */
+
+import java.sql.*;
+import java.util.List;
+
+public class SchemaMigrator {
+    private final Connection conn;
+
+    /**
+     * A single schema change and the version it brings the database to
+     */
+    private record Migration(int version, String description, SQLWork work) {}
+
+    private final List<Migration> migrations;
+
+    public SchemaMigrator(Connection conn) {
+        this.conn = conn;
+        this.migrations = List.of(
+                new Migration(1, "Base tables", this::createBaseTables),
+                new Migration(2, "Integer artist keys", () -> ArtistKeyMigration.migrate(conn)),
+                new Migration(3, "Playlist stats", () -> {
+                    PlaylistStats stats = new PlaylistStats(conn);
+                    stats.ensureTable();
+                    stats.verifyAndRepair();    //playlists that already exist get their stats now
+                }),
+                new Migration(4, "Monthly listen partitions and daily rollups", () -> {
+                    ListenHistory history = new ListenHistory(conn);
+                    history.ensureSchema();
+                    history.migrate();
+                }),
+                new Migration(5, "Query indexes", this::createIndexes),
+                //a follow is stored on the follower's shard, which needn't have the followed user
+                new Migration(6, "Follows across shards", () -> conn.createStatement().execute(
+                        "ALTER TABLE following DROP CONSTRAINT IF EXISTS following_followed_un_fkey")),
+                new Migration(7, "Catalog version", () -> CatalogSnapshot.ensureVersionTable(conn)));
+    }
+
+    public static void main(String[] args) throws SQLException {
+        SchemaMigrator migrator = new SchemaMigrator(DBConnEstablisher.getConnection());
+        System.out.println("Connected to database");
+
+        if (args.length > 0 && args[0].equals("status")) {
+            System.out.println("Schema version " + migrator.currentVersion() + " of " + migrator.latestVersion());
+        } else {
+            int applied = migrator.migrate();
+            System.out.println("Applied " + applied + " migrations, schema is at version " + migrator.currentVersion());
+        }
+
+        DBConnEstablisher.disconnect();   //end connection cleanly
+        System.out.println("Disconnecting from database");
+    }
+
+    /**
+     * Runs every migration newer than the database's current version, in order
+     * @return the number of migrations applied
+     * @throws SQLException if database access goes wrong
+     */
+    public int migrate() throws SQLException {
+        conn.createStatement().execute("""
+                CREATE TABLE IF NOT EXISTS schema_version (
+                    version INT PRIMARY KEY,
+                    description VARCHAR NOT NULL,
+                    applied_at TIMESTAMP NOT NULL DEFAULT NOW())""");
+        int current = currentVersion();
+        int applied = 0;
+        for (Migration migration : migrations) {
+            if (migration.version() <= current) continue;
+            System.out.println("Migrating to version " + migration.version() + ": " + migration.description());
+            migration.work().run();
+            PreparedStatement ps = conn.prepareStatement("INSERT INTO schema_version(version, description) VALUES(?, ?)");
+            ps.setInt(1, migration.version());
+            ps.setString(2, migration.description());
+            ps.executeUpdate();
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * @return the newest migration recorded in the database, or 0 if none have run
+     * @throws SQLException if database access goes wrong
+     */
+    public int currentVersion() throws SQLException {
+        ResultSet rs = conn.getMetaData().getTables(null, null, "schema_version", null);
+        if (!rs.next()) return 0;
+        rs = conn.createStatement().executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version");
+        rs.next();
+        return rs.getInt(1);
+    }
+
+    /**
+     * @return the version the database will be at once every migration has run
+     */
+    public int latestVersion() {
+        return migrations.get(migrations.size() - 1).version();
+    }
+
+    private void createBaseTables() throws SQLException {
+        Statement st = conn.createStatement();
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS user_t (
+                    username VARCHAR PRIMARY KEY,
+                    password VARCHAR NOT NULL,
+                    first_name VARCHAR,
+                    last_name VARCHAR,
+                    email VARCHAR NOT NULL UNIQUE,
+                    creation_date DATE NOT NULL,
+                    last_access_date DATE NOT NULL)""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS genre (
+                    genre_id INT PRIMARY KEY,
+                    genre_name VARCHAR NOT NULL)""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS artist (
+                    artist_name VARCHAR PRIMARY KEY,
+                    artist_id INT NOT NULL CONSTRAINT artist_id_key UNIQUE)""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS album (
+                    album_id INT PRIMARY KEY,
+                    release_date DATE,
+                    name VARCHAR NOT NULL)""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS song (
+                    song_id INT PRIMARY KEY,
+                    title VARCHAR NOT NULL,
+                    length INT NOT NULL,
+                    release_date DATE,
+                    genre_id INT REFERENCES genre (genre_id),
+                    num_listens INT NOT NULL DEFAULT 0)""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS song_by_artist (
+                    song_id INT REFERENCES song (song_id),
+                    artist_id INT REFERENCES artist (artist_id),
+                    PRIMARY KEY (song_id, artist_id))""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS song_on_album (
+                    song_id INT REFERENCES song (song_id),
+                    album_id INT REFERENCES album (album_id),
+                    track_number INT,
+                    PRIMARY KEY (song_id, album_id))""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS album_by_artist (
+                    album_id INT REFERENCES album (album_id),
+                    artist_id INT REFERENCES artist (artist_id),
+                    PRIMARY KEY (album_id, artist_id))""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS album_genres (
+                    album_id INT REFERENCES album (album_id),
+                    genre_id INT REFERENCES genre (genre_id),
+                    PRIMARY KEY (album_id, genre_id))""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS playlist (
+                    playlist_name VARCHAR,
+                    username VARCHAR REFERENCES user_t (username),
+                    PRIMARY KEY (username, playlist_name))""");
+        //no key to playlist, renames update both tables one after the other
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS song_on_playlist (
+                    song_id INT REFERENCES song (song_id),
+                    playlist_name VARCHAR,
+                    username VARCHAR,
+                    PRIMARY KEY (username, playlist_name, song_id))""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS following (
+                    follower_un VARCHAR REFERENCES user_t (username),
+                    followed_un VARCHAR REFERENCES user_t (username),
+                    PRIMARY KEY (follower_un, followed_un))""");
+        st.execute("""
+                CREATE TABLE IF NOT EXISTS user_listens_song (
+                    username VARCHAR NOT NULL,
+                    song_id INT NOT NULL,
+                    date_listened TIMESTAMP NOT NULL)""");
+    }
+
+    private void createIndexes() throws SQLException {
+        //recent listens per user (profile, recommendations) and site wide recent listens (charts)
+        ensureIndex("user_listens_song", "username, date_listened");
+        ensureIndex("user_listens_song", "date_listened, song_id");
+        //join paths from a song to its artist, album and genre, and back from an artist or album
+        ensureIndex("song_by_artist", "song_id");
+        ensureIndex("song_by_artist", "artist_id");
+        ensureIndex("album_by_artist", "artist_id");
+        ensureIndex("song_on_album", "song_id");
+        ensureIndex("song_on_album", "album_id");
+        ensureIndex("song", "genre_id");
+        //playlist contents, follower lists and login by email
+        ensureIndex("song_on_playlist", "username, playlist_name");
+        ensureIndex("following", "followed_un");
+        ensureIndex("user_t", "email");
+    }
+
+    /**
+     * Creates a btree index unless the table already has one, including a primary key, that
+     * starts with the same columns
+     * @param table the table to index
+     * @param columns comma separated columns in index order
+     * @throws SQLException if database access goes wrong
+     */
+    private void ensureIndex(String table, String columns) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM pg_indexes WHERE tablename = ? AND " +
+                "(indexdef LIKE ? OR indexdef LIKE ?)");
+        ps.setString(1, table);
+        ps.setString(2, "%USING btree (" + columns + ")");
+        ps.setString(3, "%USING btree (" + columns + ",%");
+        if (ps.executeQuery().next()) return;
+        conn.createStatement().execute("CREATE INDEX ON " + table + " (" + columns + ")");
+    }
+}
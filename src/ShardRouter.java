@@ -0,0 +1,432 @@
+/* Splits user data across several databases by a hash of the username, so listen volume isn't
+ * capped by what one PostgreSQL instance can write. Everything a user owns lives on their shard:
+ * their user_t row, playlists and playlist songs, the follows they made and their listens. The
+ * catalog (songs, albums, artists and genres) is a full copy on every shard, except that each
+ * shard's song.num_listens counts only its own users' listens, so a song's real count is the sum
+ * over every shard. DataParser loads the catalog into shard 0 and copies it to the others, and
+ * sync-catalog copies whatever another shard is missing.
+ *
+ * Shard 0 is the usual database and -Ddotify.shards lists the others' JDBC URLs in order. A
+ * user's shard depends on how many shards there are, so after adding one, run migrate and
+ * sync-catalog to set it up, then rebalance to move users to their new shard before starting
+ * Dotify.
+ *
+ *   ShardRouter [status | migrate | sync-catalog | rebalance]
+ */
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+public class ShardRouter implements AutoCloseable {
+    //user owned tables, parents before children, and the column naming the owner
+    private static final String[][] USER_TABLES = {
+            {"user_t", "username"}, {"playlist", "username"}, {"playlist_stats", "username"},
+            {"song_on_playlist", "username"}, {"following", "follower_un"},
+            {"user_listens_song", "username"}, {"user_listens_daily", "username"}
+    };
+    //catalog tables, parents before children
+    private static final String[] CATALOG_TABLES = {"genre", "artist", "album", "song", "song_by_artist",
+            "song_on_album", "album_by_artist", "album_genres"};
+
+    private final List<RoutingDataSource> shards;
+    private final ExecutorService scatterThreads = Executors.newCachedThreadPool(work -> {
+        Thread thread = new Thread(work, "shard-scatter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Work that needs a connection to every shard at once
+     */
+    public interface ShardFunction<T> {
+        T apply(List<Connection> conns) throws SQLException;
+    }
+
+    /**
+     * Routes between shards
+     * @param shards the shards, in order
+     */
+    public ShardRouter(List<RoutingDataSource> shards) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("There must be at least one shard");
+        this.shards = List.copyOf(shards);
+    }
+
+    /**
+     * Uses a pool to the usual database as shard 0, with its replica if one is configured, and
+     * opens pools of the same size to every other shard in -Ddotify.shards
+     * @param primary connections to the usual database
+     * @return the router
+     * @throws SQLException if another shard can't be reached
+     */
+    public static ShardRouter open(ConnectionPool primary) throws SQLException {
+        List<RoutingDataSource> shards = new ArrayList<>();
+        shards.add(RoutingDataSource.withReplica(primary));
+        try {
+            for (String url : DBConnEstablisher.shardUrls()) {
+                shards.add(new RoutingDataSource(new ConnectionPool(primary.size(),
+                        () -> DBConnEstablisher.newShardConnection(url)), null));
+            }
+        } catch (SQLException e) {
+            for (int i = 1; i < shards.size(); i++) shards.get(i).close();
+            throw e;
+        }
+        return new ShardRouter(shards);
+    }
+
+    public static void main(String[] args) throws SQLException {
+        String command = args.length > 0 ? args[0] : "status";
+        try (ShardRouter router = open(ConnectionPool.of(DBConnEstablisher.getConnection()))) {
+            System.out.println("Connected to " + router.size() + " shards");
+            switch (command) {
+                case "status" -> {
+                    for (int shard = 0; shard < router.size(); shard++) {
+                        int[] counts = router.countUsers(shard);
+                        System.out.println("Shard " + shard + ": " + counts[0] + " users, " + counts[1] +
+                                " on the wrong shard");
+                    }
+                }
+                case "migrate" -> {
+                    List<Integer> applied = router.scatter(false, conn -> new SchemaMigrator(conn).migrate());
+                    System.out.println("Applied " + applied + " migrations per shard");
+                }
+                case "sync-catalog" -> System.out.println("Added " + router.syncCatalog() +
+                        " catalog rows to each shard after the first");
+                case "rebalance" -> System.out.println("Moved " + router.rebalance() + " users");
+                default -> System.out.println("Usage: ShardRouter [status | migrate | sync-catalog | rebalance]");
+            }
+        }
+        DBConnEstablisher.disconnect();
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * @param username a user
+     * @param shards the number of shards
+     * @return the index of the shard that user's data lives on
+     */
+    public static int shardOf(String username, int shards) {
+        //String.hashCode is fixed by the language spec, so this never changes between releases
+        return Math.floorMod(username.hashCode(), shards);
+    }
+
+    /**
+     * @param username a user
+     * @return the shard that user's data lives on
+     */
+    public RoutingDataSource forUser(String username) {
+        return shards.get(shardOf(username, shards.size()));
+    }
+
+    /**
+     * @return a shard to read the catalog from, which every shard has a copy of
+     */
+    public RoutingDataSource catalog() {
+        return shards.get(0);
+    }
+
+    /**
+     * Runs work once on every primary connection of every shard, e.g. to prepare statements
+     * @param work the work
+     * @throws SQLException if a connection doesn't come free in time or the work fails
+     */
+    public void onEach(ConnectionPool.SQLFunction<?> work) throws SQLException {
+        for (RoutingDataSource shard : shards) shard.onEach(work);
+    }
+
+    /**
+     * Runs work on every shard in parallel. Shards the calling thread already holds a
+     * connection to run on that thread, on that connection.
+     * @param analytic if the work may read from a replica, see RoutingDataSource.analytics
+     * @param work the work
+     * @return what the work returned on each shard, in shard order
+     * @throws SQLException if the work fails on any shard
+     */
+    public <T> List<T> scatter(boolean analytic, ConnectionPool.SQLFunction<T> work) throws SQLException {
+        if (shards.size() == 1) return Collections.singletonList(run(shards.get(0), analytic, work));
+        long start = System.nanoTime();
+        List<CompletableFuture<T>> parts = new ArrayList<>(shards.size());
+        Long deadline = QueryDeadline.current();
+        for (RoutingDataSource shard : shards) {
+            //a held connection can only be used from this thread, so that shard runs here alongside the rest
+            parts.add(shard.isHeld() ? null : CompletableFuture.supplyAsync(() -> {
+                try {
+                    return QueryDeadline.at(deadline, () -> run(shard, analytic, work));
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, scatterThreads));
+        }
+        List<T> results = new ArrayList<>(parts.size());
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                results.add(parts.get(i) == null ? run(shards.get(i), analytic, work) : parts.get(i).join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException sql) throw sql;
+            throw e;
+        }
+        MetricsRegistry.get().time("dotify_scatter_seconds", System.nanoTime() - start);
+        return results;
+    }
+
+    private static <T> T run(RoutingDataSource shard, boolean analytic, ConnectionPool.SQLFunction<T> work)
+            throws SQLException {
+        return analytic ? shard.analytics(work) : shard.call(work);
+    }
+
+    /**
+     * Runs work holding one connection to every shard, always borrowed in shard order so two
+     * callers can't each hold a connection the other is waiting for
+     * @param analytic if the work may read from replicas, see RoutingDataSource.analytics
+     * @param work the work, given the connections in shard order
+     * @return what the work returned
+     * @throws SQLException if database access goes wrong
+     */
+    public <T> T onAll(boolean analytic, ShardFunction<T> work) throws SQLException {
+        return onAll(analytic, work, new ArrayList<>());
+    }
+
+    private <T> T onAll(boolean analytic, ShardFunction<T> work, List<Connection> held) throws SQLException {
+        if (held.size() == shards.size()) return work.apply(List.copyOf(held));
+        return run(shards.get(held.size()), analytic, conn -> {
+            held.add(conn);
+            try {
+                return onAll(analytic, work, held);
+            } finally {
+                held.remove(held.size() - 1);
+            }
+        });
+    }
+
+    /**
+     * Runs work in a transaction on every shard. Operations called from inside it run on the
+     * connections held for it, so they commit or roll back together. There's no two phase
+     * commit: the shards commit one after another, so a shard failing to commit after another
+     * has can leave the work applied on some shards only.
+     * @param work the work
+     * @throws SQLException if database access goes wrong, after rolling back what it can
+     */
+    public void inTransaction(SQLWork work) throws SQLException {
+        onAll(false, conns -> {
+            nest(conns, 0, work);
+            return null;
+        });
+    }
+
+    private static void nest(List<Connection> conns, int shard, SQLWork work) throws SQLException {
+        if (shard == conns.size()) {
+            work.run();
+            return;
+        }
+        new PlaylistEditor(conns.get(shard)).inTransaction(() -> nest(conns, shard + 1, work));
+    }
+
+    /**
+     * Splits items into the shards of the users they belong to
+     * @param items the items
+     * @param owner the user each item belongs to
+     * @return the indexes of the items on each shard, in their original order, leaving out
+     * shards with none
+     */
+    public <T> Map<Integer, List<Integer>> partition(List<T> items, Function<T, String> owner) {
+        Map<Integer, List<Integer>> byShard = new TreeMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            byShard.computeIfAbsent(shardOf(owner.apply(items.get(i)), shards.size()), s -> new ArrayList<>()).add(i);
+        }
+        return byShard;
+    }
+
+    /**
+     * @param shard a shard's index, e.g. from partition
+     * @return the shard
+     */
+    public RoutingDataSource shard(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * Picks the k largest totals with a bounded heap, merging the partial totals each shard
+     * returned for the same key first
+     * @param partials each shard's totals
+     * @param k how many to keep
+     * @return up to k keys and their totals, largest first
+     */
+    public static <K> List<Map.Entry<K, Long>> topK(List<Map<K, Long>> partials, int k) {
+        Map<K, Long> totals = new HashMap<>();
+        for (Map<K, Long> partial : partials) partial.forEach((key, n) -> totals.merge(key, n, Long::sum));
+
+        PriorityQueue<Map.Entry<K, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<K, Long> total : totals.entrySet()) {
+            if (top.size() < k) {
+                top.add(total);
+            } else if (total.getValue() > top.peek().getValue()) {
+                top.poll();
+                top.add(total);
+            }
+        }
+        List<Map.Entry<K, Long>> sorted = new ArrayList<>(top);
+        sorted.sort(Map.Entry.<K, Long>comparingByValue().reversed());
+        return sorted;
+    }
+
+    //region Maintenance
+
+    private int[] countUsers(int shard) throws SQLException {
+        List<String> users = usersOn(shard);
+        int misplaced = 0;
+        for (String username : users) {
+            if (shardOf(username, shards.size()) != shard) misplaced++;
+        }
+        return new int[]{users.size(), misplaced};
+    }
+
+    private List<String> usersOn(int shard) throws SQLException {
+        return shards.get(shard).call(conn -> {
+            ResultSet rs = conn.createStatement().executeQuery("SELECT username FROM user_t");
+            List<String> users = new ArrayList<>();
+            while (rs.next()) users.add(rs.getString(1));
+            return users;
+        });
+    }
+
+    /**
+     * Copies the catalog rows shard 0 has and another shard is missing to that shard, each shard
+     * in one transaction. A song new to a shard starts with no listens there, and songs it already
+     * had keep their count, since each shard counts only its own users' listens.
+     * @return the number of rows added to each shard after the first
+     * @throws SQLException if database access goes wrong
+     */
+    public List<Integer> syncCatalog() throws SQLException {
+        List<Integer> added = new ArrayList<>();
+        for (int shard = 1; shard < shards.size(); shard++) {
+            added.add(shards.get(shard).call(target -> catalog().call(source -> {
+                int[] rows = new int[1];
+                new PlaylistEditor(target).inTransaction(() -> {
+                    for (String table : CATALOG_TABLES) rows[0] += copyMissing(source, target, table);
+                });
+                return rows[0];
+            })));
+        }
+        return added;
+    }
+
+    private static int copyMissing(Connection source, Connection target, String table) throws SQLException {
+        ResultSet rs = source.createStatement().executeQuery("SELECT * FROM " + table);
+        List<String> columns = columnNames(rs);
+        PreparedStatement insert = namedInsert(target, table, columns, " ON CONFLICT DO NOTHING");
+        while (rs.next()) {
+            for (int i = 1; i <= columns.size(); i++) {
+                insert.setObject(i, columns.get(i - 1).equals("num_listens") ? 0 : rs.getObject(i));
+            }
+            insert.addBatch();
+        }
+        int added = 0;
+        for (int n : insert.executeBatch()) added += Math.max(n, 0);
+        return added;
+    }
+
+    /**
+     * Moves every user stored on the wrong shard, along with everything they own, to the shard
+     * their username hashes to. Each user is copied in one transaction and only deleted from the
+     * old shard once the copy has committed. A copy left behind by an interrupted run is replaced
+     * when the user is moved again, so the run can simply be repeated.
+     * @return the number of users moved
+     * @throws SQLException if database access goes wrong
+     */
+    public int rebalance() throws SQLException {
+        int moved = 0;
+        for (int from = 0; from < shards.size(); from++) {
+            for (String username : usersOn(from)) {
+                if (shardOf(username, shards.size()) == from) continue;
+                move(username, shards.get(from));
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private void move(String username, RoutingDataSource from) throws SQLException {
+        forUser(username).call(target -> from.call(source -> {
+            new PlaylistEditor(target).inTransaction(() -> {
+                deleteUser(target, username);
+                for (String[] table : USER_TABLES) copyRows(source, target, table[0], table[1], username);
+                adjustListenCounts(target, source, username, 1);
+            });
+            new PlaylistEditor(source).inTransaction(() -> deleteUser(source, username));
+            return null;
+        }));
+    }
+
+    private static void deleteUser(Connection conn, String username) throws SQLException {
+        adjustListenCounts(conn, conn, username, -1);
+        for (int i = USER_TABLES.length - 1; i >= 0; i--) {
+            PreparedStatement ps = conn.prepareStatement("DELETE FROM " + USER_TABLES[i][0] + " WHERE " +
+                    USER_TABLES[i][1] + " = ?");
+            ps.setString(1, username);
+            ps.executeUpdate();
+        }
+    }
+
+    private static void copyRows(Connection source, Connection target, String table, String owner, String username)
+            throws SQLException {
+        PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + " WHERE " + owner + " = ?");
+        select.setString(1, username);
+        ResultSet rs = select.executeQuery();
+        List<String> columns = columnNames(rs);
+        PreparedStatement insert = namedInsert(target, table, columns, "");
+        while (rs.next()) {
+            for (int i = 1; i <= columns.size(); i++) insert.setObject(i, rs.getObject(i));
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    private static List<String> columnNames(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        List<String> columns = new ArrayList<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) columns.add(meta.getColumnName(i));
+        return columns;
+    }
+
+    //named, since a shard created by migrate may order its columns differently from the source
+    private static PreparedStatement namedInsert(Connection target, String table, List<String> columns, String suffix)
+            throws SQLException {
+        return target.prepareStatement("INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES (" +
+                String.join(", ", Collections.nCopies(columns.size(), "?")) + ")" + suffix);
+    }
+
+    //moves a user's share of song.num_listens along with their listens
+    private static void adjustListenCounts(Connection counts, Connection listens, String username, int sign)
+            throws SQLException {
+        PreparedStatement ps = listens.prepareStatement("SELECT song_id, SUM(listens) FROM listen_counts " +
+                "WHERE username = ? GROUP BY song_id");
+        ps.setString(1, username);
+        ResultSet rs = ps.executeQuery();
+        PreparedStatement update = counts.prepareStatement(PostgresLogic.SQL_ADD_LISTENS);
+        while (rs.next()) {
+            update.setLong(1, sign * rs.getLong(2));
+            update.setInt(2, rs.getInt(1));
+            update.addBatch();
+        }
+        update.executeBatch();
+    }
+
+    //endregion
+
+    /**
+     * Closes every shard's pools
+     */
+    @Override
+    public void close() {
+        scatterThreads.shutdown();
+        for (RoutingDataSource shard : shards) shard.close();
+    }
+}
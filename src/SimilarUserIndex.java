@@ -0,0 +1,156 @@
+/* In-memory MinHash/LSH index over the set of songs each user has listened to.
+ * Used to find the users whose listening history overlaps the most with a given user
+ * without sorting the listen history on every request.
+ */
+
+import java.sql.*;
+import java.util.*;
+
+public class SimilarUserIndex {
+    private static final int NUM_HASHES = 64;
+    private static final int ROWS_PER_BAND = 4;
+    private static final int NUM_BANDS = NUM_HASHES / ROWS_PER_BAND;
+    private static final long PRIME = (1L << 31) - 1;  //Mersenne prime for the universal hash family
+    private static final int MAX_CANDIDATES = 500;     //caps exact comparisons for very popular buckets
+
+    private final long[] hashA = new long[NUM_HASHES];
+    private final long[] hashB = new long[NUM_HASHES];
+
+    private final Map<String, Set<Integer>> songsByUser = new HashMap<>();
+    private final Map<String, int[]> signatures = new HashMap<>();
+    private final List<Map<Long, Set<String>>> bands = new ArrayList<>(NUM_BANDS);
+
+    /**
+     * A user found to be similar along with the Jaccard similarity of their listened song sets
+     */
+    public record Match(String username, double similarity) {}
+
+    public SimilarUserIndex() {
+        Random random = new Random(320);  //fixed seed so signatures are stable between runs
+        for (int i = 0; i < NUM_HASHES; i++) {
+            hashA[i] = 1 + random.nextInt((int) (PRIME - 1));
+            hashB[i] = random.nextInt((int) PRIME);
+        }
+        for (int i = 0; i < NUM_BANDS; i++) bands.add(new HashMap<>());
+    }
+
+    /**
+     * Builds an index from every listen currently stored in the database
+     * @param shards a connection to each shard, see ShardRouter
+     * @return the populated index
+     * @throws SQLException if database access goes wrong
+     */
+    public static SimilarUserIndex load(List<Connection> shards) throws SQLException {
+        SimilarUserIndex index = new SimilarUserIndex();
+        for (Connection conn : shards) {
+            ResultSet rs = conn.prepareStatement("SELECT DISTINCT username, song_id FROM listen_counts").executeQuery();
+            while (rs.next()) {
+                index.songsByUser.computeIfAbsent(rs.getString(1), u -> new HashSet<>()).add(rs.getInt(2));
+            }
+        }
+        for (Map.Entry<String, Set<Integer>> entry : index.songsByUser.entrySet()) {
+            int[] signature = new int[NUM_HASHES];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            for (int songID : entry.getValue()) index.mergeIntoSignature(signature, songID);
+            index.signatures.put(entry.getKey(), signature);
+            for (int band = 0; band < NUM_BANDS; band++) index.addToBucket(band, signature, entry.getKey());
+        }
+        return index;
+    }
+
+    /**
+     * Adds a listen to the index, re-bucketing the user only for bands whose signature changed
+     * @param user the listening user
+     * @param songID the song listened to
+     */
+    public synchronized void recordListen(String user, int songID) {
+        Set<Integer> songs = songsByUser.computeIfAbsent(user, u -> new HashSet<>());
+        if (!songs.add(songID)) return;  //already part of the set, signature can't change
+
+        int[] signature = signatures.get(user);
+        boolean isNew = signature == null;
+        if (isNew) {
+            signature = new int[NUM_HASHES];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            signatures.put(user, signature);
+        }
+        int[] before = signature.clone();
+        mergeIntoSignature(signature, songID);
+
+        for (int band = 0; band < NUM_BANDS; band++) {
+            if (isNew) {
+                addToBucket(band, signature, user);
+            } else if (!Arrays.equals(before, band * ROWS_PER_BAND, (band + 1) * ROWS_PER_BAND,
+                    signature, band * ROWS_PER_BAND, (band + 1) * ROWS_PER_BAND)) {
+                Set<String> old = bands.get(band).get(bandKey(before, band));
+                if (old != null) {
+                    old.remove(user);
+                    if (old.isEmpty()) bands.get(band).remove(bandKey(before, band));
+                }
+                addToBucket(band, signature, user);
+            }
+        }
+    }
+
+    /**
+     * Finds the users most similar to a given user by Jaccard similarity of listened songs
+     * @param user the user to compare against
+     * @param k the maximum number of matches to return
+     * @return up to k matches, most similar first
+     */
+    public synchronized List<Match> topSimilar(String user, int k) {
+        int[] signature = signatures.get(user);
+        if (signature == null) return List.of();
+
+        //users sharing more bands are more likely to be similar, so check them first
+        Map<String, Integer> collisions = new HashMap<>();
+        for (int band = 0; band < NUM_BANDS; band++) {
+            Set<String> bucket = bands.get(band).get(bandKey(signature, band));
+            if (bucket == null) continue;
+            for (String other : bucket) {
+                if (!other.equals(user)) collisions.merge(other, 1, Integer::sum);
+            }
+        }
+
+        List<String> candidates = new ArrayList<>(collisions.keySet());
+        if (candidates.size() > MAX_CANDIDATES) {
+            candidates.sort((a, b) -> collisions.get(b) - collisions.get(a));
+            candidates = candidates.subList(0, MAX_CANDIDATES);
+        }
+
+        Set<Integer> songs = songsByUser.get(user);
+        List<Match> matches = new ArrayList<>(candidates.size());
+        for (String other : candidates) {
+            matches.add(new Match(other, jaccard(songs, songsByUser.get(other))));
+        }
+        matches.sort((a, b) -> Double.compare(b.similarity(), a.similarity()));
+        return matches.size() > k ? new ArrayList<>(matches.subList(0, k)) : matches;
+    }
+
+    private void mergeIntoSignature(int[] signature, int songID) {
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int h = (int) ((hashA[i] * songID + hashB[i]) % PRIME);
+            if (h < signature[i]) signature[i] = h;
+        }
+    }
+
+    private void addToBucket(int band, int[] signature, String user) {
+        bands.get(band).computeIfAbsent(bandKey(signature, band), key -> new HashSet<>()).add(user);
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long key = 1125899906842597L;
+        for (int i = band * ROWS_PER_BAND; i < (band + 1) * ROWS_PER_BAND; i++) {
+            key = 31 * key + signature[i];
+        }
+        return key;
+    }
+
+    private static double jaccard(Set<Integer> a, Set<Integer> b) {
+        Set<Integer> small = a.size() <= b.size() ? a : b;
+        Set<Integer> large = small == a ? b : a;
+        int shared = 0;
+        for (int songID : small) if (large.contains(songID)) shared++;
+        return (double) shared / (a.size() + b.size() - shared);
+    }
+}
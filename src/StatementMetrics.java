@@ -0,0 +1,373 @@
+/* Instrumentation for every statement run on a DBConnEstablisher connection. Connections are
+ * wrapped in proxies that time each execution and group it by SQL fingerprint, counting calls,
+ * errors and rows and recording latency in a lock-free log-linear histogram. Each statement is
+ * attributed to the PostgresLogic method, or failing that the first application method, that
+ * prepared it. Executions slower than -Ddotify.slowQueryMs (default 200) are appended to the
+ * slow query log with their bind values, plus an EXPLAIN ANALYZE of read-only statements when
+ * -Ddotify.explainSlowQueries=true. Statements on user_t or a password column log only the type and
+ * length of each bind, so credentials never reach the file.
+ *
+ * Latency covers the execute call only; rows fetched after it returns are counted but not timed.
+ * Executions also enforce the calling thread's QueryDeadline, if it has one.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+public class StatementMetrics {
+    private static final long SLOW_NANOS = Long.getLong("dotify.slowQueryMs", 200) * 1_000_000;
+    private static final boolean EXPLAIN_SLOW = Boolean.getBoolean("dotify.explainSlowQueries");
+    private static final Path SLOW_LOG = Paths.get(System.getProperty("dotify.slowQueryLog", "slow_queries.log"));
+    //held only to append, so building one entry and its explain doesn't hold up other slow statements
+    private static final Object SLOW_LOG_LOCK = new Object();
+    private static final int MAX_CACHED_SQL = 10_000;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+    private static final Pattern POSITIONAL = Pattern.compile("\\$\\d+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern SENSITIVE = Pattern.compile("(?i)\\b(user_t|password)\\b");
+    private static final Set<String> INFRASTRUCTURE = Set.of("StatementMetrics", "DBConnEstablisher");
+
+    private static final StackWalker WALKER = StackWalker.getInstance();
+    private static final Map<String, QueryStats> byFingerprint = new ConcurrentHashMap<>();
+    private static final Map<String, QueryStats> bySql = new ConcurrentHashMap<>();
+
+    /**
+     * Everything recorded for one SQL fingerprint
+     */
+    public static final class QueryStats {
+        private final String fingerprint;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final Histogram latency = new Histogram();
+        private final Map<String, LongAdder> callers = new ConcurrentHashMap<>();
+
+        private QueryStats(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public String fingerprint() { return fingerprint; }
+        public long calls() { return calls.sum(); }
+        public long errors() { return errors.sum(); }
+        public long rows() { return rows.sum(); }
+        public Histogram latency() { return latency; }
+
+        /**
+         * @return the number of executions made from each calling method
+         */
+        public Map<String, Long> callers() {
+            Map<String, Long> counts = new TreeMap<>();
+            callers.forEach((caller, n) -> counts.put(caller, n.sum()));
+            return counts;
+        }
+
+        private void record(long nanos, String caller) {
+            calls.increment();
+            latency.record(nanos);
+            callers.computeIfAbsent(caller, c -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in nanoseconds. Each power of two is split into 8 buckets, so
+     * any recorded value is reported within 12.5% of its true value. Recording is a single atomic
+     * increment with no locking.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(index(Math.max(nanos, 0)));
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+            return count;
+        }
+
+        public long totalNanos() { return totalNanos.sum(); }
+        public long maxNanos() { return maxNanos.get(); }
+
+        /**
+         * @param percentile the percentile to read, from 0 to 100
+         * @return the upper bound of the bucket holding that percentile, or 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            long count = count();
+            if (count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target) return Math.min(lowerBound(i + 1) - 1, maxNanos());
+            }
+            return maxNanos();
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+        }
+
+        private static long lowerBound(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = (index >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+
+    /**
+     * Wraps a connection so every statement prepared or created on it is instrumented. Calls the
+     * wrapper doesn't need, including unwrap, go straight to the real connection.
+     * @param conn the real connection
+     * @return the instrumented connection
+     */
+    public static Connection wrap(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(StatementMetrics.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    Object result = invoke(conn, method, args);
+                    if (result instanceof PreparedStatement ps && method.getName().equals("prepareStatement")) {
+                        return wrapPrepared(conn, ps, (String) args[0], caller());
+                    }
+                    if (result instanceof Statement st && method.getName().equals("createStatement")) {
+                        return wrapStatement(conn, st, caller());
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * @return the statistics of every fingerprint seen so far, most total time first
+     */
+    public static List<QueryStats> snapshot() {
+        List<QueryStats> all = new ArrayList<>(byFingerprint.values());
+        all.sort((a, b) -> Long.compare(b.latency.totalNanos(), a.latency.totalNanos()));
+        return all;
+    }
+
+    /**
+     * @return a table of every fingerprint with its counts, latency percentiles and callers
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder(String.format("%8s %6s %10s %10s %9s %9s %9s %9s  %s%n",
+                "calls", "errors", "rows", "total ms", "p50 ms", "p95 ms", "p99 ms", "max ms", "statement"));
+        for (QueryStats stats : snapshot()) {
+            Histogram h = stats.latency;
+            report.append(String.format("%8d %6d %10d %10.1f %9.2f %9.2f %9.2f %9.2f  %s%n", stats.calls(),
+                    stats.errors(), stats.rows(), h.totalNanos() / 1e6, h.percentile(50) / 1e6,
+                    h.percentile(95) / 1e6, h.percentile(99) / 1e6, h.maxNanos() / 1e6, stats.fingerprint));
+            stats.callers().forEach((caller, n) ->
+                    report.append(String.format("%58s%d from %s%n", "", n, caller)));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Writes the report to a file, replacing any earlier one
+     * @param file where to write it
+     * @throws IOException if the file can't be written
+     */
+    public static void writeReport(Path file) throws IOException {
+        Files.writeString(file, report(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Normalizes SQL so statements that differ only in literals and whitespace share statistics
+     * @param sql the statement text
+     * @return the fingerprint
+     */
+    static String fingerprint(String sql) {
+        String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+        normalized = POSITIONAL.matcher(normalized).replaceAll("?");
+        normalized = NUMBER.matcher(normalized).replaceAll("?");
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    private static QueryStats statsFor(String sql) {
+        QueryStats stats = bySql.get(sql);
+        if (stats != null) return stats;
+        stats = byFingerprint.computeIfAbsent(fingerprint(sql), QueryStats::new);
+        if (bySql.size() < MAX_CACHED_SQL) bySql.put(sql, stats);  //dynamic SQL could otherwise grow this forever
+        return stats;
+    }
+
+    /**
+     * Finds the method a statement is being made for: the nearest PostgresLogic frame, or the
+     * nearest application frame when PostgresLogic isn't on the stack
+     */
+    private static String caller() {
+        return WALKER.walk(frames -> {
+            String first = null;
+            for (StackWalker.StackFrame frame : (Iterable<StackWalker.StackFrame>) frames::iterator) {
+                String cls = frame.getClassName();
+                if (INFRASTRUCTURE.contains(cls) || cls.startsWith("java.") || cls.startsWith("jdk.")
+                        || cls.startsWith("sun.") || cls.startsWith("com.sun.") || cls.startsWith("org.postgresql.")) {
+                    continue;
+                }
+                String name = cls + "." + methodName(frame.getMethodName());
+                if (cls.equals("PostgresLogic")) return name;
+                if (first == null) first = name;
+            }
+            return first == null ? "unknown" : first;
+        });
+    }
+
+    private static String methodName(String name) {
+        //lambda$forYou$3 -> forYou
+        if (name.startsWith("lambda$")) {
+            int end = name.indexOf('$', 7);
+            return end > 7 ? name.substring(7, end) : name;
+        }
+        return name;
+    }
+
+    private static PreparedStatement wrapPrepared(Connection raw, PreparedStatement ps, String sql, String caller) {
+        QueryStats stats = statsFor(sql);
+        Map<Integer, Object> binds = new TreeMap<>();
+        return (PreparedStatement) Proxy.newProxyInstance(StatementMetrics.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("setNull") && args[0] instanceof Integer index) {
+                        binds.put(index, null);
+                    } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer index) {
+                        binds.put(index, args[1]);
+                    } else if (name.equals("clearParameters")) {
+                        binds.clear();
+                    } else if (name.startsWith("execute") && (args == null || args.length == 0)) {
+                        return timed(raw, ps, method, args, stats, caller, sql, binds);
+                    } else if (name.startsWith("execute") && args[0] instanceof String other) {
+                        return timed(raw, ps, method, args, statsFor(other), caller, other, Map.of());
+                    }
+                    return invoke(ps, method, args);
+                });
+    }
+
+    private static Statement wrapStatement(Connection raw, Statement st, String caller) {
+        return (Statement) Proxy.newProxyInstance(StatementMetrics.class.getClassLoader(),
+                new Class<?>[]{Statement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute") && args != null && args.length > 0
+                            && args[0] instanceof String sql) {
+                        return timed(raw, st, method, args, statsFor(sql), caller, sql, Map.of());
+                    }
+                    return invoke(st, method, args);
+                });
+    }
+
+    private static Object timed(Connection raw, Statement st, Method method, Object[] args, QueryStats stats,
+                                String caller, String sql, Map<Integer, Object> binds) throws Throwable {
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = QueryDeadline.enforce(st, () -> invoke(st, method, args));
+        } catch (Throwable t) {
+            stats.errors.increment();
+            throw t;
+        }
+        long elapsed = System.nanoTime() - start;
+        stats.record(elapsed, caller);
+        if (result instanceof Integer updated) stats.rows.add(Math.max(updated, 0));
+        else if (result instanceof Long updated) stats.rows.add(Math.max(updated, 0));
+        if (elapsed >= SLOW_NANOS) logSlow(raw, sql, binds, caller, elapsed);
+        if (result instanceof ResultSet rs) return countRows(rs, stats);
+        return result;
+    }
+
+    private static ResultSet countRows(ResultSet rs, QueryStats stats) {
+        return (ResultSet) Proxy.newProxyInstance(StatementMetrics.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                    Object result = invoke(rs, method, args);
+                    if (method.getName().equals("next") && Boolean.TRUE.equals(result)) stats.rows.increment();
+                    return result;
+                });
+    }
+
+    private static void logSlow(Connection raw, String sql, Map<Integer, Object> binds, String caller, long nanos) {
+        StringWriter entry = new StringWriter();
+        PrintWriter out = new PrintWriter(entry);
+        out.printf("%s %.1f ms from %s%n  %s%n", LocalDateTime.now(), nanos / 1e6, caller,
+                WHITESPACE.matcher(sql).replaceAll(" ").trim());
+        boolean sensitive = SENSITIVE.matcher(sql).find();
+        if (!binds.isEmpty()) out.println("  binds: " + (sensitive ? redacted(binds) : binds));
+
+        String lead = sql.trim().toUpperCase(Locale.ROOT);
+        boolean readOnly = (lead.startsWith("SELECT") || lead.startsWith("WITH"))
+                && !lead.matches("(?s).*\\b(INSERT|UPDATE|DELETE)\\b.*");
+        //a plan prints the bound values in its filters
+        if (EXPLAIN_SLOW && readOnly && !sensitive) {
+            //runs on the raw connection so the explain itself isn't recorded
+            try {
+                //a failed explain would abort the caller's transaction along with it
+                if (!raw.getAutoCommit()) {
+                    out.println("  not explained inside a transaction");
+                } else {
+                    try (PreparedStatement explain = raw.prepareStatement("EXPLAIN ANALYZE " + sql)) {
+                        for (Map.Entry<Integer, Object> bind : binds.entrySet()) {
+                            explain.setObject(bind.getKey(), bind.getValue());
+                        }
+                        ResultSet plan = explain.executeQuery();
+                        while (plan.next()) out.println("    " + plan.getString(1));
+                    }
+                }
+            } catch (SQLException e) {
+                out.println("  explain failed: " + e.getMessage());
+            }
+        }
+        out.flush();
+        synchronized (SLOW_LOG_LOCK) {
+            try {
+                Files.writeString(SLOW_LOG, entry.toString(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Could not write slow query log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return each bind as its type and, for text, its length, e.g. {1=String(8), 2=Date}
+     */
+    static Map<Integer, String> redacted(Map<Integer, Object> binds) {
+        Map<Integer, String> shapes = new TreeMap<>();
+        binds.forEach((index, value) -> shapes.put(index, value == null ? "null"
+                : value instanceof CharSequence text ? value.getClass().getSimpleName() + "(" + text.length() + ")"
+                : value.getClass().getSimpleName()));
+        return shapes;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
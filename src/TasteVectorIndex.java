@@ -0,0 +1,207 @@
+/* Dense per-user taste vectors over genres and the most listened to artists.
+ * Vectors are L2 normalized and quantized to int8 in one contiguous off-heap buffer so
+ * "users like you" and "songs for you" can be answered with a brute-force scan in memory.
+ */
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.*;
+
+public class TasteVectorIndex {
+    private static final int NUM_TOP_ARTISTS = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<Integer, Integer> genreDims = new HashMap<>();
+    private final Map<Integer, Integer> artistDims = new HashMap<>();
+    private final int dims;
+
+    private final Map<String, Integer> userRows = new HashMap<>();
+    private final List<String> rowUsers = new ArrayList<>();
+    private ByteBuffer vectors;
+
+    //one entry per song. Song i's artists are songArtistDims[songArtistStart[i]] up to
+    //songArtistStart[i + 1], each -1 when that artist isn't a top artist.
+    private int[] songIDs;
+    private int[] songGenreDim;
+    private int[] songArtistStart;
+    private int[] songArtistDims;
+
+    /**
+     * A user or song along with how closely it matches the query user's taste, from -1 to 1
+     */
+    public record Neighbor<T>(T key, double score) {}
+
+    private TasteVectorIndex(List<Integer> genreIDs, List<Integer> topArtists) {
+        for (int genreID : genreIDs) genreDims.put(genreID, genreDims.size());
+        for (int artistID : topArtists) artistDims.put(artistID, genreDims.size() + artistDims.size());
+        dims = genreDims.size() + artistDims.size();
+        vectors = ByteBuffer.allocateDirect(INITIAL_CAPACITY * Math.max(dims, 1));
+    }
+
+    /**
+     * Builds taste vectors for every user from their listens and playlist contents
+     * @param shards a connection to each shard, see ShardRouter
+     * @param catalog the catalog
+     * @return the populated index
+     * @throws SQLException if database access goes wrong
+     */
+    public static TasteVectorIndex load(List<Connection> shards, CatalogSnapshot catalog) throws SQLException {
+        List<Integer> genreIDs = catalog.genreIDs();
+
+        //an artist's listens may be split over shards, so each returns all of its totals to merge
+        List<Map<Integer, Long>> artistListens = new ArrayList<>();
+        for (Connection shard : shards) {
+            PreparedStatement ps = shard.prepareStatement("SELECT sba.artist_id, SUM(uls.listens) " +
+                    "FROM listen_counts uls, song_by_artist sba WHERE uls.song_id = sba.song_id GROUP BY sba.artist_id " +
+                    "ORDER BY SUM(uls.listens) DESC LIMIT ?");
+            ps.setInt(1, shards.size() == 1 ? NUM_TOP_ARTISTS : Integer.MAX_VALUE);
+            ResultSet rs = ps.executeQuery();
+            Map<Integer, Long> listens = new HashMap<>();
+            while (rs.next()) listens.put(rs.getInt(1), rs.getLong(2));
+            artistListens.add(listens);
+        }
+        List<Integer> topArtists = new ArrayList<>();
+        for (Map.Entry<Integer, Long> artist : ShardRouter.topK(artistListens, NUM_TOP_ARTISTS)) {
+            topArtists.add(artist.getKey());
+        }
+
+        TasteVectorIndex index = new TasteVectorIndex(genreIDs, topArtists);
+
+        //user rows arrive grouped by username so only one raw vector is held at a time, and each
+        //user's rows are all on one shard. A song's weight counts once towards its genre and once
+        //towards each of its artists.
+        float[] raw = new float[index.dims];
+        for (Connection shard : shards) {
+            ResultSet rs = shard.prepareStatement("""
+                    SELECT username, song_id, SUM(weight) AS total FROM
+                        (SELECT username, song_id, listens AS weight FROM listen_counts
+                         UNION ALL SELECT username, song_id, 1 FROM song_on_playlist) x
+                    GROUP BY username, song_id ORDER BY username""").executeQuery();
+            String current = null;
+            while (rs.next()) {
+                String user = rs.getString("username");
+                if (!user.equals(current)) {
+                    if (current != null) index.putVector(current, raw);
+                    current = user;
+                    Arrays.fill(raw, 0);
+                }
+                int song = catalog.songNumber(rs.getInt("song_id"));
+                if (song < 0) continue;
+                int total = rs.getInt("total");
+                Integer genreDim = index.genreDims.get(catalog.genreID(song));
+                if (genreDim != null) raw[genreDim] += total;
+                for (int i = 0; i < catalog.artistCount(song); i++) {
+                    Integer artistDim = index.artistDims.get(catalog.artistID(song, i));
+                    if (artistDim != null) raw[artistDim] += total;
+                }
+            }
+            if (current != null) index.putVector(current, raw);
+        }
+
+        int numSongs = catalog.songCount();
+        index.songIDs = new int[numSongs];
+        index.songGenreDim = new int[numSongs];
+        index.songArtistStart = new int[numSongs + 1];
+        for (int song = 0; song < numSongs; song++) {
+            index.songArtistStart[song + 1] = index.songArtistStart[song] + catalog.artistCount(song);
+        }
+        index.songArtistDims = new int[index.songArtistStart[numSongs]];
+        for (int song = 0; song < numSongs; song++) {
+            index.songIDs[song] = catalog.songID(song);
+            index.songGenreDim[song] = index.genreDims.getOrDefault(catalog.genreID(song), -1);
+            for (int i = 0; i < catalog.artistCount(song); i++) {
+                index.songArtistDims[index.songArtistStart[song] + i] =
+                        index.artistDims.getOrDefault(catalog.artistID(song, i), -1);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the users whose taste vectors are closest to a given user's
+     * @param user the user to compare against
+     * @param k the maximum number of users to return
+     * @return up to k users, closest first
+     */
+    public List<Neighbor<String>> usersLike(String user, int k) {
+        Integer row = userRows.get(user);
+        if (row == null) return List.of();
+        int[] query = rowVector(row);
+
+        PriorityQueue<Neighbor<String>> best = new PriorityQueue<>(Comparator.comparingDouble(Neighbor::score));
+        for (int other = 0; other < rowUsers.size(); other++) {
+            if (other == row) continue;
+            int base = other * dims;
+            int dot = 0;
+            for (int d = 0; d < dims; d++) dot += query[d] * vectors.get(base + d);
+            offer(best, new Neighbor<>(rowUsers.get(other), dot / (127.0 * 127.0)), k);
+        }
+        return drain(best);
+    }
+
+    /**
+     * Scores every song against a user's taste vector, skipping songs they've already heard. A
+     * song's vector has its genre and each of its artists set, so its score is scaled by how many
+     * of those it has.
+     * @param user the user to recommend for
+     * @param exclude song_ids to leave out of the results
+     * @param k the maximum number of songs to return
+     * @return up to k song_ids, best match first
+     */
+    public List<Neighbor<Integer>> songsFor(String user, Set<Integer> exclude, int k) {
+        Integer row = userRows.get(user);
+        if (row == null) return List.of();
+        int[] query = rowVector(row);
+
+        PriorityQueue<Neighbor<Integer>> best = new PriorityQueue<>(Comparator.comparingDouble(Neighbor::score));
+        for (int i = 0; i < songIDs.length; i++) {
+            if (exclude.contains(songIDs[i])) continue;
+            int score = songGenreDim[i] >= 0 ? query[songGenreDim[i]] : 0;
+            for (int a = songArtistStart[i]; a < songArtistStart[i + 1]; a++) {
+                if (songArtistDims[a] >= 0) score += query[songArtistDims[a]];
+            }
+            int set = 1 + songArtistStart[i + 1] - songArtistStart[i];
+            offer(best, new Neighbor<>(songIDs[i], score / (127.0 * set)), k);
+        }
+        return drain(best);
+    }
+
+    private void putVector(String user, float[] raw) {
+        double norm = 0;
+        for (float v : raw) norm += v * v;
+        norm = Math.sqrt(norm);
+        if (norm == 0) return;
+
+        int row = rowUsers.size();
+        if ((row + 1) * dims > vectors.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(vectors.capacity() * 2);
+            grown.put(vectors.duplicate().clear());
+            vectors = grown;
+        }
+        for (int d = 0; d < dims; d++) {
+            vectors.put(row * dims + d, (byte) Math.round(raw[d] / norm * 127));
+        }
+        userRows.put(user, row);
+        rowUsers.add(user);
+    }
+
+    private int[] rowVector(int row) {
+        int[] vector = new int[dims];
+        for (int d = 0; d < dims; d++) vector[d] = vectors.get(row * dims + d);
+        return vector;
+    }
+
+    private static <T> void offer(PriorityQueue<Neighbor<T>> best, Neighbor<T> candidate, int k) {
+        if (best.size() < k) best.add(candidate);
+        else if (candidate.score() > best.peek().score()) {
+            best.poll();
+            best.add(candidate);
+        }
+    }
+
+    private static <T> List<Neighbor<T>> drain(PriorityQueue<Neighbor<T>> best) {
+        List<Neighbor<T>> result = new ArrayList<>(best);
+        result.sort((a, b) -> Double.compare(b.score(), a.score()));
+        return result;
+    }
+}
@@ -0,0 +1,172 @@
+/* An in-memory stand-in for a PostgreSQL database, just enough of JDBC to run Dotify's code
+ * without one. Tables are lists of rows. SELECT * FROM a table returns its rows and INSERT INTO a
+ * table with named columns adds one, skipping rows whose key is already there when the statement
+ * says ON CONFLICT DO NOTHING. Every other query returns no rows and every other update changes
+ * one row.
+ */
+
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class FakeJdbc {
+    private static final Pattern SELECT_ALL = Pattern.compile("(?i)^\\s*SELECT \\* FROM (\\w+)\\s*$");
+    private static final Pattern INSERT = Pattern.compile("(?i)^\\s*INSERT INTO (\\w+) \\(([^)]*)\\) VALUES");
+
+    private FakeJdbc() {}
+
+    /**
+     * The tables of one database
+     */
+    static final class Database {
+        private final Map<String, List<Map<String, Object>>> tables = new LinkedHashMap<>();
+        private final Map<String, List<String>> keys = new HashMap<>();
+
+        /**
+         * Creates an empty table
+         * @param key the columns of its primary key
+         */
+        Database table(String name, String... key) {
+            tables.put(name, new ArrayList<>());
+            keys.put(name, List.of(key));
+            return this;
+        }
+
+        /**
+         * Adds a row to a table
+         * @param columnsAndValues each column's name followed by its value
+         */
+        Database row(String table, Object... columnsAndValues) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < columnsAndValues.length; i += 2) row.put((String) columnsAndValues[i], columnsAndValues[i + 1]);
+            tables.get(table).add(row);
+            return this;
+        }
+
+        List<Map<String, Object>> rows(String table) {
+            return tables.get(table);
+        }
+
+        Connection connect() {
+            return fake(Connection.class, (method, args) -> switch (method) {
+                case "prepareStatement" -> statement(PreparedStatement.class, (String) args[0]);
+                case "createStatement" -> statement(Statement.class, null);
+                case "getAutoCommit", "isValid" -> true;
+                default -> null;
+            });
+        }
+
+        private <T extends Statement> T statement(Class<T> type, String prepared) {
+            Map<Integer, Object> binds = new TreeMap<>();
+            List<Map<Integer, Object>> batch = new ArrayList<>();
+            return fake(type, (method, args) -> {
+                String sql = args != null && args.length > 0 && args[0] instanceof String text ? text : prepared;
+                switch (method) {
+                    case "setObject", "setString", "setInt", "setLong", "setDate", "setTimestamp", "setBoolean" -> {
+                        binds.put((Integer) args[0], args[1]);
+                        return null;
+                    }
+                    case "addBatch" -> {
+                        batch.add(new TreeMap<>(binds));
+                        return null;
+                    }
+                    case "executeBatch" -> {
+                        int[] counts = new int[batch.size()];
+                        for (int i = 0; i < counts.length; i++) counts[i] = update(sql, batch.get(i));
+                        batch.clear();
+                        return counts;
+                    }
+                    case "executeUpdate" -> {
+                        return update(sql, binds);
+                    }
+                    case "executeQuery" -> {
+                        return query(sql);
+                    }
+                    case "execute" -> {
+                        update(sql, binds);
+                        return false;
+                    }
+                    default -> {
+                        return null;
+                    }
+                }
+            });
+        }
+
+        private ResultSet query(String sql) {
+            Matcher select = SELECT_ALL.matcher(sql);
+            List<Map<String, Object>> rows = select.matches() && tables.containsKey(select.group(1))
+                    ? tables.get(select.group(1)) : List.of();
+            List<String> columns = rows.isEmpty() ? List.of() : new ArrayList<>(rows.get(0).keySet());
+            ResultSetMetaData meta = fake(ResultSetMetaData.class, (method, args) -> switch (method) {
+                case "getColumnCount" -> columns.size();
+                case "getColumnName", "getColumnLabel" -> columns.get((Integer) args[0] - 1);
+                default -> null;
+            });
+            int[] at = {-1};
+            return fake(ResultSet.class, (method, args) -> switch (method) {
+                case "next" -> ++at[0] < rows.size();
+                case "getMetaData" -> meta;
+                case "getObject", "getString", "getInt", "getLong" -> {
+                    if (at[0] < 0 || at[0] >= rows.size()) yield null;
+                    Object value = args[0] instanceof Integer index
+                            ? rows.get(at[0]).get(columns.get(index - 1)) : rows.get(at[0]).get(args[0]);
+                    yield method.equals("getString") && value != null ? value.toString() : value;
+                }
+                default -> null;
+            });
+        }
+
+        private int update(String sql, Map<Integer, Object> binds) {
+            Matcher insert = INSERT.matcher(sql);
+            if (!insert.find() || !tables.containsKey(insert.group(1))) return 1;
+            String table = insert.group(1);
+            Map<String, Object> row = new LinkedHashMap<>();
+            String[] columns = insert.group(2).split("\\s*,\\s*");
+            for (int i = 0; i < columns.length; i++) row.put(columns[i].trim(), binds.get(i + 1));
+            if (sql.toUpperCase(Locale.ROOT).contains("ON CONFLICT DO NOTHING")) {
+                for (Map<String, Object> existing : tables.get(table)) {
+                    boolean same = true;
+                    for (String key : keys.get(table)) same &= Objects.equals(existing.get(key), row.get(key));
+                    if (same) return 0;
+                }
+            }
+            tables.get(table).add(row);
+            return 1;
+        }
+    }
+
+    /**
+     * Answers the calls a fake JDBC object handles
+     */
+    private interface Handler {
+        Object handle(String method, Object[] args) throws Exception;
+    }
+
+    /**
+     * @return a JDBC object that answers with the handler, or with false, zero or null when the
+     * handler returns null
+     */
+    private static <T> T fake(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "equals": return proxy == args[0];
+                        case "toString": return "fake " + type.getSimpleName();
+                        default: break;
+                    }
+                    Object result = handler.handle(method.getName(), args);
+                    if (result != null) return result;
+                    Class<?> returns = method.getReturnType();
+                    if (returns == boolean.class) return false;
+                    if (returns == int.class) return 0;
+                    if (returns == long.class) return 0L;
+                    if (returns == double.class) return 0.0;
+                    if (returns == int[].class) return new int[0];
+                    return null;
+                }));
+    }
+}
@@ -0,0 +1,54 @@
+/* Checks that a second shard gets its own copy of the catalog. Two FakeJdbc databases stand in
+ * for the shards: shard 0 has the catalog with some listens and shard 1 has one of its songs
+ * already, with listens of its own.
+ *
+ *   javac -d out/test src/*.java test/*.java
+ *   java -cp out/test ShardRouterTest
+ */
+
+import java.util.List;
+import java.util.Map;
+
+public class ShardRouterTest {
+    public static void main(String[] args) throws Exception {
+        FakeJdbc.Database first = catalogTables().row("genre", "genre_id", 1, "genre_name", "Jazz")
+                .row("artist", "artist_name", "Miles Davis", "artist_id", 1)
+                .row("album", "album_id", 1, "release_date", null, "name", "Kind of Blue")
+                .row("song", "song_id", 1, "title", "So What", "length", 562, "release_date", null, "genre_id", 1, "num_listens", 7)
+                .row("song", "song_id", 2, "title", "Blue in Green", "length", 337, "release_date", null, "genre_id", 1, "num_listens", 3)
+                .row("song_by_artist", "song_id", 1, "artist_id", 1)
+                .row("song_by_artist", "song_id", 2, "artist_id", 1)
+                .row("song_on_album", "song_id", 1, "album_id", 1, "track_num", 1)
+                .row("song_on_album", "song_id", 2, "album_id", 1, "track_num", 3)
+                .row("album_by_artist", "album_id", 1, "artist_id", 1)
+                .row("album_genres", "album_id", 1, "genre_id", 1);
+        FakeJdbc.Database second = catalogTables()
+                .row("song", "song_id", 2, "title", "Blue in Green", "length", 337, "release_date", null, "genre_id", 1, "num_listens", 5);
+
+        try (ShardRouter router = new ShardRouter(List.of(new RoutingDataSource(ConnectionPool.of(first.connect()), null),
+                new RoutingDataSource(ConnectionPool.of(second.connect()), null)))) {
+            StatementMetricsTest.check(router.syncCatalog().equals(List.of(10)), "10 rows added to shard 1");
+            StatementMetricsTest.check(router.syncCatalog().equals(List.of(0)), "nothing added a second time");
+        }
+
+        for (String table : List.of("genre", "artist", "album", "song_by_artist", "song_on_album",
+                "album_by_artist", "album_genres")) {
+            StatementMetricsTest.check(second.rows(table).equals(first.rows(table)), "shard 1 to have every row of " + table);
+        }
+        StatementMetricsTest.check(second.rows("song").size() == 2, "shard 1 to have both songs");
+        for (Map<String, Object> song : second.rows("song")) {
+            int expected = song.get("song_id").equals(2) ? 5 : 0;
+            StatementMetricsTest.check(song.get("num_listens").equals(expected),
+                    "song " + song.get("song_id") + " to have shard 1's own " + expected + " listens");
+        }
+        StatementMetricsTest.check(first.rows("song").get(0).get("num_listens").equals(7), "shard 0 left alone");
+        System.out.println("ShardRouterTest passed");
+    }
+
+    private static FakeJdbc.Database catalogTables() {
+        return new FakeJdbc.Database().table("genre", "genre_id").table("artist", "artist_id")
+                .table("album", "album_id").table("song", "song_id")
+                .table("song_by_artist", "song_id", "artist_id").table("song_on_album", "song_id", "album_id")
+                .table("album_by_artist", "album_id", "artist_id").table("album_genres", "album_id", "genre_id");
+    }
+}
@@ -0,0 +1,41 @@
+/* Checks that the slow query log never records a password. Registers a user through
+ * DotifyOperations on a FakeJdbc database, with the slow query threshold at 0 so every statement
+ * is logged, then reads the log back.
+ *
+ *   javac -d out/test src/*.java test/*.java
+ *   java -cp out/test StatementMetricsTest
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+
+public class StatementMetricsTest {
+    private static final String PASSWORD = "hunter2-secret";
+
+    public static void main(String[] args) throws Exception {
+        Path log = Files.createTempFile("slow_queries", ".log");
+        //read when StatementMetrics is initialized, so set before anything touches it
+        System.setProperty("dotify.slowQueryMs", "0");
+        System.setProperty("dotify.slowQueryLog", log.toString());
+        try {
+            Connection conn = StatementMetrics.wrap(new FakeJdbc.Database().connect());
+            try (DotifyOperations ops = new DotifyOperations(ConnectionPool.of(conn))) {
+                check(ops.register("alice", PASSWORD, "Alice", "Liddell", "alice@example.com"),
+                        "the registration went through");
+            }
+            String written = Files.readString(log, StandardCharsets.UTF_8);
+            check(written.contains(PostgresLogic.SQL_REGISTER_USER), "the registration was logged");
+            check(!written.contains(PASSWORD), "the password isn't in the log");
+            check(written.contains("String(" + PASSWORD.length() + ")"), "the password's type and length are");
+            System.out.println("StatementMetricsTest passed");
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError("Expected " + what);
+    }
+}